@@ -0,0 +1,59 @@
+package fr.xebia.stomp.client;
+
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * The frames measured by the benchmarks.
+ */
+final class BenchmarkFrames {
+
+    private BenchmarkFrames() {
+        // Helper
+    }
+
+    /**
+     * A MESSAGE frame like those received from a broker: destination and message-id first, then custom headers up to the header count, and a
+     * content-length header if there is a message.
+     */
+    static Frame message(int headerCount, int bodySize) {
+        FrameBuilder builder = new FrameBuilder().command(Command.MESSAGE).header(Headers.DESTINATION, "/queue/benchmark")
+                .header(Headers.MESSAGE_ID, "ID:benchmark-host-1-0:1:1:1");
+        for (int i = 2; i < headerCount; i++) {
+            builder.header("header-" + i, "value-" + i);
+        }
+        if (bodySize > 0) {
+            byte[] body = new byte[bodySize];
+            Arrays.fill(body, (byte) 'a');
+            builder.header(Headers.CONTENT_LENGTH, Integer.toString(bodySize)).message(body);
+        }
+        return builder.end();
+    }
+
+    /**
+     * A stream repeating the same bytes forever, so a frame can be read at each operation.
+     */
+    static final class CyclicInputStream extends InputStream {
+        private final byte[] bytes;
+        private int position = 0;
+
+        CyclicInputStream(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        @Override
+        public int read() {
+            int value = bytes[position] & 0xFF;
+            position = (position + 1) % bytes.length;
+            return value;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) {
+            int count = Math.min(length, bytes.length - position);
+            System.arraycopy(bytes, position, buffer, offset, count);
+            position = (position + count) % bytes.length;
+            return count;
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package fr.xebia.stomp.client;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Build the frames sent by a client with the builder chains, without connection.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrameBuilderBenchmark {
+    private Frame frame;
+
+    @Setup
+    public void setUp() {
+        frame = BenchmarkFrames.message(8, 256);
+    }
+
+    @Benchmark
+    public Frame send() {
+        return FrameBuilder.send().header("custom", "value").message("message").to("/queue/benchmark");
+    }
+
+    @Benchmark
+    public Frame subscribe() {
+        return FrameBuilder.subscribe().forClient("subscription-0").clientIndividualAcknowledge().to("/queue/benchmark");
+    }
+
+    @Benchmark
+    public Frame command() {
+        return new FrameBuilder().command(Command.ACK).header(Headers.MESSAGE_ID, "message-0").header(Headers.SUBSCRIPTION, "subscription-0").end();
+    }
+
+    @Benchmark
+    public Frame withHeader() {
+        return frame.withHeader(Headers.RECEIPT, "receipt-0");
+    }
+}
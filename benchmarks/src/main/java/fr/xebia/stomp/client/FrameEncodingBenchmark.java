@@ -0,0 +1,65 @@
+package fr.xebia.stomp.client;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encode a frame, to a new array with {@link Frame#getBytes()} or through the reusable buffer of a {@link FrameOutputStream}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrameEncodingBenchmark {
+
+    @Param({ "0", "256", "16384" })
+    private int bodySize;
+
+    @Param({ "2", "8", "32" })
+    private int headerCount;
+
+    private Frame frame;
+    private FrameOutputStream frameOutputStream;
+
+    @Setup
+    public void setUp() {
+        frame = BenchmarkFrames.message(headerCount, bodySize);
+        frameOutputStream = new FrameOutputStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+                // Discarded
+            }
+
+            @Override
+            public void write(byte[] bytes, int offset, int length) {
+                // Discarded
+            }
+        }, 8192);
+    }
+
+    @Benchmark
+    public byte[] getBytes() {
+        return frame.getBytes();
+    }
+
+    @Benchmark
+    public void write() throws IOException {
+        frameOutputStream.write(frame);
+        frameOutputStream.flush();
+    }
+}
@@ -0,0 +1,61 @@
+package fr.xebia.stomp.client;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parse a frame from a stream, decoded to a {@link Frame} or read in place through a {@link FrameView}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrameInputStreamBenchmark {
+
+    @Param({ "0", "256", "16384" })
+    private int bodySize;
+
+    @Param({ "2", "8", "32" })
+    private int headerCount;
+
+    private FrameInputStream frameInputStream;
+    private Blackhole blackhole;
+    private final FrameViewListener listener = new FrameViewListener() {
+        @Override
+        public void onFrame(FrameView frame) {
+            blackhole.consume(frame.header(Headers.DESTINATION));
+            blackhole.consume(frame.header(Headers.MESSAGE_ID));
+            blackhole.consume(frame.body().remaining());
+        }
+    };
+
+    @Setup
+    public void setUp() {
+        frameInputStream = new FrameInputStream(new BenchmarkFrames.CyclicInputStream(BenchmarkFrames.message(headerCount, bodySize).getBytes()));
+    }
+
+    @Benchmark
+    public Frame read() {
+        return frameInputStream.read();
+    }
+
+    @Benchmark
+    public void readInPlace(Blackhole blackhole) {
+        this.blackhole = blackhole;
+        frameInputStream.read(listener);
+    }
+}
@@ -0,0 +1,76 @@
+package fr.xebia.stomp.client;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Look up the header of a received frame, against a {@link HashMap} of the same headers. The custom key is a copy of the key of the frame, so
+ * it is found by equality rather than by reference, as a key given by the application.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HeaderLookupBenchmark {
+
+    @Param({ "2", "8", "32" })
+    private int headerCount;
+
+    private HeaderMap header;
+    private Map<String, String> hashMap;
+    private String customKey;
+
+    @Setup
+    public void setUp() {
+        // Parsed, as the frames received
+        byte[] bytes = BenchmarkFrames.message(headerCount, 0).getBytes();
+        header = new FrameInputStream(new BenchmarkFrames.CyclicInputStream(bytes)).read().header;
+        hashMap = new HashMap<String, String>(header);
+        customKey = new String((headerCount > 2) ? "header-" + (headerCount - 1) : Headers.MESSAGE_ID);
+    }
+
+    @Benchmark
+    public String wellKnown() {
+        return header.get(Headers.MESSAGE_ID);
+    }
+
+    @Benchmark
+    public String custom() {
+        return header.get(customKey);
+    }
+
+    @Benchmark
+    public String missing() {
+        return header.get(Headers.RECEIPT);
+    }
+
+    @Benchmark
+    public String wellKnownInHashMap() {
+        return hashMap.get(Headers.MESSAGE_ID);
+    }
+
+    @Benchmark
+    public String customInHashMap() {
+        return hashMap.get(customKey);
+    }
+
+    @Benchmark
+    public String missingInHashMap() {
+        return hashMap.get(Headers.RECEIPT);
+    }
+}
@@ -0,0 +1,330 @@
+package fr.xebia.stomp.client;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Send messages from producers to consumers through a broker at a target rate, and report the end-to-end latency percentiles.
+ * <p/>
+ * Each producer and each consumer has its own connection. The producers share the rate: each one has a schedule of intended send times, and
+ * sends as soon as it can once a time is passed. A message carries its intended and actual send times in headers, as nanoseconds since the
+ * start of the run, and the consumers record two
+ * latencies: from the actual send time, the service time, and from the intended send time, the response time. As a producer late on its
+ * schedule doesn't skip messages, the response time includes the wait of the messages which couldn't be sent in time: the coordinated omission
+ * of the service time is corrected. The producers and the consumers run in this JVM, so the times are read from {@link System#nanoTime()}.
+ * <p/>
+ * Options, with their default value:
+ * <ul>
+ * <li><code>-host</code> and <code>-port</code>: the broker, an {@link EmbeddedBroker} if no port is given</li>
+ * <li><code>-producers 1</code> and <code>-consumers 1</code></li>
+ * <li><code>-destination /queue/load</code>: the consumers share the messages of a queue, and each one receives the messages of a topic</li>
+ * <li><code>-rate 10000</code>: the messages sent per second by all the producers</li>
+ * <li><code>-sizes 256</code>: the message sizes in bytes with their weight, as <code>256:0.9,16384:0.1</code></li>
+ * <li><code>-duration 10</code> and <code>-warmup 2</code>: in seconds, the messages sent during the warmup are not recorded</li>
+ * <li><code>-nio</code>: the connections use the channel transport</li>
+ * </ul>
+ */
+public final class LoadGenerator {
+    static final String INTENDED_HEADER = "load-intended-nanos";
+    static final String SENT_HEADER = "load-sent-nanos";
+
+    private final String host;
+    private final int port;
+    private final int producerCount;
+    private final int consumerCount;
+    private final String destination;
+    private final long rate;
+    private final int[] sizes;
+    private final double[] cumulativeWeights;
+    private final long durationNanos;
+    private final long warmupNanos;
+    private final boolean nio;
+
+    // Latencies in nanoseconds, recorded by the consumers
+    private final Recorder serviceTimes = new Recorder(3);
+    private final Recorder responseTimes = new Recorder(3);
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong received = new AtomicLong();
+    // Messages the consumers couldn't measure, without the headers of a producer for instance
+    private final AtomicLong failed = new AtomicLong();
+    private volatile long startNanos;
+
+    private LoadGenerator(Map<String, String> options, String host, int port) {
+        this.host = host;
+        this.port = port;
+        this.producerCount = Integer.parseInt(option(options, "producers", "1"));
+        this.consumerCount = Integer.parseInt(option(options, "consumers", "1"));
+        this.destination = option(options, "destination", "/queue/load");
+        this.rate = Long.parseLong(option(options, "rate", "10000"));
+        this.durationNanos = TimeUnit.SECONDS.toNanos(Long.parseLong(option(options, "duration", "10")));
+        this.warmupNanos = TimeUnit.SECONDS.toNanos(Long.parseLong(option(options, "warmup", "2")));
+        this.nio = options.containsKey("nio");
+        String[] weightedSizes = option(options, "sizes", "256").split(",");
+        this.sizes = new int[weightedSizes.length];
+        this.cumulativeWeights = new double[weightedSizes.length];
+        double totalWeight = 0;
+        for (int i = 0; i < weightedSizes.length; i++) {
+            String[] sizeAndWeight = weightedSizes[i].split(":");
+            sizes[i] = Integer.parseInt(sizeAndWeight[0].trim());
+            totalWeight += (sizeAndWeight.length > 1) ? Double.parseDouble(sizeAndWeight[1].trim()) : 1;
+            cumulativeWeights[i] = totalWeight;
+        }
+        for (int i = 0; i < cumulativeWeights.length; i++) {
+            cumulativeWeights[i] /= totalWeight;
+        }
+        if ((producerCount <= 0) || (consumerCount <= 0) || (rate <= 0)) {
+            throw new IllegalArgumentException("The producers, the consumers and the rate must be positive");
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = parse(args);
+        EmbeddedBroker broker = null;
+        String host = option(options, "host", "localhost");
+        int port;
+        if (options.containsKey("port")) {
+            port = Integer.parseInt(options.get("port"));
+        } else {
+            broker = EmbeddedBroker.start();
+            host = broker.host();
+            port = broker.port();
+        }
+        try {
+            new LoadGenerator(options, host, port).run();
+        } finally {
+            if (broker != null) {
+                broker.close();
+            }
+        }
+    }
+
+    private void run() throws InterruptedException {
+        System.out.println("Load of " + rate + " msg/s from " + producerCount + " producers to " + consumerCount + " consumers on " + destination
+                + " at " + host + ":" + port + ", for " + TimeUnit.NANOSECONDS.toSeconds(durationNanos) + "s after a warmup of "
+                + TimeUnit.NANOSECONDS.toSeconds(warmupNanos) + "s");
+        List<Connection> consumers = new ArrayList<Connection>();
+        final CountDownLatch consumersDone = new CountDownLatch(consumerCount);
+        for (int i = 0; i < consumerCount; i++) {
+            Connection consumer = connect();
+            consumers.add(consumer);
+            consumer.subscribe().forClient("load-consumer-" + i).to(destination);
+            startConsumer(consumer, i, consumersDone);
+        }
+        // Let the subscriptions reach the broker before the first message
+        Thread.sleep(200);
+
+        startNanos = System.nanoTime();
+        final CountDownLatch producersDone = new CountDownLatch(producerCount);
+        for (int i = 0; i < producerCount; i++) {
+            startProducer(i, producersDone);
+        }
+
+        Histogram totalServiceTimes = null;
+        Histogram totalResponseTimes = null;
+        long lastReceived = 0;
+        while (!producersDone.await(1, TimeUnit.SECONDS)) {
+            Histogram intervalServiceTimes = serviceTimes.getIntervalHistogram();
+            Histogram intervalResponseTimes = responseTimes.getIntervalHistogram();
+            long receivedNow = received.get();
+            System.out.println(String.format("%6.1fs sent %9d received %9d (%7d msg/s)  response p99 %10.1fus  service p99 %10.1fus",
+                    (System.nanoTime() - startNanos) / 1e9, sent.get(), receivedNow, receivedNow - lastReceived,
+                    micros(intervalResponseTimes.getValueAtPercentile(99)), micros(intervalServiceTimes.getValueAtPercentile(99))));
+            lastReceived = receivedNow;
+            totalServiceTimes = add(totalServiceTimes, intervalServiceTimes);
+            totalResponseTimes = add(totalResponseTimes, intervalResponseTimes);
+        }
+
+        // Wait for the messages in flight, then stop the consumers
+        long drainDeadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        long expected = destination.startsWith("/topic/") ? sent.get() * consumerCount : sent.get();
+        while ((received.get() < expected) && (System.nanoTime() < drainDeadline)) {
+            Thread.sleep(10);
+        }
+        for (Connection consumer : consumers) {
+            consumer.closeQuietly();
+        }
+        consumersDone.await(5, TimeUnit.SECONDS);
+        totalServiceTimes = add(totalServiceTimes, serviceTimes.getIntervalHistogram());
+        totalResponseTimes = add(totalResponseTimes, responseTimes.getIntervalHistogram());
+
+        System.out.println();
+        System.out.println("Sent " + sent.get() + " messages, received " + received.get() + " (" + expected + " expected), " + failed.get()
+                + " failed");
+        report("Response time (from the intended send time, corrected)", totalResponseTimes);
+        report("Service time (from the actual send time)", totalServiceTimes);
+    }
+
+    private void startProducer(final int index, final CountDownLatch done) {
+        final Connection producer = connect();
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    produce(producer, index);
+                } finally {
+                    producer.closeQuietly();
+                    done.countDown();
+                }
+            }
+        }, "load-producer-" + index);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void produce(Connection producer, int index) {
+        byte[][] bodies = new byte[sizes.length][];
+        for (int i = 0; i < sizes.length; i++) {
+            bodies[i] = new byte[sizes[i]];
+        }
+        // Each producer sends one message of the rate every producerCount messages, shifted so they don't send together
+        long intervalNanos = (TimeUnit.SECONDS.toNanos(1) * producerCount) / rate;
+        long intended = startNanos + ((intervalNanos * index) / producerCount);
+        long end = startNanos + durationNanos;
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        while (intended < end) {
+            long now = System.nanoTime();
+            while (now < intended) {
+                LockSupport.parkNanos(intended - now);
+                now = System.nanoTime();
+            }
+            byte[] body = bodies[sizeIndex(random.nextDouble())];
+            // Relative to the start, as System.nanoTime() may be negative
+            producer.send(FrameBuilder.send().header(INTENDED_HEADER, Long.toString(intended - startNanos))
+                    .header(SENT_HEADER, Long.toString(now - startNanos)).message(body).to(destination));
+            sent.incrementAndGet();
+            intended += intervalNanos;
+        }
+    }
+
+    private void startConsumer(final Connection consumer, int index, final CountDownLatch done) {
+        final FrameViewListener listener = new FrameViewListener() {
+            @Override
+            public void onFrame(FrameView frame) {
+                if (frame.command() != Command.MESSAGE) {
+                    return;
+                }
+                long now = System.nanoTime() - startNanos;
+                received.incrementAndGet();
+                long intended = parseNanos(frame, INTENDED_HEADER);
+                if (intended >= warmupNanos) {
+                    responseTimes.recordValue(now - intended);
+                    serviceTimes.recordValue(now - parseNanos(frame, SENT_HEADER));
+                }
+            }
+        };
+        final String name = "load-consumer-" + index;
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        try {
+                            consumer.receive(listener);
+                        } catch (StompException e) {
+                            // Closed at the end of the run
+                            return;
+                        } catch (RuntimeException e) {
+                            // Reported without stopping the consumer, the next messages are still measured
+                            if (failed.incrementAndGet() == 1) {
+                                System.err.println(name + " failed on a message: " + e);
+                            }
+                        }
+                    }
+                } finally {
+                    done.countDown();
+                }
+            }
+        }, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private Connection connect() {
+        FrameBuilder.ConnectBuilder connectBuilder = Connection.login("admin").passcode("password");
+        if (nio) {
+            connectBuilder.nio();
+        }
+        return connectBuilder.to(host, port);
+    }
+
+    private int sizeIndex(double draw) {
+        for (int i = 0; i < cumulativeWeights.length - 1; i++) {
+            if (draw < cumulativeWeights[i]) {
+                return i;
+            }
+        }
+        return cumulativeWeights.length - 1;
+    }
+
+    /**
+     * Parse a time header of a view without decoding it.
+     *
+     * @return the nanoseconds since the start of the run
+     * @throws IllegalArgumentException if the header is missing or is not a positive number
+     */
+    private static long parseNanos(FrameView frame, String header) {
+        CharSequence value = frame.header(header);
+        if ((value == null) || (value.length() == 0)) {
+            throw new IllegalArgumentException("Missing header " + header);
+        }
+        long result = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char digit = value.charAt(i);
+            if ((digit < '0') || (digit > '9')) {
+                throw new IllegalArgumentException("Invalid header " + header + ":" + value);
+            }
+            result = (result * 10) + (digit - '0');
+        }
+        return result;
+    }
+
+    private static Histogram add(Histogram total, Histogram interval) {
+        if (total == null) {
+            return interval.copy();
+        }
+        total.add(interval);
+        return total;
+    }
+
+    private static void report(String title, Histogram histogram) {
+        System.out.println(title + ", " + histogram.getTotalCount() + " messages:");
+        System.out.println(String.format("  p50 %10.1fus  p90 %10.1fus  p99 %10.1fus  p99.9 %10.1fus  p99.99 %10.1fus  max %10.1fus",
+                micros(histogram.getValueAtPercentile(50)), micros(histogram.getValueAtPercentile(90)), micros(histogram.getValueAtPercentile(99)),
+                micros(histogram.getValueAtPercentile(99.9)), micros(histogram.getValueAtPercentile(99.99)), micros(histogram.getMaxValue())));
+    }
+
+    private static double micros(long nanos) {
+        return nanos / 1000.0;
+    }
+
+    private static Map<String, String> parse(String[] args) {
+        Map<String, String> options = new HashMap<String, String>();
+        for (int i = 0; i < args.length; i++) {
+            if (!args[i].startsWith("-")) {
+                throw new IllegalArgumentException("Unexpected argument " + args[i] + ", the options are -name value");
+            }
+            String name = args[i].substring(1);
+            if (((i + 1) < args.length) && !args[i + 1].startsWith("-")) {
+                options.put(name, args[++i]);
+            } else {
+                options.put(name, "true");
+            }
+        }
+        return options;
+    }
+
+    private static String option(Map<String, String> options, String name, String defaultValue) {
+        String value = options.get(name);
+        return (value == null) ? defaultValue : value;
+    }
+}
@@ -0,0 +1,165 @@
+package fr.xebia.stomp.client;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Acknowledge the received messages in batches, see {@link Connection#batchAcks(int, long, TimeUnit)}. The acknowledgements wait until their
+ * number reaches a threshold, or until the oldest one waited for a maximum delay, or until {@link #flush()} is called. The ack mode of the
+ * subscription of a message, as given to {@link FrameBuilder.SubscribeBuilder}, decides how it is acknowledged:
+ * <ul>
+ * <li><code>client</code>: an ACK is cumulative, so only the latest message of the subscription is acknowledged, with one ACK frame.</li>
+ * <li><code>client-individual</code> or unknown: each message has its ACK frame, all the frames are written at once.</li>
+ * <li><code>auto</code>: nothing is sent.</li>
+ * </ul>
+ */
+public class AckBatcher {
+    private static final Logger LOGGER = LoggerFactory.getLogger(AckBatcher.class);
+
+    private final Connection connection;
+    private final int maxMessages;
+    private final long maxDelayNanos;
+
+    // Guarded by this
+    private final LinkedHashMap<String, String> latestMessageIds = new LinkedHashMap<String, String>();
+    private final List<Frame> individualAcks = new ArrayList<Frame>();
+    private final Map<String, Long> unackedBySubscription = new HashMap<String, Long>();
+    private long unacked = 0;
+    private long acksSent = 0;
+    private long messagesAcked = 0;
+    private HashedWheelTimer.Timeout flushTimeout;
+
+    AckBatcher(Connection connection, int maxMessages, long maxDelay, TimeUnit unit) {
+        if ((maxMessages <= 0) || (maxDelay <= 0)) {
+            throw new IllegalArgumentException("maxMessages and maxDelay should be positive");
+        }
+        this.connection = connection;
+        this.maxMessages = maxMessages;
+        this.maxDelayNanos = unit.toNanos(maxDelay);
+    }
+
+    /**
+     * Acknowledge a MESSAGE frame, now or with the next ones.
+     *
+     * @param message the received message
+     */
+    public void ack(Frame message) {
+        String subscription = message.header.get(Headers.SUBSCRIPTION);
+        String messageId = message.header.get(Headers.MESSAGE_ID);
+        if ((subscription == null) || (messageId == null)) {
+            throw new IllegalArgumentException("The frame has no subscription or message-id header: " + message);
+        }
+        String ackMode = connection.ackMode(subscription);
+        if ("auto".equals(ackMode)) {
+            return;
+        }
+        boolean flush;
+        synchronized (this) {
+            if ("client".equals(ackMode)) {
+                latestMessageIds.put(subscription, messageId);
+            } else {
+                individualAcks.add(new FrameBuilder().command(Command.ACK).header(Headers.SUBSCRIPTION, subscription)
+                        .header(Headers.MESSAGE_ID, messageId).end());
+            }
+            Long unackedOfSubscription = unackedBySubscription.get(subscription);
+            unackedBySubscription.put(subscription, (unackedOfSubscription == null) ? 1 : (unackedOfSubscription + 1));
+            unacked++;
+            flush = unacked >= maxMessages;
+            if (!flush && (flushTimeout == null)) {
+                flushTimeout = HashedWheelTimer.SHARED.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        flushOnTimer();
+                    }
+                }, maxDelayNanos, TimeUnit.NANOSECONDS);
+            }
+        }
+        if (flush) {
+            flush();
+        }
+    }
+
+    /**
+     * Send the waiting acknowledgements, in one write. They are queued under the lock, so a concurrent flush can't queue an older cumulative ACK
+     * after a newer one. Queuing writes nothing, the socket is written by {@link Connection#flush()} once the lock is released.
+     */
+    public void flush() {
+        synchronized (this) {
+            if (flushTimeout != null) {
+                flushTimeout.cancel();
+                flushTimeout = null;
+            }
+            if (unacked == 0) {
+                return;
+            }
+            List<Frame> acks = new ArrayList<Frame>(individualAcks);
+            for (Map.Entry<String, String> entry : latestMessageIds.entrySet()) {
+                acks.add(new FrameBuilder().command(Command.ACK).header(Headers.SUBSCRIPTION, entry.getKey()).header(Headers.MESSAGE_ID, entry.getValue())
+                        .end());
+            }
+            acksSent += acks.size();
+            messagesAcked += unacked;
+            individualAcks.clear();
+            latestMessageIds.clear();
+            unackedBySubscription.clear();
+            unacked = 0;
+            for (Frame ack : acks) {
+                connection.enqueue(ack);
+            }
+        }
+        connection.flush();
+    }
+
+    /**
+     * Run by the timer thread: the acknowledgements are written by another thread, so a blocked socket doesn't stall the shared timer.
+     */
+    private void flushOnTimer() {
+        Connection.TIMER_WRITES.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    flush();
+                } catch (StompException e) {
+                    LOGGER.error("Can't send the acknowledgements", e);
+                }
+            }
+        });
+    }
+
+    /**
+     * @return the number of messages given to {@link #ack(Frame)} and not acknowledged to the server yet
+     */
+    public synchronized long unacked() {
+        return unacked;
+    }
+
+    /**
+     * @param subscription the subscription id
+     * @return the number of messages of the subscription not acknowledged to the server yet
+     */
+    public synchronized long unacked(String subscription) {
+        Long unackedOfSubscription = unackedBySubscription.get(subscription);
+        return (unackedOfSubscription == null) ? 0 : unackedOfSubscription;
+    }
+
+    /**
+     * @return the number of ACK frames sent
+     */
+    public synchronized long acksSent() {
+        return acksSent;
+    }
+
+    /**
+     * @return the number of messages acknowledged to the server, by individual or cumulative ACK frames
+     */
+    public synchronized long messagesAcked() {
+        return messagesAcked;
+    }
+}
@@ -0,0 +1,77 @@
+package fr.xebia.stomp.client;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Statistics of the writes of a connection: each flush of the written frames is a batch. Without batching, each frame is its own batch.
+ */
+public class BatchStats {
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong frames = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong maxFramesPerBatch = new AtomicLong();
+    private final AtomicLong flushesOnSize = new AtomicLong();
+    private final AtomicLong flushesOnTimer = new AtomicLong();
+
+    void record(int batchFrames, int batchBytes, boolean onSize, boolean onTimer) {
+        batches.incrementAndGet();
+        frames.addAndGet(batchFrames);
+        bytes.addAndGet(batchBytes);
+        long max;
+        do {
+            max = maxFramesPerBatch.get();
+        } while ((batchFrames > max) && !maxFramesPerBatch.compareAndSet(max, batchFrames));
+        if (onSize) {
+            flushesOnSize.incrementAndGet();
+        }
+        if (onTimer) {
+            flushesOnTimer.incrementAndGet();
+        }
+    }
+
+    public long batches() {
+        return batches.get();
+    }
+
+    public long frames() {
+        return frames.get();
+    }
+
+    public long bytes() {
+        return bytes.get();
+    }
+
+    public long maxFramesPerBatch() {
+        return maxFramesPerBatch.get();
+    }
+
+    public double averageFramesPerBatch() {
+        long localBatches = batches.get();
+        return (localBatches == 0) ? 0 : ((double) frames.get() / localBatches);
+    }
+
+    public double averageBytesPerBatch() {
+        long localBatches = batches.get();
+        return (localBatches == 0) ? 0 : ((double) bytes.get() / localBatches);
+    }
+
+    /**
+     * @return the number of batches flushed because their size reached the threshold
+     */
+    public long flushesOnSize() {
+        return flushesOnSize.get();
+    }
+
+    /**
+     * @return the number of batches flushed because their oldest frame waited for the maximum latency
+     */
+    public long flushesOnTimer() {
+        return flushesOnTimer.get();
+    }
+
+    @Override
+    public String toString() {
+        return "BatchStats [batches=" + batches + ", frames=" + frames + ", bytes=" + bytes + ", averageFramesPerBatch=" + averageFramesPerBatch()
+                + ", maxFramesPerBatch=" + maxFramesPerBatch + ", flushesOnSize=" + flushesOnSize + ", flushesOnTimer=" + flushesOnTimer + "]";
+    }
+}
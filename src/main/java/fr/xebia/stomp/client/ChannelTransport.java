@@ -0,0 +1,445 @@
+package fr.xebia.stomp.client;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Transport over a {@link SocketChannel} with direct buffers. Frames are parsed incrementally from the read buffer by a {@link FrameDecoder}, and
+ * written with gathering writes of the encoded frames and the buffer of a large message.
+ * <p/>
+ * The channel is first in blocking mode, and a blocking channel read doesn't honor the socket timeout: with this transport
+ * {@link Connection.SocketParam#TIMEOUT} doesn't stop {@link Connection#receive()}, use {@link Connection#receive(long, TimeUnit)}, which reads
+ * through the stream of the socket.
+ * <p/>
+ * Once registered on an {@link EventLoop}, the channel is non-blocking: the loop reads it and pushes the frames to an {@link InboundHandler}, and
+ * a writer waits for the loop to signal the channel is writable again when the socket buffer is full. A loop thread can't wait for itself, nor
+ * for another loop waiting for it: a listener writing from a loop keeps the bytes the socket didn't take, and the loop of the channel writes
+ * them once it is writable. The next writers wait for these bytes first, so the frames stay in order.
+ */
+class ChannelTransport implements Transport {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ChannelTransport.class);
+    private static final int DEFAULT_BUFFER_SIZE = 65536;
+    private static final long WRITABLE_WAIT_MILLIS = 100;
+
+    private final SocketChannel channel;
+    private final FrameDecoder decoder;
+    private final FrameEncoder encoder = new FrameEncoder();
+    private final FrameView view = new FrameView();
+
+    // Kept ready to be read: the received bytes not consumed yet are between its position and its limit
+    private ByteBuffer readBuffer = ByteBuffer.allocateDirect(DEFAULT_BUFFER_SIZE);
+    // Bytes read from the channel, read by the heart-beat timer
+    private volatile long readBytes = 0;
+    // Read by the socket stream before they are copied to the read buffer, for the reads with a timeout
+    private byte[] timedReadBytes;
+
+    // Set when registered on an event loop
+    private volatile SelectionKey selectionKey;
+    private InboundHandler inboundHandler;
+    // Guard the interest ops of the selection key
+    private final Object writable = new Object();
+    private boolean writeWaiting = false;
+    private boolean readingPaused = false;
+    // The bytes left by a flush from a loop thread, written by the loop of the channel
+    private ByteBuffer pendingWrite;
+
+    private final int writeBufferSize;
+    private final int maxFrameSize;
+
+    ChannelTransport(SocketChannel channel) {
+        this(channel, DEFAULT_BUFFER_SIZE, Frame.DEFAULT_MAX_FRAME_SIZE);
+    }
+
+    /**
+     * @param channel         the connected channel
+     * @param writeBufferSize the number of encoded bytes from which the frames are written without waiting for {@link #flush()}
+     * @param maxFrameSize    the maximum content-length of a received frame, and the maximum size of a header line
+     */
+    ChannelTransport(SocketChannel channel, int writeBufferSize, int maxFrameSize) {
+        this.channel = channel;
+        this.writeBufferSize = writeBufferSize;
+        this.maxFrameSize = maxFrameSize;
+        this.decoder = new FrameDecoder(maxFrameSize);
+        readBuffer.flip();
+    }
+
+    static ChannelTransport open(String host, int port, int writeBufferSize, int maxFrameSize) throws IOException {
+        SocketChannel channel = SocketChannel.open(new InetSocketAddress(host, port));
+        return new ChannelTransport(channel, writeBufferSize, maxFrameSize);
+    }
+
+    @Override
+    public Socket socket() {
+        return channel.socket();
+    }
+
+    SocketChannel channel() {
+        return channel;
+    }
+
+    @Override
+    public Frame read() {
+        if (inboundHandler != null) {
+            throw new IllegalStateException("The channel is read by an event loop");
+        }
+        try {
+            while (true) {
+                Frame frame = decoder.decode(readBuffer);
+                if (frame != null) {
+                    return frame;
+                }
+                if (fillReadBuffer(false) == -1) {
+                    throw new StompException("End of stream reached");
+                }
+            }
+        } catch (IOException e) {
+            throw new StompException(e);
+        }
+    }
+
+    /**
+     * The decoder gives a frame, so the view is backed by the decoded frame.
+     */
+    @Override
+    public void read(FrameViewListener listener) {
+        view.deliver(read(), listener);
+    }
+
+    /**
+     * The decoder keeps the frame partly received, so a read stopped by the timeout is resumed by the next one.
+     */
+    @Override
+    public Frame read(long timeout, TimeUnit unit) throws TimeoutException {
+        if (inboundHandler != null) {
+            throw new IllegalStateException("The channel is read by an event loop");
+        }
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        Socket socket = channel.socket();
+        int socketTimeout;
+        try {
+            socketTimeout = socket.getSoTimeout();
+        } catch (SocketException e) {
+            throw new StompException(e);
+        }
+        try {
+            while (true) {
+                Frame frame = decoder.decode(readBuffer);
+                if (frame != null) {
+                    return frame;
+                }
+                long remainingNanos = deadline - System.nanoTime();
+                if (remainingNanos <= 0) {
+                    throw new TimeoutException("No frame received in " + timeout + " " + unit);
+                }
+                // Rounded up, so a short timeout still reads the bytes already received
+                long remainingMillis = TimeUnit.NANOSECONDS.toMillis(remainingNanos + TimeUnit.MILLISECONDS.toNanos(1) - 1);
+                socket.setSoTimeout((int) Math.min(remainingMillis, Integer.MAX_VALUE));
+                if (fillReadBuffer(true) == -1) {
+                    throw new StompException("End of stream reached");
+                }
+            }
+        } catch (SocketTimeoutException e) {
+            throw new TimeoutException("No frame received in " + timeout + " " + unit);
+        } catch (IOException e) {
+            throw new StompException(e);
+        } finally {
+            try {
+                socket.setSoTimeout(socketTimeout);
+            } catch (SocketException e) {
+                LOGGER.warn("Can't restore the socket timeout: {}", e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Read the channel into the read buffer, grown if a header line doesn't fit in it, up to the maximum frame size.
+     *
+     * @param timed <code>true</code> to honor the socket timeout
+     * @return the number of bytes read, -1 at the end of the stream
+     */
+    private int fillReadBuffer(boolean timed) throws IOException {
+        if ((readBuffer.remaining() == readBuffer.capacity()) && (readBuffer.capacity() >= maxFrameSize)) {
+            throw new StompException("A header line exceeds the maximum frame size of " + maxFrameSize + " bytes");
+        }
+        readBuffer.compact();
+        if (!readBuffer.hasRemaining()) {
+            ByteBuffer newBuffer = ByteBuffer.allocateDirect(readBuffer.capacity() * 2);
+            readBuffer.flip();
+            newBuffer.put(readBuffer);
+            readBuffer = newBuffer;
+            LOGGER.debug("Read buffer grown to {} bytes", readBuffer.capacity());
+        }
+        int read;
+        try {
+            if (timed) {
+                // A blocking channel read doesn't honor the socket timeout, the stream of the socket does
+                if ((timedReadBytes == null) || (timedReadBytes.length < readBuffer.remaining())) {
+                    timedReadBytes = new byte[readBuffer.remaining()];
+                }
+                read = channel.socket().getInputStream().read(timedReadBytes, 0, readBuffer.remaining());
+                if (read > 0) {
+                    readBuffer.put(timedReadBytes, 0, read);
+                }
+            } else {
+                read = channel.read(readBuffer);
+            }
+        } finally {
+            // Ready to be read again, even after a timeout
+            readBuffer.flip();
+        }
+        if (read > 0) {
+            readBytes += read;
+        }
+        return read;
+    }
+
+    /**
+     * Hand the channel to an event loop. The frames already received are pushed to the handler once registered.
+     *
+     * @param eventLoop the loop which will read the channel
+     * @param handler   the receiver of the frames
+     * @throws IOException if the channel can't be non-blocking
+     */
+    void register(EventLoop eventLoop, InboundHandler handler) throws IOException {
+        this.inboundHandler = handler;
+        channel.configureBlocking(false);
+        eventLoop.register(this);
+    }
+
+    /**
+     * Called by the event loop once the channel is registered.
+     */
+    void registered(SelectionKey key) {
+        synchronized (writable) {
+            this.selectionKey = key;
+            updateInterestOps();
+        }
+        dispatchFrames();
+    }
+
+    /**
+     * Stop selecting the channel for reading, see {@link ReadFlowControl}. The frames already read are still dispatched.
+     */
+    void pauseReading() {
+        synchronized (writable) {
+            readingPaused = true;
+            updateInterestOps();
+        }
+    }
+
+    void resumeReading() {
+        synchronized (writable) {
+            readingPaused = false;
+            updateInterestOps();
+        }
+    }
+
+    /**
+     * Called with the writable monitor.
+     */
+    private void updateInterestOps() {
+        SelectionKey key = selectionKey;
+        if ((key == null) || !key.isValid()) {
+            return;
+        }
+        key.interestOps((readingPaused ? 0 : SelectionKey.OP_READ) | (writeWaiting ? SelectionKey.OP_WRITE : 0));
+        key.selector().wakeup();
+    }
+
+    /**
+     * Called by the event loop when the channel has bytes to read.
+     */
+    void onReadable() {
+        try {
+            int read = fillReadBuffer(false);
+            dispatchFrames();
+            if (read == -1) {
+                onClose(new StompException("End of stream reached"));
+            }
+        } catch (IOException e) {
+            onClose(new StompException(e));
+        } catch (StompException e) {
+            onClose(e);
+        }
+    }
+
+    private void dispatchFrames() {
+        Frame frame;
+        while ((frame = decoder.decode(readBuffer)) != null) {
+            try {
+                inboundHandler.onFrame(frame);
+            } catch (RuntimeException e) {
+                LOGGER.error("Frame listener failed on " + frame, e);
+            }
+        }
+    }
+
+    /**
+     * Called by the event loop when the channel can be written again. The bytes left by a loop thread are written first, the writers waiting
+     * for the channel are woken up once they are all written.
+     */
+    void onWritable() {
+        IOException failure = null;
+        synchronized (writable) {
+            if (pendingWrite != null) {
+                try {
+                    channel.write(pendingWrite);
+                } catch (IOException e) {
+                    failure = e;
+                }
+                if ((failure == null) && pendingWrite.hasRemaining()) {
+                    return;
+                }
+                pendingWrite = null;
+            }
+            writeWaiting = false;
+            updateInterestOps();
+            writable.notifyAll();
+        }
+        if (failure != null) {
+            onClose(new StompException("Can't write the frames", failure));
+        }
+    }
+
+    void onClose(StompException cause) {
+        SelectionKey key = selectionKey;
+        if (key != null) {
+            key.cancel();
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            LOGGER.warn("Can't close the channel: {}", e.getMessage());
+        }
+        inboundHandler.onClose(cause);
+    }
+
+    @Override
+    public void write(Frame frame) throws IOException {
+        if (encoder.encode(frame) || (encoder.pending() >= writeBufferSize)) {
+            flush();
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (encoder.pending() == 0) {
+            return;
+        }
+        ByteBuffer[] buffers = encoder.buffers();
+        ByteBuffer last = buffers[buffers.length - 1];
+        try {
+            if ((selectionKey != null) && EventLoop.isEventLoopThread()) {
+                writeOrKeep(buffers);
+                return;
+            }
+            if (selectionKey != null) {
+                synchronized (writable) {
+                    while (pendingWrite != null) {
+                        awaitWritable();
+                    }
+                }
+            }
+            while (last.hasRemaining()) {
+                if ((channel.write(buffers) == 0) && last.hasRemaining() && (selectionKey != null)) {
+                    awaitWritable();
+                }
+            }
+        } finally {
+            encoder.clear();
+        }
+    }
+
+    /**
+     * Write what the socket takes without waiting, and keep the rest for the loop of the channel. Called by a loop thread.
+     */
+    private void writeOrKeep(ByteBuffer[] buffers) throws IOException {
+        ByteBuffer last = buffers[buffers.length - 1];
+        synchronized (writable) {
+            if (pendingWrite == null) {
+                while (last.hasRemaining() && (channel.write(buffers) > 0)) {
+                    // Written until the socket buffer is full
+                }
+                if (!last.hasRemaining()) {
+                    return;
+                }
+            }
+            int remaining = (pendingWrite == null) ? 0 : pendingWrite.remaining();
+            for (ByteBuffer buffer : buffers) {
+                remaining += buffer.remaining();
+            }
+            ByteBuffer kept = ByteBuffer.allocate(remaining);
+            if (pendingWrite != null) {
+                kept.put(pendingWrite);
+            }
+            for (ByteBuffer buffer : buffers) {
+                kept.put(buffer);
+            }
+            kept.flip();
+            pendingWrite = kept;
+            writeWaiting = true;
+            try {
+                updateInterestOps();
+            } catch (CancelledKeyException e) {
+                throw new ClosedChannelException();
+            }
+        }
+    }
+
+    @Override
+    public void writeHeartBeat() throws IOException {
+        encoder.encodeHeartBeat();
+    }
+
+    @Override
+    public long writtenBytes() {
+        return encoder.encodedBytes();
+    }
+
+    @Override
+    public long readBytes() {
+        return readBytes;
+    }
+
+    /**
+     * Wait for the event loop to see the non-blocking channel writable. Never called by a loop thread.
+     */
+    private void awaitWritable() throws IOException {
+        synchronized (writable) {
+            writeWaiting = true;
+            try {
+                updateInterestOps();
+            } catch (CancelledKeyException e) {
+                throw new ClosedChannelException();
+            }
+            if (!selectionKey.isValid()) {
+                throw new ClosedChannelException();
+            }
+            try {
+                writable.wait(WRITABLE_WAIT_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the channel to be writable");
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -1,5 +1,33 @@
 package fr.xebia.stomp.client;
 
+import java.nio.charset.Charset;
+
 public enum Command {
-	CONNECT, MESSAGE, RECEIPT, SEND, CONNECTED, SUBSCRIBE, ERROR, UNSUBSCRIBE, ACK, NACK, BEGIN, COMMIT, ABORT
+	CONNECT, MESSAGE, RECEIPT, SEND, CONNECTED, SUBSCRIBE, ERROR, UNSUBSCRIBE, ACK, NACK, BEGIN, COMMIT, ABORT;
+
+	private static final Command[] VALUES = values();
+
+	// The command name encoded once, commands are ASCII
+	private final byte[] bytes = name().getBytes(Charset.forName("US-ASCII"));
+
+	byte[] bytes() {
+		return bytes;
+	}
+
+	/**
+	 * Find the command written in a buffer, without decoding it.
+	 * 
+	 * @param buffer the buffer
+	 * @param start the index of the first byte of the command
+	 * @param end the index after the last byte of the command
+	 * @return the command or <code>null</code> if the bytes are not a command
+	 */
+	static Command of(byte[] buffer, int start, int end) {
+		for (Command command : VALUES) {
+			if (Headers.equals(command.bytes, buffer, start, end)) {
+				return command;
+			}
+		}
+		return null;
+	}
 }
@@ -7,25 +7,90 @@ import org.slf4j.LoggerFactory;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.net.Socket;
 import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class Connection implements Closeable {
-    private final Socket socket;
-    private final FrameInputStream stompInputStream;
+    // Replaced when a resilient connection reconnects
+    private volatile Transport transport;
 
     private final static Logger LOGGER = LoggerFactory.getLogger(Connection.class);
 
-    private ExecutorService executorService = Executors.newSingleThreadExecutor();
+    // Frames sent and not written yet. The producers only enqueue, the thread holding the writer flag writes them all.
+    private final ConcurrentLinkedQueue<Frame> outbound = new ConcurrentLinkedQueue<Frame>();
+    private final AtomicBoolean writing = new AtomicBoolean();
+    private volatile boolean flushRequested = false;
+    private volatile boolean timerFlushRequested = false;
+    private volatile boolean heartBeatRequested = false;
+    private volatile StompException writeFailure;
+    // The time of the last write on the socket, for the outgoing heart-beats
+    private volatile long lastWriteNanos = System.nanoTime();
+
+    // Runs the writes requested by the timers, so a blocked socket doesn't stall the timers shared by all the connections
+    static final Executor TIMER_WRITES = ReceiveExecutor.sharedExecutor("stomp-timer-write-");
+
+    // The wait of a reconnection for the writer of the lost transport
+    private static final long WRITER_RELEASE_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(5);
+    private static final long MAX_WRITER_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    // Write state, only used by the thread holding the writer flag
+    private final BatchStats batchStats = new BatchStats();
+    private volatile WriteBatcher writeBatcher;
+    private int batchFrames = 0;
+    private long batchStart = 0;
+
+    // Held by the thread reading a transport without reader thread or event loop
+    private final ReentrantLock readLock = new ReentrantLock();
+
+    // Created at the first asynchronous receive of a blocking transport, shut down on close
+    private Executor receiveExecutorDelegate = ReceiveExecutor.SHARED;
+    private ReceiveExecutor receiveExecutor;
+
+    // Set when the connection is read by an event loop or a reader thread, which routes the frames
+    private volatile FrameDispatcher dispatcher;
+
+    // Paused while a subscription queue is above its high watermark, see FrameBuilder.SubscribeBuilder#prefetch(int)
+    private final ReadFlowControl readFlowControl = new ReadFlowControl();
+
+    // The ack mode of the subscriptions, by subscription id
+    private final ConcurrentHashMap<String, String> ackModes = new ConcurrentHashMap<String, String>();
+
+    // Created at the first asynchronous send
+    private static final int DEFAULT_RECEIPT_WINDOW_SIZE = 128;
+    private int receiptWindowSize = DEFAULT_RECEIPT_WINDOW_SIZE;
+    private ReceiptWindow receiptWindow;
+
+    // Set when heart-beats are negotiated
+    private HeartBeat heartBeat;
+
+    // Set when the connection is read by an event loop of the group
+    private EventLoopGroup eventLoopGroup;
+
+    // Set in resilient mode, see FrameBuilder.ConnectBuilder#reconnect(long, long, TimeUnit, int)
+    private volatile Reconnector reconnector;
+    private volatile boolean reconnecting = false;
+    private volatile boolean closed = false;
+    private static final AtomicInteger READER_COUNT = new AtomicInteger();
+    private static final AtomicInteger TRANSACTION_COUNT = new AtomicInteger();
 
     protected Connection(Socket socket, Object... socketParams) {
-        this.socket = socket;
-        fillSocketParameters(socket, socketParams);
-        stompInputStream = new FrameInputStream(socket);
+        this(new SocketTransport(socket), socketParams);
+    }
+
+    Connection(Transport transport, Object... socketParams) {
+        this.transport = transport;
+        fillSocketParameters(transport.socket(), socketParams);
     }
 
-    private void fillSocketParameters(Socket socket, Object... socketParams) {
+    static void fillSocketParameters(Socket socket, Object... socketParams) {
         if ((socketParams == null) || (socketParams.length == 0)) {
             return;
         }
@@ -75,28 +140,529 @@ public class Connection implements Closeable {
     }
 
     /**
-     * Send a frame with a command {@link Command#SEND}.
+     * Send a frame with a command {@link Command#SEND}. In batching mode, the frame is flushed with the next frames, see
+     * {@link FrameBuilder.ConnectBuilder#batching(int, long, TimeUnit)}.
+     * <p/>
+     * Several threads can send on the same connection. The frame is queued, then written by the sending thread if no other thread is writing,
+     * otherwise by the writing thread with its own frames. So the frames of one thread are written in order, and no thread waits for the socket
+     * written by another one.
+     * <p/>
+     * In resilient mode, the frames sent while the connection is lost are buffered until it is connected again.
+     * <p/>
+     * So a returned send means a queued frame, not a written nor a received one. If a write fails, the frames queued by all the senders are dropped:
+     * the next sends fail with the number of dropped frames, and the futures of {@link #sendAsync(Frame)} fail. Use a receipt to know that the
+     * server received a frame.
      *
      * @param frame frame to sent
-     * @throws StompException       if the command is not {@link Command#SEND}
+     * @throws StompException       if the command is not {@link Command#SEND}, if a previous frame couldn't be written or if the buffer of a
+     *                              resilient connection is full
      * @throws NullPointerException if the frame is <code>null</code>
      */
     public void send(Frame frame) {
         if (frame == null) {
             throw new NullPointerException("Can't send a frame null");
         }
-        if ((frame.message == null) || (frame.message.length() == 0)) {
+        enqueue(contentLength(frame));
+        write();
+    }
+
+    private static Frame contentLength(Frame frame) {
+        if (frame.messageLength() == 0) {
             // An empty message must contain "content-length header
             // see http://stomp.github.com/stomp-specification-1.1.html#Header_content-length
-            frame.header.put("content-length", "0");
+            return frame.withHeader(Headers.CONTENT_LENGTH, "0");
+        }
+        return frame;
+    }
+
+    /**
+     * Queue the frames of a transaction together, all of them or none: a commit which can't be queued leaves no BEGIN nor SEND without its COMMIT
+     * in the queue. They are written at the next {@link #flush()}, see {@link Transaction#commit()}.
+     *
+     * @throws StompException if a previous frame couldn't be written or if the buffer of a resilient connection can't take them all, nothing is
+     *                        queued
+     */
+    void enqueueAll(List<Frame> frames) {
+        List<Frame> queued = new ArrayList<Frame>(frames.size());
+        for (Frame frame : frames) {
+            queued.add(contentLength(frame));
+        }
+        checkWritable();
+        if (reconnecting && !reconnector.buffer(queued.size())) {
+            throw new StompException("Can't send the " + queued.size() + " frames, the connection is lost and " + reconnectStats().bufferedFrames()
+                    + " frames are already buffered");
+        }
+        outbound.addAll(queued);
+    }
+
+    /**
+     * Queue the frames together, the last one with a receipt, see {@link #enqueueAll(List)} and {@link #sendAsync(Frame)}.
+     *
+     * @return the future of the RECEIPT frame of the last frame
+     * @throws StompException if the frames can't be queued, nothing is queued
+     */
+    CompletableFuture<Frame> enqueueAllAsync(List<Frame> frames) {
+        int lastIndex = frames.size() - 1;
+        ReceiptWindow localReceiptWindow = receiptWindow();
+        String receiptId = localReceiptWindow.receiptOf(frames.get(lastIndex));
+        CompletableFuture<Frame> receipt = localReceiptWindow.register(receiptId);
+        List<Frame> sent = new ArrayList<Frame>(frames);
+        sent.set(lastIndex, frames.get(lastIndex).withHeader(Headers.RECEIPT, receiptId));
+        try {
+            enqueueAll(sent);
+        } catch (StompException e) {
+            localReceiptWindow.fail(receiptId, e);
+            throw e;
+        }
+        return receipt;
+    }
+
+    /**
+     * Queue a frame, written with the next frames or at the next {@link #flush()}.
+     */
+    void enqueue(Frame frame) {
+        checkWritable();
+        if (reconnecting && !reconnector.buffer()) {
+            throw new StompException("Can't send the frame, the connection is lost and " + reconnectStats().bufferedFrames()
+                    + " frames are already buffered");
+        }
+        outbound.add(frame);
+    }
+
+    /**
+     * Send a frame with a receipt header and get its RECEIPT frame asynchronously. A receipt id is generated if the frame has none. At most the
+     * receipt window size of frames wait for their receipt, see {@link FrameBuilder.ConnectBuilder#receiptWindow(int)}: this method waits for a
+     * receipt if the window is full. So the frames are confirmed by the server, but are not sent one at a time.
+     * <p/>
+     * A listener can't wait for a receipt: the thread reading the connection would wait for the receipts it reads, and the listener of a
+     * subscription with a prefetch window for a reading paused while it doesn't consume. So on these threads, the send fails if the window is full
+     * and the future fails instead of waiting.
+     * <p/>
+     * The future is completed by the thread reading the connection, or exceptionally by an ERROR frame with the receipt id or if the connection
+     * is closed or lost.
+     *
+     * @param frame the frame to send
+     * @return the future of the RECEIPT frame
+     * @throws StompException if the window is full and the calling thread calls the listeners
+     */
+    public CompletableFuture<Frame> sendAsync(Frame frame) {
+        if (frame == null) {
+            throw new NullPointerException("Can't send a frame null");
+        }
+        ReceiptWindow localReceiptWindow = receiptWindow();
+        String receiptId = localReceiptWindow.receiptOf(frame);
+        CompletableFuture<Frame> receipt = localReceiptWindow.register(receiptId);
+        try {
+            send(frame.withHeader(Headers.RECEIPT, receiptId));
+        } catch (StompException e) {
+            localReceiptWindow.fail(receiptId, e);
+        }
+        return receipt;
+    }
+
+    /**
+     * @return the number of frames sent with {@link #sendAsync(Frame)} and waiting for their receipt
+     */
+    public int receiptsInFlight() {
+        ReceiptWindow localReceiptWindow;
+        synchronized (this) {
+            localReceiptWindow = receiptWindow;
+        }
+        return (localReceiptWindow == null) ? 0 : localReceiptWindow.inFlight();
+    }
+
+    /**
+     * The receipts are routed by the dispatcher, so a blocking connection is read by a reader thread from the first asynchronous send.
+     */
+    private synchronized ReceiptWindow receiptWindow() {
+        if (receiptWindow == null) {
+            FrameDispatcher localDispatcher = dispatcher();
+            receiptWindow = new ReceiptWindow(receiptWindowSize, localDispatcher);
+            localDispatcher.receipts(receiptWindow);
+        }
+        return receiptWindow;
+    }
+
+    /**
+     * See {@link FrameBuilder.ConnectBuilder#receiptWindow(int)}.
+     */
+    synchronized void receiptWindowSize(int receiptWindowSize) {
+        this.receiptWindowSize = receiptWindowSize;
+    }
+
+    /**
+     * Write the frames waiting in the batch. If another thread is writing, it flushes them before releasing the writer flag.
+     */
+    public void flush() {
+        checkWritable();
+        flushRequested = true;
+        write();
+    }
+
+    /**
+     * Flush the batch, called by the batching timer once the oldest frame waited for the maximum latency.
+     */
+    void flushOnTimer() {
+        timerFlushRequested = true;
+        writeLater();
+    }
+
+    /**
+     * Write the queued frames and the requested flushes on the timer writes executor, unless another thread is writing.
+     */
+    private void writeLater() {
+        TIMER_WRITES.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    write();
+                } catch (StompException e) {
+                    LOGGER.error("Can't write the frames", e);
+                }
+            }
+        });
+    }
+
+    private void checkWritable() {
+        StompException failure = writeFailure;
+        if (failure != null) {
+            throw new StompException("Can't send the frame, the connection failed", failure);
+        }
+    }
+
+    /**
+     * Write the queued frames and the requested flushes if no other thread is writing. The queue is checked again after releasing the writer flag,
+     * so a frame queued while the writer was finishing is not left behind.
+     */
+    private void write() {
+        while (!reconnecting && writing.compareAndSet(false, true)) {
+            Transport writtenTransport = transport;
+            try {
+                writeOutbound();
+            } catch (IOException e) {
+                if ((reconnector != null) && !closed) {
+                    // The frames written and not flushed are lost, the queued ones are written once reconnected
+                    reconnector.stats().recordLost(batchFrames);
+                    batchFrames = 0;
+                    connectionLost(writtenTransport, new StompException("Can't send the frame", e));
+                    return;
+                }
+                throw writeFailed(e);
+            } finally {
+                writing.set(false);
+            }
+            if (outbound.isEmpty() && !flushRequested && !timerFlushRequested && !heartBeatRequested) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Fail the connection, called with the writer flag. The frames queued by the other senders, whose send returned, are dropped with the frames
+     * written and not flushed: they are counted in the failure, and the pending receipts fail with it.
+     *
+     * @return the failure, thrown to the writer and to the next senders
+     */
+    private StompException writeFailed(IOException cause) {
+        // Set first, so no frame is queued once the queue is drained
+        writeFailure = new StompException("Can't send the frame", cause);
+        int lost = batchFrames;
+        batchFrames = 0;
+        while (outbound.poll() != null) {
+            lost++;
+        }
+        StompException failure = new StompException("Can't send the frames, " + lost + " frames sent and not written", cause);
+        writeFailure = failure;
+        LOGGER.error("Can't send the frames, {} frames dropped", lost, cause);
+        ReceiptWindow localReceiptWindow;
+        synchronized (this) {
+            localReceiptWindow = receiptWindow;
+        }
+        if (localReceiptWindow != null) {
+            localReceiptWindow.failAll(failure);
+        }
+        return failure;
+    }
+
+    /**
+     * Called with the writer flag.
+     */
+    private void writeOutbound() throws IOException {
+        boolean flush = flushRequested;
+        flushRequested = false;
+        boolean flushOnTimer = timerFlushRequested;
+        timerFlushRequested = false;
+        boolean sendHeartBeat = heartBeatRequested;
+        heartBeatRequested = false;
+
+        WriteBatcher localWriteBatcher = writeBatcher;
+        Frame frame;
+        Reconnector localReconnector = reconnector;
+        while ((frame = outbound.poll()) != null) {
+            batchFrames++;
+            transport.write(frame);
+            if (localReconnector != null) {
+                localReconnector.written(frame);
+            }
+            if ((localWriteBatcher != null) && ((transport.writtenBytes() - batchStart) >= localWriteBatcher.maxBatchBytes)) {
+                flushBatch(true, false);
+            }
+        }
+        if ((localWriteBatcher == null) || flush) {
+            // Without batching, the frames queued by the concurrent senders are flushed together
+            flushBatch(false, false);
+        } else if (flushOnTimer) {
+            flushBatch(false, true);
+        } else if (batchFrames > 0) {
+            localWriteBatcher.schedule(this);
+        }
+        if (sendHeartBeat && (batchFrames == 0)) {
+            // No heart-beat if frames are waiting in the batch, they are flushed soon
+            transport.writeHeartBeat();
+            transport.flush();
+            lastWriteNanos = System.nanoTime();
+            batchStart = transport.writtenBytes();
+        }
+    }
+
+    private void flushBatch(boolean onSize, boolean onTimer) throws IOException {
+        WriteBatcher localWriteBatcher = writeBatcher;
+        if (localWriteBatcher != null) {
+            localWriteBatcher.cancel();
+        }
+        if (batchFrames == 0) {
+            return;
+        }
+        // Recorded before the flush, so the statistics are up to date once the frames are received
+        long written = transport.writtenBytes();
+        batchStats.record(batchFrames, (int) (written - batchStart), onSize, onTimer);
+        batchFrames = 0;
+        batchStart = written;
+        transport.flush();
+        lastWriteNanos = System.nanoTime();
+    }
+
+    /**
+     * Write a heart-beat, called by the heart-beat timer when nothing was written during the outgoing interval. The heart-beat is written by
+     * another thread.
+     */
+    void sendHeartBeat() {
+        checkWritable();
+        heartBeatRequested = true;
+        writeLater();
+    }
+
+    /**
+     * @return the {@link System#nanoTime()} of the last write on the socket, heart-beats included
+     */
+    long lastWriteNanos() {
+        return lastWriteNanos;
+    }
+
+    /**
+     * @return the number of bytes received, heart-beats included
+     */
+    long readBytes() {
+        return transport.readBytes();
+    }
+
+    /**
+     * Send and check the heart-beats, see {@link FrameBuilder.ConnectBuilder#heartBeat(long, long, TimeUnit)}. The incoming heart-beats are
+     * consumed by a reader, so a blocking connection is read by a reader thread from now on.
+     *
+     * @param outgoingMillis the negotiated interval between the outgoing heart-beats, 0 for none
+     * @param incomingMillis the negotiated interval between the incoming heart-beats, 0 for none
+     */
+    synchronized void heartBeat(long outgoingMillis, long incomingMillis) {
+        if ((outgoingMillis == 0) && (incomingMillis == 0)) {
+            return;
+        }
+        if (incomingMillis > 0) {
+            dispatcher();
+        }
+        heartBeat = new HeartBeat(this, outgoingMillis, incomingMillis);
+        heartBeat.start();
+    }
+
+    /**
+     * Close the connection without flushing it, after a failure like a missing heart-beat. The next sends and receives throw the cause.
+     */
+    void fail(StompException cause) {
+        if ((reconnector != null) && !closed) {
+            connectionLost(transport, cause);
+            return;
+        }
+        LOGGER.error("Connection failed: {}", cause.getMessage());
+        writeFailure = cause;
+        stopHeartBeat();
+        // The receivers get the cause rather than the error of the closed transport
+        FrameDispatcher localDispatcher = dispatcher;
+        if (localDispatcher != null) {
+            localDispatcher.onClose(cause);
+        }
+        try {
+            transport.close();
+        } catch (IOException e) {
+            LOGGER.warn("Can't close the connection: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Called when a transport is closed by the server or by an error. A resilient connection reconnects, otherwise the receivers get the cause.
+     */
+    void transportClosed(Transport closedTransport, StompException cause) {
+        if ((reconnector != null) && !closed) {
+            connectionLost(closedTransport, cause);
+            return;
+        }
+        FrameDispatcher localDispatcher = dispatcher;
+        if (localDispatcher != null) {
+            // Closed by close(): the reader sees the closed socket before the dispatcher is closed
+            localDispatcher.onClose(closed ? new StompException("Connection closed", cause) : cause);
+        }
+    }
+
+    private void connectionLost(Transport lostTransport, StompException cause) {
+        synchronized (this) {
+            if (closed || reconnecting || (lostTransport != transport)) {
+                return;
+            }
+            reconnecting = true;
         }
+        stopHeartBeat();
         try {
-            socket.getOutputStream().write(frame.getBytes());
-            socket.getOutputStream().flush();
+            lostTransport.close();
         } catch (IOException e) {
-            LOGGER.error("Can't send the frame " + frame, e);
-            throw new StompException("Can't send the frame", e);
+            LOGGER.warn("Can't close the lost connection: {}", e.getMessage());
         }
+        ReceiptWindow localReceiptWindow;
+        synchronized (this) {
+            localReceiptWindow = receiptWindow;
+        }
+        if (localReceiptWindow != null) {
+            // The receipts of the lost connection won't come
+            localReceiptWindow.failAll(cause);
+        }
+        reconnector.start(this, cause);
+    }
+
+    /**
+     * Use a new transport, connected by the reconnector. The subscriptions are written again, then the frames buffered during the outage.
+     *
+     * @param newTransport the transport, after its CONNECT and CONNECTED frames
+     * @param connected    the CONNECTED frame
+     * @throws IOException if the subscriptions can't be written
+     */
+    void reconnected(Transport newTransport, Frame connected) throws IOException {
+        awaitWriter();
+        try {
+            for (Frame subscription : reconnector.subscriptions()) {
+                newTransport.write(subscription);
+            }
+            newTransport.flush();
+            lastWriteNanos = System.nanoTime();
+            transport = newTransport;
+            batchFrames = 0;
+            batchStart = newTransport.writtenBytes();
+        } finally {
+            writing.set(false);
+        }
+        synchronized (this) {
+            if (closed) {
+                newTransport.close();
+                return;
+            }
+            if (eventLoopGroup != null) {
+                readFlowControl.readBy((ChannelTransport) newTransport);
+                EventLoop eventLoop = eventLoopGroup.next();
+                dispatcher.readBy(eventLoop);
+                ((ChannelTransport) newTransport).register(eventLoop, inboundHandler(newTransport));
+            } else {
+                startReader(newTransport);
+            }
+        }
+        long[] heartBeatIntervals = HeartBeat.negotiate(reconnector.heartBeat(), connected.header.get(Headers.HEART_BEAT));
+        heartBeat(heartBeatIntervals[0], heartBeatIntervals[1]);
+        reconnecting = false;
+        reconnector.resetBuffer();
+        write();
+    }
+
+    /**
+     * Take the writer flag from the writer of the lost transport. The lost transport is closed, so its writes fail at once and the writer releases
+     * the flag shortly: wait with a growing park, up to {@link #WRITER_RELEASE_TIMEOUT_NANOS}.
+     *
+     * @throws IOException if the writer still holds the flag, so the reconnector tries again later
+     */
+    private void awaitWriter() throws IOException {
+        long parkNanos = TimeUnit.MICROSECONDS.toNanos(10);
+        long deadline = System.nanoTime() + WRITER_RELEASE_TIMEOUT_NANOS;
+        while (!writing.compareAndSet(false, true)) {
+            if (System.nanoTime() - deadline >= 0) {
+                throw new IOException("The writer of the lost connection still writes");
+            }
+            if (Thread.currentThread().isInterrupted()) {
+                throw new InterruptedIOException("Interrupted while the writer of the lost connection finishes");
+            }
+            LockSupport.parkNanos(parkNanos);
+            parkNanos = Math.min(MAX_WRITER_PARK_NANOS, parkNanos * 2);
+        }
+    }
+
+    /**
+     * Reconnect when the connection is lost, see {@link FrameBuilder.ConnectBuilder#reconnect(long, long, TimeUnit, int)}. The connection is read
+     * by a reader thread, if it is not read by an event loop, so the loss is seen even without receiving.
+     */
+    void resilient(Reconnector reconnector) {
+        this.reconnector = reconnector;
+        dispatcher();
+    }
+
+    /**
+     * @return the statistics of the reconnections, <code>null</code> if the connection is not resilient
+     */
+    public ReconnectStats reconnectStats() {
+        Reconnector localReconnector = reconnector;
+        return (localReconnector == null) ? null : localReconnector.stats();
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * A cheap check without I/O: the connection is not closed and didn't fail. A resilient connection which is reconnecting stays usable.
+     */
+    boolean isUsable() {
+        if (closed || (writeFailure != null)) {
+            return false;
+        }
+        if (reconnecting) {
+            return true;
+        }
+        FrameDispatcher localDispatcher = dispatcher;
+        return !transport.socket().isClosed() && ((localDispatcher == null) || !localDispatcher.inbox().isClosed());
+    }
+
+    private synchronized void stopHeartBeat() {
+        if (heartBeat != null) {
+            heartBeat.stop();
+            heartBeat = null;
+        }
+    }
+
+    /**
+     * Batch the next frames, see {@link FrameBuilder.ConnectBuilder#batching(int, long, TimeUnit)}.
+     */
+    void batching(WriteBatcher writeBatcher) {
+        this.writeBatcher = writeBatcher;
+    }
+
+    /**
+     * @return the statistics of the batches written by this connection
+     */
+    public BatchStats batchStats() {
+        return batchStats;
     }
 
     /**
@@ -114,20 +680,92 @@ public class Connection implements Closeable {
 
     public void unsubscribe(String clientId) {
         FrameBuilder.unsubscribe(this).to(clientId);
+        ackModes.remove(clientId);
+        FrameDispatcher localDispatcher = dispatcher;
+        if (localDispatcher != null) {
+            localDispatcher.unsubscribe(clientId);
+        }
     }
 
     public Frame receive() {
-        return stompInputStream.read();
+        FrameDispatcher localDispatcher = dispatcher;
+        if (localDispatcher == null) {
+            readLock.lock();
+            try {
+                // A reader thread may have been started while waiting for the lock
+                localDispatcher = dispatcher;
+                if (localDispatcher == null) {
+                    return transport.read();
+                }
+            } finally {
+                readLock.unlock();
+            }
+        }
+        return localDispatcher.inbox().take();
     }
 
     /**
-     * Waiting for at most the given time a new message. Two cases should be observed if a timeout is reached.
-     * <p/>
-     * Firstly the server has never sent the waited frame. So there is nothing to do except to attempt to wait again the new message.
+     * Receive the next frame through a view reused from frame to frame. Without reader thread or event loop, the frame is read in place in the
+     * read buffer of the blocking transport: its header values and its message are not copied, so a consumer reading only a few headers and the
+     * message bytes allocates nothing per frame. The view is valid only during the call of the listener, see {@link FrameView#copy()}.
      * <p/>
-     * Secondly the frame reception has started but not finished before the timeout. If the socket timeout has not been reached, this connection
-     * continues to waiting for the remained part of the message. So several problems, hard to predict, can occur if client calls again the receive
-     * method.
+     * Otherwise the frame is already decoded, and the view is backed by it.
+     *
+     * @param listener the listener, called by this thread
+     */
+    public void receive(FrameViewListener listener) {
+        FrameDispatcher localDispatcher = dispatcher;
+        if (localDispatcher == null) {
+            readLock.lock();
+            try {
+                localDispatcher = dispatcher;
+                if (localDispatcher == null) {
+                    transport.read(listener);
+                    return;
+                }
+            } finally {
+                readLock.unlock();
+            }
+        }
+        new FrameView().deliver(localDispatcher.inbox().take(), listener);
+    }
+
+    /**
+     * Take the next message of a subscription with a prefetch window, see {@link FrameBuilder.SubscribeBuilder#prefetch(int)}.
+     *
+     * @param subscription the subscription id
+     * @return the next MESSAGE frame of the subscription
+     */
+    public Frame receive(String subscription) {
+        return subscriptionQueue(subscription).take();
+    }
+
+    /**
+     * Wait for at most the given time the next message of a subscription with a prefetch window.
+     *
+     * @param subscription the subscription id
+     * @param timeout      the maximum time to wait
+     * @param unit         the time unit of the timeout argument
+     * @return the next MESSAGE frame of the subscription
+     * @throws TimeoutException if no message is received in time
+     */
+    public Frame receive(String subscription, long timeout, TimeUnit unit) throws TimeoutException {
+        return subscriptionQueue(subscription).poll(timeout, unit);
+    }
+
+    FrameQueue subscriptionQueue(String subscription) {
+        FrameDispatcher localDispatcher = dispatcher;
+        FrameQueue subscriptionQueue = (localDispatcher == null) ? null : localDispatcher.subscriptionQueue(subscription);
+        if (subscriptionQueue == null) {
+            throw new IllegalArgumentException("No subscription " + subscription + " with a prefetch window");
+        }
+        return subscriptionQueue;
+    }
+
+    /**
+     * Waiting for at most the given time a new message. Without reader thread or event loop, the calling thread reads the transport until the
+     * deadline. If the frame reception has started but not finished before the timeout, the part already read is kept with the progress of the
+     * parsing, and the next receive resumes it: the receive can be called again, in a polling loop for instance.
      *
      * @param timeout the maximum time to wait
      * @param unit    the time unit of the timeout argument
@@ -135,33 +773,235 @@ public class Connection implements Closeable {
      * @throws TimeoutException if the timed is wait out
      */
     public Frame receive(long timeout, TimeUnit unit) throws TimeoutException {
-        Future<Frame> future = executorService.submit(new Callable<Frame>() {
-            @Override
-            public Frame call() {
-                return stompInputStream.read();
-            }
-        });
+        FrameDispatcher localDispatcher = dispatcher;
+        if (localDispatcher != null) {
+            return localDispatcher.inbox().poll(timeout, unit);
+        }
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
         try {
-            return future.get(timeout, unit);
+            if (!readLock.tryLock(timeout, unit)) {
+                throw new TimeoutException("No frame received in " + timeout + " " + unit + ", another thread is reading");
+            }
         } catch (InterruptedException e) {
             throw new StompException(e);
-        } catch (ExecutionException e) {
-            throw new StompException(e);
         }
+        try {
+            localDispatcher = dispatcher;
+            if (localDispatcher == null) {
+                return transport.read(Math.max(deadline - System.nanoTime(), 0), TimeUnit.NANOSECONDS);
+            }
+        } finally {
+            readLock.unlock();
+        }
+        return localDispatcher.inbox().poll(Math.max(deadline - System.nanoTime(), 0), TimeUnit.NANOSECONDS);
     }
 
     public Future<Frame> receiveAsync() {
-        return executorService.submit(new Callable<Frame>() {
+        FrameDispatcher localDispatcher = dispatcher;
+        if (localDispatcher != null) {
+            return localDispatcher.inbox().takeAsync();
+        }
+        return submitRead();
+    }
+
+    /**
+     * Read the next frame on the receive executor, after the reads submitted before.
+     */
+    private Future<Frame> submitRead() {
+        FutureTask<Frame> read = new FutureTask<Frame>(new Callable<Frame>() {
             @Override
             public Frame call() {
-                return stompInputStream.read();
+                // The reads of the transport take the frames of the inbox once a reader thread is started
+                return receive();
             }
         });
+        try {
+            receiveExecutor().execute(read);
+        } catch (RejectedExecutionException e) {
+            throw new StompException("Connection closed", e);
+        }
+        return read;
+    }
+
+    private synchronized ReceiveExecutor receiveExecutor() {
+        if (receiveExecutor == null) {
+            receiveExecutor = new ReceiveExecutor(receiveExecutorDelegate);
+            if (closed) {
+                receiveExecutor.shutdown();
+            }
+        }
+        return receiveExecutor;
+    }
+
+    /**
+     * See {@link FrameBuilder.ConnectBuilder#receiveExecutor(Executor)}.
+     */
+    synchronized void receiveExecutor(Executor executor) {
+        this.receiveExecutorDelegate = executor;
+    }
+
+    /**
+     * Push the received frames to a listener instead of keeping them for {@link #receive()}, except the frames routed to a subscription, receipt
+     * or error listener. The frames received before are given to the listener first. The listener is called by the thread reading the connection.
+     *
+     * @param listener the receiver of the frames
+     */
+    public void listen(FrameListener listener) {
+        dispatcher().listen(listener);
+    }
+
+    /**
+     * Push the RECEIPT frames to a listener, called by the thread reading the connection.
+     *
+     * @param listener the receiver of the receipts
+     */
+    public void onReceipt(FrameListener listener) {
+        dispatcher().onReceipt(listener);
+    }
+
+    /**
+     * Push the ERROR frames to a listener, called by the thread reading the connection.
+     *
+     * @param listener the receiver of the errors
+     */
+    public void onError(FrameListener listener) {
+        dispatcher().onError(listener);
+    }
+
+    /**
+     * Route the MESSAGE frames of a subscription to a listener, see {@link FrameBuilder.SubscribeBuilder#withListener(MessageListener)}.
+     */
+    void subscribe(String subscription, MessageListener listener) {
+        dispatcher().subscribe(subscription, listener);
+    }
+
+    /**
+     * Queue the MESSAGE frames of a subscription, see {@link FrameBuilder.SubscribeBuilder#prefetch(int)}. The reading of the connection is paused
+     * while the queue holds the prefetch number of frames, and resumed once half of them are consumed. Without a listener, the frames are taken
+     * with {@link #receive(String)}, otherwise they are given to the listener by tasks of the receive executor, see {@link SubscriptionDelivery}.
+     */
+    void subscribe(String subscription, MessageListener listener, int prefetch) {
+        FrameQueue subscriptionQueue = new FrameQueue(prefetch, prefetch / 2, readFlowControl);
+        FrameDispatcher localDispatcher = dispatcher();
+        localDispatcher.subscribe(subscription, subscriptionQueue);
+        if (listener == null) {
+            return;
+        }
+        Executor executor;
+        synchronized (this) {
+            executor = receiveExecutorDelegate;
+        }
+        new SubscriptionDelivery(subscription, subscriptionQueue, listener, localDispatcher, executor).start();
+    }
+
+    /**
+     * @return <code>true</code> while the reading is paused by a full subscription queue
+     */
+    boolean isReadingPaused() {
+        return readFlowControl.isPaused();
+    }
+
+    /**
+     * The dispatcher of the frames read by the event loop. For a blocking transport, a reader thread is started at the first call. It reads once
+     * the direct read in progress is done, and the next direct reads take the frames of the inbox.
+     */
+    private synchronized FrameDispatcher dispatcher() {
+        if (dispatcher == null) {
+            dispatcher = new FrameDispatcher();
+            startReader(transport);
+        }
+        return dispatcher;
+    }
+
+    private void startReader(final Transport readTransport) {
+        final FrameDispatcher localDispatcher = dispatcher;
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                // Wait for the direct read in progress, if any: the reads after this one see the dispatcher
+                readLock.lock();
+                readLock.unlock();
+                try {
+                    while (true) {
+                        readFlowControl.awaitResumed();
+                        Frame frame = readTransport.read();
+                        try {
+                            localDispatcher.onFrame(frame);
+                        } catch (RuntimeException e) {
+                            LOGGER.error("Frame listener failed on " + frame, e);
+                        }
+                    }
+                } catch (StompException e) {
+                    transportClosed(readTransport, e);
+                } catch (InterruptedException e) {
+                    LOGGER.debug("Reader interrupted while paused");
+                }
+            }
+        }, "stomp-reader-" + READER_COUNT.incrementAndGet());
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * Hand the reading of this connection to an event loop of the group.
+     */
+    synchronized void readBy(EventLoopGroup eventLoopGroup) throws IOException {
+        if (!(transport instanceof ChannelTransport)) {
+            throw new IllegalStateException("Only a channel transport can be read by an event loop");
+        }
+        this.eventLoopGroup = eventLoopGroup;
+        EventLoop eventLoop = eventLoopGroup.next();
+        FrameDispatcher localDispatcher = new FrameDispatcher();
+        localDispatcher.readBy(eventLoop);
+        dispatcher = localDispatcher;
+        readFlowControl.readBy((ChannelTransport) transport);
+        ((ChannelTransport) transport).register(eventLoop, inboundHandler(transport));
+    }
+
+    /**
+     * The handler given to an event loop: the frames go to the dispatcher, and the close of the transport may lead to a reconnection.
+     */
+    private InboundHandler inboundHandler(final Transport readTransport) {
+        final FrameDispatcher localDispatcher = dispatcher;
+        return new InboundHandler() {
+            @Override
+            public void onFrame(Frame frame) {
+                localDispatcher.onFrame(frame);
+            }
+
+            @Override
+            public void onClose(StompException cause) {
+                transportClosed(readTransport, cause);
+            }
+        };
     }
 
     @Override
     public void close() throws IOException {
-        socket.close();
+        closed = true;
+        Reconnector localReconnector = reconnector;
+        if (localReconnector != null) {
+            localReconnector.stop();
+        }
+        stopHeartBeat();
+        synchronized (this) {
+            if (receiveExecutor != null) {
+                receiveExecutor.shutdown();
+            }
+        }
+        try {
+            flush();
+        } catch (StompException e) {
+            LOGGER.warn("Can't flush the frames before closing: {}", e.getMessage());
+        }
+        try {
+            transport.close();
+        } finally {
+            FrameDispatcher localDispatcher = dispatcher;
+            if (localDispatcher != null) {
+                localDispatcher.onClose(new StompException("Connection closed"));
+            }
+        }
     }
 
     public void closeQuietly() {
@@ -176,6 +1016,51 @@ public class Connection implements Closeable {
         return FrameBuilder.ack(this);
     }
 
+    /**
+     * Start a transaction with a generated id. Nothing is written before the transaction is committed.
+     *
+     * @return the transaction, to commit or abort
+     */
+    public Transaction begin() {
+        return new Transaction(this, "tx-" + TRANSACTION_COUNT.incrementAndGet());
+    }
+
+    /**
+     * Start a transaction. Nothing is written before the transaction is committed.
+     *
+     * @param transactionId the transaction id, unique in this connection
+     * @return the transaction, to commit or abort
+     */
+    public Transaction begin(String transactionId) {
+        return new Transaction(this, transactionId);
+    }
+
+    /**
+     * Acknowledge the messages in batches rather than one ACK frame and one write per message, see {@link AckBatcher}.
+     *
+     * @param maxMessages the number of messages from which the acknowledgements are sent
+     * @param maxDelay    the maximum time an acknowledgement waits
+     * @param unit        the unit of maxDelay
+     * @return a new batcher, to flush before closing the connection
+     */
+    public AckBatcher batchAcks(int maxMessages, long maxDelay, TimeUnit unit) {
+        return new AckBatcher(this, maxMessages, maxDelay, unit);
+    }
+
+    /**
+     * Keep the ack mode of a subscription, for the {@link AckBatcher}.
+     */
+    void ackMode(String subscription, String ackMode) {
+        ackModes.put(subscription, ackMode);
+    }
+
+    /**
+     * @return the ack mode of the subscription, <code>null</code> if it is unknown
+     */
+    String ackMode(String subscription) {
+        return ackModes.get(subscription);
+    }
+
     public enum SocketParam {
         TIMEOUT, RECEIVE_BUFFER_SIZE
     }
@@ -0,0 +1,303 @@
+package fr.xebia.stomp.client;
+
+import fr.xebia.stomp.client.FrameBuilder.ConnectBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Connected and authenticated connections, lent to short-lived producers so they don't pay the CONNECT round trip. The connections are created
+ * by a {@link ConnectBuilder}, see {@link ConnectBuilder#pooled()}.
+ * <p/>
+ * The idle connections are kept in a lock-free stack: the last released connection is lent first, so the connections not needed any more stay at
+ * the bottom and are closed once idle for too long, down to the number of warm connections. A borrowed connection is checked without I/O, a
+ * closed or failed one is replaced. The number of lent connections is bounded by a semaphore.
+ * <p/>
+ * The pool keeps a copy of the settings of the builder, and creates each connection from its own copy, so the connections are created concurrently
+ * and don't share the state of a builder.
+ * <p/>
+ * The state of a connection is kept between its leases: a borrower should release the connection as it found it, without listeners or
+ * subscriptions.
+ */
+public class ConnectionPool implements Closeable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ConnectionPool.class);
+
+    // Never changed, only copied
+    private final ConnectBuilder settings;
+    private final String host;
+    private final int port;
+    private final Object[] socketParams;
+    private final int warm;
+    private final long idleTimeoutNanos;
+
+    private final ConcurrentLinkedDeque<Idle> idle = new ConcurrentLinkedDeque<Idle>();
+    private final Semaphore leases;
+    // Idle and lent connections
+    private final AtomicInteger size = new AtomicInteger();
+    private volatile HashedWheelTimer.Timeout evictionTimeout;
+    private volatile boolean closed = false;
+
+    private ConnectionPool(Builder builder, String host, int port, Object[] socketParams) {
+        this.settings = builder.connectBuilder.copy();
+        this.host = host;
+        this.port = port;
+        this.socketParams = socketParams;
+        this.warm = builder.warm;
+        this.idleTimeoutNanos = builder.idleTimeoutNanos;
+        this.leases = new Semaphore(builder.max);
+    }
+
+    /**
+     * Lend a connection, waiting if the maximum number of connections are lent.
+     *
+     * @param timeout the maximum time to wait for a connection
+     * @param unit    the unit of timeout
+     * @return a connection, to give back with {@link #release(Connection)}
+     * @throws TimeoutException if no connection is released in time
+     */
+    public Connection borrow(long timeout, TimeUnit unit) throws TimeoutException {
+        try {
+            if (!leases.tryAcquire(timeout, unit)) {
+                throw new TimeoutException("No connection released in " + timeout + " " + unit);
+            }
+        } catch (InterruptedException e) {
+            throw new StompException(e);
+        }
+        try {
+            return take();
+        } catch (RuntimeException e) {
+            leases.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Lend a connection, waiting as long as needed if the maximum number of connections are lent.
+     *
+     * @return a connection, to give back with {@link #release(Connection)}
+     */
+    public Connection borrow() {
+        try {
+            leases.acquire();
+        } catch (InterruptedException e) {
+            throw new StompException(e);
+        }
+        try {
+            return take();
+        } catch (RuntimeException e) {
+            leases.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Called with a lease.
+     */
+    private Connection take() {
+        if (closed) {
+            throw new StompException("The connection pool is closed");
+        }
+        Idle candidate;
+        while ((candidate = idle.pollFirst()) != null) {
+            if (candidate.connection.isUsable()) {
+                return candidate.connection;
+            }
+            LOGGER.debug("Discard a closed connection to {}:{}", host, port);
+            discard(candidate.connection);
+        }
+        return create();
+    }
+
+    /**
+     * Give back a borrowed connection. A closed or failed connection is discarded.
+     *
+     * @param connection the connection given by {@link #borrow()}
+     */
+    public void release(Connection connection) {
+        try {
+            if (closed || !connection.isUsable()) {
+                discard(connection);
+            } else {
+                idle.addFirst(new Idle(connection, System.nanoTime()));
+            }
+        } finally {
+            leases.release();
+        }
+        if (closed) {
+            // Closed while the connection was released
+            closeIdle();
+        }
+    }
+
+    /**
+     * @return the number of idle and lent connections
+     */
+    public int size() {
+        return size.get();
+    }
+
+    /**
+     * @return the number of idle connections
+     */
+    public int idle() {
+        return idle.size();
+    }
+
+    private Connection create() {
+        size.incrementAndGet();
+        try {
+            return settings.copy().to(host, port, socketParams);
+        } catch (RuntimeException e) {
+            size.decrementAndGet();
+            throw e;
+        }
+    }
+
+    private void discard(Connection connection) {
+        size.decrementAndGet();
+        connection.closeQuietly();
+    }
+
+    private void warmUp() {
+        for (int i = 0; i < warm; i++) {
+            idle.addFirst(new Idle(create(), System.nanoTime()));
+        }
+    }
+
+    private void scheduleEviction() {
+        evictionTimeout = HashedWheelTimer.SHARED.schedule(new Runnable() {
+            @Override
+            public void run() {
+                evictIdle();
+            }
+        }, Math.max(TimeUnit.NANOSECONDS.toMillis(idleTimeoutNanos) / 2, 1), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Close the connections idle for too long, from the bottom of the stack, keeping the warm ones. Run by the timer thread.
+     */
+    private void evictIdle() {
+        if (closed) {
+            return;
+        }
+        long now = System.nanoTime();
+        Iterator<Idle> iterator = idle.descendingIterator();
+        while (iterator.hasNext() && (size.get() > warm)) {
+            Idle candidate = iterator.next();
+            if ((now - candidate.releasedNanos) < idleTimeoutNanos) {
+                break;
+            }
+            if (idle.removeLastOccurrence(candidate)) {
+                LOGGER.debug("Close a connection to {}:{} idle for {}ms", new Object[] { host, port,
+                        TimeUnit.NANOSECONDS.toMillis(now - candidate.releasedNanos) });
+                discard(candidate.connection);
+            }
+        }
+        scheduleEviction();
+    }
+
+    private void closeIdle() {
+        Idle candidate;
+        while ((candidate = idle.pollFirst()) != null) {
+            discard(candidate.connection);
+        }
+    }
+
+    /**
+     * Close the idle connections. The lent connections are closed when they are released.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        HashedWheelTimer.Timeout timeout = evictionTimeout;
+        if (timeout != null) {
+            timeout.cancel();
+        }
+        closeIdle();
+    }
+
+    private static class Idle {
+        private final Connection connection;
+        private final long releasedNanos;
+
+        private Idle(Connection connection, long releasedNanos) {
+            this.connection = connection;
+            this.releasedNanos = releasedNanos;
+        }
+    }
+
+    /**
+     * Settings of a pool, see {@link ConnectBuilder#pooled()}.
+     */
+    public static class Builder {
+        private static final int DEFAULT_MAX = 8;
+        private static final long DEFAULT_IDLE_TIMEOUT_SECONDS = 60;
+
+        private final ConnectBuilder connectBuilder;
+        private int warm = 1;
+        private int max = DEFAULT_MAX;
+        private long idleTimeoutNanos = TimeUnit.SECONDS.toNanos(DEFAULT_IDLE_TIMEOUT_SECONDS);
+
+        Builder(ConnectBuilder connectBuilder) {
+            this.connectBuilder = connectBuilder;
+        }
+
+        /**
+         * @param warm the number of connections created with the pool and kept even when idle, 1 by default
+         * @return this builder
+         */
+        public Builder warm(int warm) {
+            this.warm = warm;
+            return this;
+        }
+
+        /**
+         * @param max the maximum number of lent connections, 8 by default
+         * @return this builder
+         */
+        public Builder max(int max) {
+            this.max = max;
+            return this;
+        }
+
+        /**
+         * @param idleTimeout the time after which an idle connection is closed, if there are more than the warm connections, 60s by default
+         * @param unit        the unit of idleTimeout
+         * @return this builder
+         */
+        public Builder evictIdleAfter(long idleTimeout, TimeUnit unit) {
+            this.idleTimeoutNanos = unit.toNanos(idleTimeout);
+            return this;
+        }
+
+        /**
+         * Create the pool and its warm connections.
+         *
+         * @return the pool
+         */
+        public ConnectionPool to(String host, int port, Object... socketParams) {
+            if ((warm < 0) || (max <= 0) || (warm > max)) {
+                throw new IllegalArgumentException("max should be positive and warm between 0 and max");
+            }
+            if (idleTimeoutNanos <= 0) {
+                throw new IllegalArgumentException("idleTimeout should be positive");
+            }
+            ConnectionPool pool = new ConnectionPool(this, host, port, socketParams);
+            try {
+                pool.warmUp();
+            } catch (RuntimeException e) {
+                pool.close();
+                throw e;
+            }
+            pool.scheduleEviction();
+            return pool;
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package fr.xebia.stomp.client;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A thread owning a {@link Selector}: it reads the non-blocking channels registered on it and dispatches their frames.
+ */
+class EventLoop implements Runnable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(EventLoop.class);
+    // Set on the threads of the loops
+    private static final ThreadLocal<EventLoop> CURRENT = new ThreadLocal<EventLoop>();
+
+    private final Selector selector;
+    private final Thread thread;
+    private final Queue<ChannelTransport> registrations = new ConcurrentLinkedQueue<ChannelTransport>();
+    private volatile boolean running = true;
+
+    EventLoop(String name) {
+        try {
+            this.selector = Selector.open();
+        } catch (IOException e) {
+            throw new StompException("Can't open a selector", e);
+        }
+        this.thread = new Thread(this, name);
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Register a channel, which is read by this loop from now.
+     *
+     * @param transport a transport with a non-blocking channel
+     */
+    void register(ChannelTransport transport) {
+        registrations.add(transport);
+        selector.wakeup();
+    }
+
+    /**
+     * @return <code>true</code> if the calling thread is the thread of this loop
+     */
+    boolean inEventLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * @return <code>true</code> if the calling thread is the thread of a loop, which can't wait for a channel to be writable
+     */
+    static boolean isEventLoopThread() {
+        return CURRENT.get() != null;
+    }
+
+    @Override
+    public void run() {
+        CURRENT.set(this);
+        while (running) {
+            try {
+                selector.select();
+                registerPending();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    ChannelTransport transport = (ChannelTransport) key.attachment();
+                    if (key.isValid() && key.isReadable()) {
+                        transport.onReadable();
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        transport.onWritable();
+                    }
+                }
+            } catch (IOException e) {
+                LOGGER.error("Event loop selection failed", e);
+            } catch (RuntimeException e) {
+                LOGGER.error("Unexpected error in event loop", e);
+            }
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            LOGGER.warn("Can't close the selector: {}", e.getMessage());
+        }
+    }
+
+    private void registerPending() {
+        ChannelTransport transport;
+        while ((transport = registrations.poll()) != null) {
+            try {
+                transport.registered(transport.channel().register(selector, SelectionKey.OP_READ, transport));
+            } catch (ClosedChannelException e) {
+                transport.onClose(new StompException("Channel closed before its registration", e));
+            }
+        }
+    }
+
+    void close() {
+        running = false;
+        selector.wakeup();
+    }
+}
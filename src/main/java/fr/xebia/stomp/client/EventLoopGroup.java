@@ -0,0 +1,40 @@
+package fr.xebia.stomp.client;
+
+import java.io.Closeable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A fixed number of threads reading many connections. Each connection opened with {@link FrameBuilder.ConnectBuilder#on(EventLoopGroup)} is
+ * bound to one of the threads, in turn, so the number of threads doesn't grow with the number of connections.
+ */
+public class EventLoopGroup implements Closeable {
+    private static final AtomicInteger GROUP_COUNT = new AtomicInteger();
+
+    private final EventLoop[] eventLoops;
+    private final AtomicInteger next = new AtomicInteger();
+
+    public EventLoopGroup(int threads) {
+        if (threads <= 0) {
+            throw new IllegalArgumentException("threads should be positive");
+        }
+        int group = GROUP_COUNT.incrementAndGet();
+        eventLoops = new EventLoop[threads];
+        for (int i = 0; i < threads; i++) {
+            eventLoops[i] = new EventLoop("stomp-event-loop-" + group + "-" + i);
+        }
+    }
+
+    EventLoop next() {
+        return eventLoops[(next.getAndIncrement() & Integer.MAX_VALUE) % eventLoops.length];
+    }
+
+    /**
+     * Stop the threads. The connections are not closed but not read anymore.
+     */
+    @Override
+    public void close() {
+        for (EventLoop eventLoop : eventLoops) {
+            eventLoop.close();
+        }
+    }
+}
@@ -1,34 +1,100 @@
 package fr.xebia.stomp.client;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.util.Map;
-import java.util.Map.Entry;
 
 public class Frame {
 
 	// Frame components
 	public final Command command;
-	// FIXME use immutable hashmap here
-	public final Map<String, String> header;
-	public final String message;
+	public final HeaderMap header;
+	// The message is kept as bytes, it is decoded to a string only when asked by messageAsString()
+	private final ByteBuffer body;
+	private String message;
 
 	// Constants
 	protected final static Charset UTF_8 = Charset.forName("UTF-8");
-	private final static String ENDLINE = "\n";
 	private final static String NULL = "\00";
-	protected final static String HEADER_SEPARATOR = ":";
 	protected final static byte HEADER_SEPARATOR_BYTE = ":".getBytes(UTF_8)[0]; // = 58
 	public final static byte NULL_BYTE = NULL.getBytes(UTF_8)[0]; // = 0
 	public final static byte ENDLINE_BYTE = "\n".getBytes(UTF_8)[0]; // = 10
+	// The maximum content-length of a received frame, unless set by FrameBuilder.ConnectBuilder#maxFrameSize(int)
+	protected final static int DEFAULT_MAX_FRAME_SIZE = 64 * 1024 * 1024;
 
 	public Frame(Command command, Map<String, String> header, String message) {
+		this(command, header, (message == null) ? null : ByteBuffer.wrap(message.getBytes(UTF_8)));
+		this.message = message;
+	}
+
+	public Frame(Command command, Map<String, String> header, byte[] body) {
+		this(command, header, (body == null) ? null : ByteBuffer.wrap(body));
+	}
+
+	/**
+	 * Constructor with a binary message. The remaining bytes of the given buffer are the message, they are not copied.
+	 * 
+	 * @param command the frame command
+	 * @param header the frame header, copied unless it is a {@link HeaderMap}, may be <code>null</code>
+	 * @param body the message, may be <code>null</code>
+	 */
+	public Frame(Command command, Map<String, String> header, ByteBuffer body) {
 		super();
 		if (command == null) {
 			throw new IllegalArgumentException("command is mandatory");
 		}
 		this.command = command;
-		this.header = header;
-		this.message = message;
+		this.header = HeaderMap.copyOf(header);
+		this.body = (body == null) ? null : body.slice();
+	}
+
+	/**
+	 * A frame is immutable: a header is added or replaced in a copy of the frame, sharing the message.
+	 * 
+	 * @return a frame with the given header, this frame if the header is already set to this value
+	 */
+	public Frame withHeader(String key, String value) {
+		HeaderMap newHeader = header.with(key, value);
+		if (newHeader == header) {
+			return this;
+		}
+		Frame frame = new Frame(command, newHeader, body);
+		frame.message = message;
+		return frame;
+	}
+
+	/**
+	 * The message decoded from UTF-8. It is decoded at the first call.
+	 * 
+	 * @return the message or <code>null</code> if the frame has no message
+	 */
+	public String messageAsString() {
+		if ((message == null) && (body != null)) {
+			if (body.hasArray()) {
+				message = new String(body.array(), body.arrayOffset(), body.remaining(), UTF_8);
+			} else {
+				message = UTF_8.decode(body.duplicate()).toString();
+			}
+		}
+		return message;
+	}
+
+	/**
+	 * The message bytes, without decoding nor copy.
+	 * 
+	 * @return a read-only buffer on the message or <code>null</code> if the frame has no message
+	 */
+	public ByteBuffer messageAsBuffer() {
+		return (body == null) ? null : body.asReadOnlyBuffer();
+	}
+
+	/**
+	 * @return the number of bytes of the message, 0 if the frame has no message
+	 */
+	public int messageLength() {
+		return (body == null) ? 0 : body.remaining();
 	}
 
 	public boolean is(Command command) {
@@ -43,30 +109,28 @@ public class Frame {
 		return messageDecorator;
 	}
 
+	/**
+	 * The message bytes for the encoder, which must not change the buffer position.
+	 */
+	ByteBuffer body() {
+		return body;
+	}
+
 	public byte[] getBytes() {
-		StringBuilder stringBuilder = new StringBuilder();
-		stringBuilder.append(command.name()).append(ENDLINE);
-		if ((header != null) && (header.size() > 0)) {
-			for (Entry<String, String> entry : header.entrySet()) {
-				stringBuilder.append(entry.getKey()).append(HEADER_SEPARATOR).append(entry.getValue()).append(ENDLINE);
-			}
+		ByteArrayOutputStream outputStream = new ByteArrayOutputStream(messageLength() + 128);
+		FrameOutputStream frameOutputStream = new FrameOutputStream(outputStream, 128);
+		try {
+			frameOutputStream.write(this);
+			frameOutputStream.flush();
+		} catch (IOException e) {
+			throw new StompException(e);
 		}
-		if (message == null) {
-			stringBuilder//
-					.append(ENDLINE)//
-					.append(NULL);
-		} else {
-			stringBuilder.append(ENDLINE)//
-					.append(message)//
-					.append(NULL);
-		}
-
-		return stringBuilder.toString().getBytes(UTF_8);
+		return outputStream.toByteArray();
 	}
 
 	@Override
 	public String toString() {
-		return "Frame [command=" + command + ", header=" + header + ", message=" + message + "]";
+		return "Frame [command=" + command + ", header=" + header + ", message=" + messageAsString() + "]";
 	}
 
 	protected class MessageDecorator {
@@ -77,11 +141,11 @@ public class Frame {
 		}
 
 		public String messageId() {
-			return this.frame.header.get("message-id");
+			return this.frame.header.get(Headers.MESSAGE_ID);
 		}
 
 		public String subscription() {
-			return this.frame.header.get("subscription");
+			return this.frame.header.get(Headers.SUBSCRIPTION);
 		}
 	}
 
@@ -90,17 +154,8 @@ public class Frame {
 		final int prime = 31;
 		int result = 1;
 		result = (prime * result) + ((command == null) ? 0 : command.hashCode());
-		result = (prime * result) + ((header == null) ? 0 : headerHashCode());
-		result = (prime * result) + ((message == null) ? 0 : message.hashCode());
-		return result;
-	}
-
-	private int headerHashCode() {
-		final int prime = 31;
-		int result = 1;
-		for (Map.Entry<String, String> headerEntry : header.entrySet()) {
-			result = (prime * result) + headerEntry.getKey().hashCode() + headerEntry.getValue().hashCode();
-		}
+		result = (prime * result) + header.hashCode();
+		result = (prime * result) + ((body == null) ? 0 : body.hashCode());
 		return result;
 	}
 
@@ -119,29 +174,17 @@ public class Frame {
 		if (command != other.command) {
 			return false;
 		}
-		if (header == null) {
-			if (other.header != null) {
-				return false;
-			}
-		} else if (!equalsHeaderOf(other)) {
+		if (!header.equals(other.header)) {
 			return false;
 		}
-		if (message == null) {
-			if (other.message != null) {
+		if (body == null) {
+			if (other.body != null) {
 				return false;
 			}
-		} else if (!message.equals(other.message)) {
+		} else if (!body.equals(other.body)) {
 			return false;
 		}
 		return true;
 	}
 
-	private boolean equalsHeaderOf(Frame other) {
-		boolean result = true;
-		for (Map.Entry<String, String> headerEntry : header.entrySet()) {
-			result &= other.header.containsKey(headerEntry.getKey()) && (headerEntry.getValue().equals(other.header.get(headerEntry.getKey())));
-		}
-		return result;
-	}
-
 }
@@ -3,10 +3,13 @@ package fr.xebia.stomp.client;
 import java.io.IOException;
 import java.net.Socket;
 import java.net.UnknownHostException;
-import java.util.HashMap;
-import java.util.Map;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import org.apache.activemq.transport.stomp.Stomp;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -15,8 +18,9 @@ public class FrameBuilder {
 	private final static Logger LOGGER = LoggerFactory.getLogger(FrameBuilder.class);
 
 	private Command command;
-	private Map<String, String> header = new HashMap<String, String>();
+	private final HeaderMap.Builder header = HeaderMap.builder();
 	private String message;
+	private ByteBuffer body;
 
 	/**
 	 * If connection is not null, the method {@link Connection#send(Frame)} will be called at {@link FrameBuilder#end()}.
@@ -32,19 +36,38 @@ public class FrameBuilder {
 	}
 
 	public Frame end() {
-		Frame frame = new Frame(command, header, message);
+		Frame frame = build();
 		if (connection != null) {
 			connection.send(frame);
 		}
 		return frame;
 	}
 
+	/**
+	 * Send the frame with {@link Connection#sendAsync(Frame)}.
+	 * 
+	 * @return the future of the RECEIPT frame
+	 */
+	public CompletableFuture<Frame> endAsync() {
+		if (connection == null) {
+			throw new IllegalStateException("No connection to send the frame");
+		}
+		return connection.sendAsync(build());
+	}
+
 	public Frame end(Connection connection) {
-		Frame frame = new Frame(command, header, message);
+		Frame frame = build();
 		connection.send(frame);
 		return frame;
 	}
 
+	private Frame build() {
+		if (body != null) {
+			return new Frame(command, header.build(), body);
+		}
+		return new Frame(command, header.build(), message);
+	}
+
 	public FrameBuilder command(Command command) {
 		this.command = command;
 		return this;
@@ -57,6 +80,23 @@ public class FrameBuilder {
 
 	public FrameBuilder message(String message) {
 		this.message = message;
+		this.body = null;
+		return this;
+	}
+
+	public FrameBuilder message(byte[] body) {
+		return message((body == null) ? null : ByteBuffer.wrap(body));
+	}
+
+	/**
+	 * Set a binary message, the remaining bytes of the buffer are sent without copy nor encoding.
+	 * 
+	 * @param body the message
+	 * @return this builder
+	 */
+	public FrameBuilder message(ByteBuffer body) {
+		this.body = body;
+		this.message = null;
 		return this;
 	}
 
@@ -72,12 +112,183 @@ public class FrameBuilder {
 
 	// Connect
 	public static class ConnectBuilder {
+		private static final int DEFAULT_WRITE_BUFFER_SIZE = 8192;
 		private final FrameBuilder frameBuilder;
+		private boolean nio = false;
+		private EventLoopGroup eventLoopGroup;
+		// The batching settings, each connection has its own batcher
+		private int maxBatchBytes = 0;
+		private long maxBatchLatencyNanos;
+		private boolean reconnect = false;
+		private long reconnectInitialDelayNanos;
+		private long reconnectMaxDelayNanos;
+		private int maxBufferedFrames;
+		private int receiptWindowSize = 0;
+		private Executor receiveExecutor;
+		private int maxFrameSize = Frame.DEFAULT_MAX_FRAME_SIZE;
 
 		protected ConnectBuilder(FrameBuilder messageBuilder) {
 			this.frameBuilder = messageBuilder;
 		}
 
+		/**
+		 * Use a {@link java.nio.channels.SocketChannel} with direct buffers instead of the socket streams.
+		 * 
+		 * @return this builder
+		 */
+		public ConnectBuilder nio() {
+			this.nio = true;
+			return this;
+		}
+
+		/**
+		 * Read the connection by an event loop of the group, implies {@link #nio()}. The frames are kept for {@link Connection#receive()} or pushed
+		 * to the listener given to {@link Connection#listen(FrameListener)}.
+		 * 
+		 * @param eventLoopGroup the threads reading the connection
+		 * @return this builder
+		 */
+		public ConnectBuilder on(EventLoopGroup eventLoopGroup) {
+			this.eventLoopGroup = eventLoopGroup;
+			return nio();
+		}
+
+		/**
+		 * Batch the sent frames: they are written when their size reaches <code>maxBatchBytes</code>, when the oldest one waited for
+		 * <code>maxLatency</code>, or when {@link Connection#flush()} is called. See {@link Connection#batchStats()} for the achieved batches.
+		 * The latency is measured by the shared timer of the connections, so a batch may wait up to 10ms more.
+		 * 
+		 * @param maxBatchBytes the size from which a batch is written
+		 * @param maxLatency the maximum time a frame waits in a batch
+		 * @param unit the unit of maxLatency
+		 * @return this builder
+		 */
+		public ConnectBuilder batching(int maxBatchBytes, long maxLatency, TimeUnit unit) {
+			if (maxBatchBytes <= 0) {
+				throw new IllegalArgumentException("maxBatchBytes should be positive");
+			}
+			this.maxBatchBytes = maxBatchBytes;
+			this.maxBatchLatencyNanos = unit.toNanos(maxLatency);
+			return this;
+		}
+
+		/**
+		 * Ask for heart-beating: the client sends an end of line when it wrote nothing for <code>outgoing</code>, and expects bytes from the server
+		 * at least every <code>incoming</code>. The intervals are negotiated with the server, the connection fails if nothing is received during
+		 * twice the incoming interval.
+		 * 
+		 * @param outgoing the smallest interval between the heart-beats sent by the client, 0 for none
+		 * @param incoming the interval between the heart-beats the client wants from the server, 0 for none
+		 * @param unit the unit of the intervals
+		 * @return this builder
+		 */
+		public ConnectBuilder heartBeat(long outgoing, long incoming, TimeUnit unit) {
+			frameBuilder.header.put(Headers.HEART_BEAT, unit.toMillis(outgoing) + "," + unit.toMillis(incoming));
+			if (!frameBuilder.header.containsKey(Headers.ACCEPT_VERSION)) {
+				// Heart-beating comes with STOMP 1.1
+				frameBuilder.header.put(Headers.ACCEPT_VERSION, "1.0,1.1");
+			}
+			return this;
+		}
+
+		/**
+		 * Reconnect when the connection is lost, instead of failing the sends and the receives. The attempts are spread by a jittered exponential
+		 * backoff, from <code>initialDelay</code> up to <code>maxDelay</code>. Once connected, the active subscriptions are sent again, then the
+		 * frames sent during the outage, at most <code>maxBufferedFrames</code>. The frames written but not flushed when the connection was lost
+		 * are not sent again. See {@link Connection#reconnectStats()} for the outages.
+		 * 
+		 * @param initialDelay the backoff of the first attempt
+		 * @param maxDelay the maximum backoff
+		 * @param unit the unit of the delays
+		 * @param maxBufferedFrames the number of frames from which the sends fail during an outage
+		 * @return this builder
+		 */
+		public ConnectBuilder reconnect(long initialDelay, long maxDelay, TimeUnit unit, int maxBufferedFrames) {
+			if ((initialDelay <= 0) || (maxDelay < initialDelay)) {
+				throw new IllegalArgumentException("initialDelay should be positive and maxDelay greater than initialDelay");
+			}
+			this.reconnect = true;
+			this.reconnectInitialDelayNanos = unit.toNanos(initialDelay);
+			this.reconnectMaxDelayNanos = unit.toNanos(maxDelay);
+			this.maxBufferedFrames = maxBufferedFrames;
+			return this;
+		}
+
+		/**
+		 * Set the number of frames sent with {@link Connection#sendAsync(Frame)} which may wait for their receipt, 128 by default.
+		 * 
+		 * @param receiptWindowSize the maximum number of frames waiting for their receipt
+		 * @return this builder
+		 */
+		public ConnectBuilder receiptWindow(int receiptWindowSize) {
+			if (receiptWindowSize <= 0) {
+				throw new IllegalArgumentException("receiptWindowSize should be positive");
+			}
+			this.receiptWindowSize = receiptWindowSize;
+			return this;
+		}
+
+		/**
+		 * Run the reads of {@link Connection#receiveAsync()} on an executor, one at a time for a connection, and the listeners of the subscriptions
+		 * with a prefetch window, one at a time for a subscription. By default, the executor is shared by all the connections and uses virtual
+		 * threads when the JVM has them.
+		 * 
+		 * @param receiveExecutor the executor, shut down by its owner
+		 * @return this builder
+		 */
+		public ConnectBuilder receiveExecutor(Executor receiveExecutor) {
+			if (receiveExecutor == null) {
+				throw new NullPointerException("receiveExecutor");
+			}
+			this.receiveExecutor = receiveExecutor;
+			return this;
+		}
+
+		/**
+		 * Set the maximum content-length of a received frame, 64MB by default. The message of a frame is allocated from its content-length, so a
+		 * larger one fails the read instead of the allocation.
+		 * 
+		 * @param maxFrameSize the maximum content-length in bytes
+		 * @return this builder
+		 */
+		public ConnectBuilder maxFrameSize(int maxFrameSize) {
+			this.maxFrameSize = FrameInputStream.checkMaxFrameSize(maxFrameSize);
+			return this;
+		}
+
+		/**
+		 * Keep connections with these settings in a pool, for short-lived producers.
+		 * 
+		 * @return the builder of the pool
+		 */
+		public ConnectionPool.Builder pooled() {
+			return new ConnectionPool.Builder(this);
+		}
+
+		/**
+		 * Copy the settings, so connections can be built from the copy while this builder is changed or builds other connections.
+		 */
+		ConnectBuilder copy() {
+			FrameBuilder connectFrameBuilder = new FrameBuilder().command(Command.CONNECT);
+			HeaderMap header = frameBuilder.header.build();
+			for (int i = 0; i < header.size(); i++) {
+				connectFrameBuilder.header(header.key(i), header.value(i));
+			}
+			ConnectBuilder copy = new ConnectBuilder(connectFrameBuilder);
+			copy.nio = nio;
+			copy.eventLoopGroup = eventLoopGroup;
+			copy.maxBatchBytes = maxBatchBytes;
+			copy.maxBatchLatencyNanos = maxBatchLatencyNanos;
+			copy.reconnect = reconnect;
+			copy.reconnectInitialDelayNanos = reconnectInitialDelayNanos;
+			copy.reconnectMaxDelayNanos = reconnectMaxDelayNanos;
+			copy.maxBufferedFrames = maxBufferedFrames;
+			copy.receiptWindowSize = receiptWindowSize;
+			copy.receiveExecutor = receiveExecutor;
+			copy.maxFrameSize = maxFrameSize;
+			return copy;
+		}
+
 		public ConnectBuilder login(String login) {
 			frameBuilder.header.put("login", login);
 			return this;
@@ -91,7 +302,7 @@ public class FrameBuilder {
 		public Connection to(String host, int port, Object... socketParams) {
 			Connection localConnection;
 			try {
-				localConnection = new Connection(new Socket(host, port), socketParams);
+				localConnection = new Connection(open(host, port), socketParams);
 			} catch (UnknownHostException e) {
 				throw new RuntimeException(e);
 			} catch (IOException e) {
@@ -99,6 +310,76 @@ public class FrameBuilder {
 			}
 			this.frameBuilder.end(localConnection);
 			Frame serverResponse = localConnection.receive();
+			checkConnected(serverResponse);
+			LOGGER.debug("Connected to {}:{}, the CONNECTED frame from server is {}", new Object[] { host, port, serverResponse });
+			if (maxBatchBytes > 0) {
+				localConnection.batching(new WriteBatcher(maxBatchBytes, maxBatchLatencyNanos, TimeUnit.NANOSECONDS));
+			}
+			if (receiptWindowSize > 0) {
+				localConnection.receiptWindowSize(receiptWindowSize);
+			}
+			if (receiveExecutor != null) {
+				localConnection.receiveExecutor(receiveExecutor);
+			}
+			if (eventLoopGroup != null) {
+				try {
+					localConnection.readBy(eventLoopGroup);
+				} catch (IOException e) {
+					localConnection.closeQuietly();
+					throw new StompException("Can't register the connection on the event loop", e);
+				}
+			}
+			if (reconnect) {
+				// The reconnections don't depend on the later changes of this builder
+				localConnection.resilient(new Reconnector(copy(), host, port, socketParams, reconnectInitialDelayNanos, reconnectMaxDelayNanos,
+						maxBufferedFrames));
+			}
+			long[] heartBeat = HeartBeat.negotiate(frameBuilder.header.get(Headers.HEART_BEAT), serverResponse.header.get(Headers.HEART_BEAT));
+			localConnection.heartBeat(heartBeat[0], heartBeat[1]);
+			return localConnection;
+		}
+
+		private Transport open(String host, int port) throws IOException {
+			// Without batching, the frames are flushed one by one and the default buffer sizes fit
+			int writeBufferSize = Math.max(maxBatchBytes, DEFAULT_WRITE_BUFFER_SIZE);
+			if (nio) {
+				return ChannelTransport.open(host, port, writeBufferSize, maxFrameSize);
+			}
+			return new SocketTransport(new Socket(host, port), writeBufferSize, maxFrameSize);
+		}
+
+		/**
+		 * Open a new transport to reconnect, with the settings of this builder.
+		 */
+		Transport open(String host, int port, Object[] socketParams) throws IOException {
+			Transport transport = open(host, port);
+			try {
+				Connection.fillSocketParameters(transport.socket(), socketParams);
+			} catch (StompException e) {
+				transport.close();
+				throw e;
+			}
+			return transport;
+		}
+
+		/**
+		 * Send the CONNECT frame on a new transport and wait for the CONNECTED frame.
+		 * 
+		 * @return the CONNECTED frame
+		 */
+		Frame handshake(Transport transport) throws IOException {
+			transport.write(frameBuilder.end());
+			transport.flush();
+			Frame serverResponse = transport.read();
+			checkConnected(serverResponse);
+			return serverResponse;
+		}
+
+		String heartBeat() {
+			return frameBuilder.header.get(Headers.HEART_BEAT);
+		}
+
+		private static void checkConnected(Frame serverResponse) {
 			if (serverResponse == null) {
 				throw new IllegalStateException("received null response after a connection");
 			} else if (Command.ERROR == serverResponse.command) {
@@ -106,8 +387,6 @@ public class FrameBuilder {
 			} else if (Command.CONNECTED != serverResponse.command) {
 				throw new IllegalStateException("After a CONNECTION request, receive a response which is not CONNECTED nor ERROR. Received frame is " + serverResponse);
 			}
-			LOGGER.debug("Connected to {}:{}, the CONNECTED frame from server is {}", new Object[] { host, port, serverResponse });
-			return localConnection;
 		}
 	}
 
@@ -146,6 +425,17 @@ public class FrameBuilder {
 			return frameBuilder.end();
 		}
 
+		/**
+		 * Send the message and get its receipt asynchronously, see {@link Connection#sendAsync(Frame)}.
+		 * 
+		 * @param queue the destination
+		 * @return the future of the RECEIPT frame
+		 */
+		public CompletableFuture<Frame> toAsync(String queue) {
+			frameBuilder.header.put("destination", queue);
+			return frameBuilder.endAsync();
+		}
+
 		public SendBuilder withReceipt(String idReceipt) {
 			frameBuilder.header.put("receipt", idReceipt);
 			return this;
@@ -162,7 +452,23 @@ public class FrameBuilder {
 		}
 
 		public SendBuilder message(String message) {
-			frameBuilder.message = message;
+			frameBuilder.message(message);
+			return this;
+		}
+
+		public SendBuilder message(byte[] body) {
+			frameBuilder.message(body);
+			return this;
+		}
+
+		/**
+		 * Set a binary message, the remaining bytes of the buffer are sent without copy nor encoding.
+		 * 
+		 * @param body the message
+		 * @return this builder
+		 */
+		public SendBuilder message(ByteBuffer body) {
+			frameBuilder.message(body);
 			return this;
 		}
 	}
@@ -190,7 +496,11 @@ public class FrameBuilder {
 	}
 
 	public static class SubscribeBuilder {
+		private static final AtomicInteger SUBSCRIPTION_COUNT = new AtomicInteger();
+		private static final String ACTIVEMQ_PREFETCH_SIZE = "activemq.prefetchSize";
 		private final FrameBuilder frameBuilder;
+		private MessageListener messageListener;
+		private int prefetch = 0;
 
 		/**
 		 * Use {@link FrameBuilder#subscribe()}.
@@ -247,6 +557,37 @@ public class FrameBuilder {
 			return this;
 		}
 
+		/**
+		 * Push the MESSAGE frames of this subscription to a listener, instead of keeping them for {@link Connection#receive()}. If no client id is
+		 * given, one is generated.
+		 * 
+		 * @param messageListener the receiver of the messages, called by the thread reading the connection
+		 * @return
+		 */
+		public SubscribeBuilder withListener(MessageListener messageListener) {
+			this.messageListener = messageListener;
+			return this;
+		}
+
+		/**
+		 * Bound the number of messages of this subscription received and not consumed yet. The messages are queued, for
+		 * {@link Connection#receive(String)} or for the listener, which is then called by the receive executor. When the queue is full, the connection
+		 * is not read any more until half of the queue is consumed, so the server is slowed down by TCP flow control. The size is also given to the
+		 * server with the ActiveMQ header <code>activemq.prefetchSize</code>. If no client id is given, one is generated. As the RECEIPT frames
+		 * are not read either, the listener can't wait for a receipt, see {@link Connection#sendAsync(Frame)}.
+		 * 
+		 * @param size the maximum number of queued messages
+		 * @return
+		 */
+		public SubscribeBuilder prefetch(int size) {
+			if (size <= 0) {
+				throw new IllegalArgumentException("The prefetch size should be positive");
+			}
+			this.prefetch = size;
+			this.frameBuilder.header(ACTIVEMQ_PREFETCH_SIZE, Integer.toString(size));
+			return this;
+		}
+
 		/**
 		 * Corresponding to the frame header <code>destination</code>.
 		 * 
@@ -254,9 +595,52 @@ public class FrameBuilder {
 		 * @return the built frame
 		 */
 		public Frame to(String destination) {
+			if ((messageListener != null) || (prefetch > 0)) {
+				if (frameBuilder.connection == null) {
+					throw new IllegalStateException("A listener or a prefetch window needs a subscription built from a connection");
+				}
+				if (!frameBuilder.header.containsKey("id")) {
+					forClient("subscription-" + SUBSCRIPTION_COUNT.incrementAndGet());
+				}
+				// Before sending the frame, so the first message is routed
+				if (prefetch > 0) {
+					frameBuilder.connection.subscribe(frameBuilder.header.get("id"), messageListener, prefetch);
+				} else {
+					frameBuilder.connection.subscribe(frameBuilder.header.get("id"), messageListener);
+				}
+			}
+			if (frameBuilder.connection != null) {
+				// Without id, the messages of a STOMP 1.0 subscription give its destination
+				String subscription = frameBuilder.header.containsKey("id") ? frameBuilder.header.get("id") : destination;
+				String ackMode = frameBuilder.header.get("ack");
+				frameBuilder.connection.ackMode(subscription, (ackMode == null) ? "auto" : ackMode);
+			}
 			return frameBuilder.header("destination", destination).end();
 		}
 
+		/**
+		 * Subscribe and publish the messages to a reactive subscriber. The messages are read from the connection as the subscriber requests them:
+		 * at most the prefetch number of messages, 1 by default, wait for its demand, see {@link #prefetch(int)}. If no client id is given, one is
+		 * generated.
+		 * 
+		 * @param destination
+		 * @return the publisher of the MESSAGE frames, for one subscriber
+		 */
+		public Flow.Publisher<Frame> toPublisher(String destination) {
+			if (messageListener != null) {
+				throw new IllegalStateException("The messages of a publisher can't be given to a listener");
+			}
+			if (frameBuilder.connection == null) {
+				throw new IllegalStateException("A publisher needs a subscription built from a connection");
+			}
+			if (prefetch == 0) {
+				// The server is told too
+				prefetch(1);
+			}
+			to(destination);
+			return new SubscriptionPublisher(frameBuilder.connection, frameBuilder.header.get("id"));
+		}
+
         public SubscribeBuilder persistent() {
             frameBuilder.header("persistent", "true");
             return this;
@@ -394,10 +778,10 @@ public class FrameBuilder {
 	}
 
 	public static AbortBuilder abort(Connection connection) {
-		return new AbortBuilder(new FrameBuilder(connection).command(Command.COMMIT));
+		return new AbortBuilder(new FrameBuilder(connection).command(Command.ABORT));
 	}
 
 	public static AbortBuilder abort() {
-		return new AbortBuilder(new FrameBuilder().command(Command.COMMIT));
+		return new AbortBuilder(new FrameBuilder().command(Command.ABORT));
 	}
 }
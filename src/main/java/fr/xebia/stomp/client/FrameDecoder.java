@@ -0,0 +1,242 @@
+package fr.xebia.stomp.client;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Incremental frame parser over a {@link ByteBuffer}. The bytes can arrive in any number of chunks: the parser keeps its state (command, header
+ * and message progress) between calls, and only consumes the header lines once they are complete. A header line is left in the buffer until its
+ * end of line is received, so the caller must grow the buffer if it is full and nothing was consumed.
+ */
+class FrameDecoder {
+    private static final Logger LOGGER = LoggerFactory.getLogger(FrameDecoder.class);
+    private static final byte CARRIAGE_RETURN_BYTE = '\r';
+    private static final int DEFAULT_LINE_SIZE = 256;
+
+    private enum State {
+        COMMAND, HEADER, MESSAGE_WITH_LENGTH, MESSAGE_UNTIL_NULL, END_OF_MESSAGE
+    }
+
+    private final int maxFrameSize;
+
+    private State state = State.COMMAND;
+    private Command command;
+    // Reused from frame to frame
+    private final HeaderMap.Builder header = HeaderMap.builder();
+    // The content-length of the frame, -1 if it has none
+    private int messageLength = -1;
+
+    // Message of known length and the number of its bytes already received
+    private byte[] message;
+    private int messageCount;
+
+    // Reusable array holding the current line, so header lines are parsed like in FrameInputStream
+    private byte[] line = new byte[DEFAULT_LINE_SIZE];
+
+    FrameDecoder() {
+        this(Frame.DEFAULT_MAX_FRAME_SIZE);
+    }
+
+    /**
+     * @param maxFrameSize the maximum content-length of a frame, and the maximum size of a message without content-length
+     */
+    FrameDecoder(int maxFrameSize) {
+        this.maxFrameSize = FrameInputStream.checkMaxFrameSize(maxFrameSize);
+    }
+
+    /**
+     * Parse the bytes between the position and the limit of the buffer. A frame which can't be parsed fails, and the decoder starts again from
+     * the next command.
+     *
+     * @param buffer the received bytes, its position is moved after the consumed bytes
+     * @return a new frame or <code>null</code> if more bytes are needed
+     */
+    public Frame decode(ByteBuffer buffer) {
+        try {
+            return decodeFrame(buffer);
+        } catch (StompException e) {
+            reset();
+            throw e;
+        }
+    }
+
+    private Frame decodeFrame(ByteBuffer buffer) {
+        while (true) {
+            switch (state) {
+                case COMMAND:
+                    if (!skipEndOfLines(buffer) || !decodeCommand(buffer)) {
+                        return null;
+                    }
+                    break;
+                case HEADER:
+                    if (!decodeHeaderLine(buffer)) {
+                        return null;
+                    }
+                    break;
+                case MESSAGE_WITH_LENGTH:
+                    int count = Math.min(buffer.remaining(), message.length - messageCount);
+                    buffer.get(message, messageCount, count);
+                    messageCount += count;
+                    if (messageCount < message.length) {
+                        return null;
+                    }
+                    state = State.END_OF_MESSAGE;
+                    break;
+                case MESSAGE_UNTIL_NULL:
+                    if (!decodeMessageUntilNull(buffer)) {
+                        return null;
+                    }
+                    return endOfFrame();
+                case END_OF_MESSAGE:
+                    if (!buffer.hasRemaining()) {
+                        return null;
+                    }
+                    if (Frame.NULL_BYTE != buffer.get()) {
+                        throw new StompException("The message is not followed by a NULL byte, is the content-length header right?");
+                    }
+                    return endOfFrame();
+                default:
+                    throw new IllegalStateException("Unknown state " + state);
+            }
+        }
+    }
+
+    /**
+     * @return <code>true</code> if the decoder is between two frames
+     */
+    public boolean isIdle() {
+        return state == State.COMMAND;
+    }
+
+    private boolean skipEndOfLines(ByteBuffer buffer) {
+        while (buffer.hasRemaining()) {
+            byte currentByte = buffer.get(buffer.position());
+            if ((Frame.ENDLINE_BYTE != currentByte) && (Frame.NULL_BYTE != currentByte) && (CARRIAGE_RETURN_BYTE != currentByte)) {
+                return true;
+            }
+            buffer.position(buffer.position() + 1);
+        }
+        return false;
+    }
+
+    private boolean decodeCommand(ByteBuffer buffer) {
+        int length = readLine(buffer);
+        if (length == -1) {
+            return false;
+        }
+        command = Command.of(line, 0, length);
+        if (command == null) {
+            throw new StompException("Unknown command '" + new String(line, 0, length, Frame.UTF_8) + "'");
+        }
+        LOGGER.trace("Command {}", command);
+        state = State.HEADER;
+        return true;
+    }
+
+    private boolean decodeHeaderLine(ByteBuffer buffer) {
+        int length = readLine(buffer);
+        if (length == -1) {
+            return false;
+        }
+        if (length == 0) {
+            // Empty line: end of header
+            if (messageLength >= 0) {
+                message = new byte[messageLength];
+                messageCount = 0;
+                state = State.MESSAGE_WITH_LENGTH;
+            } else {
+                message = new byte[DEFAULT_LINE_SIZE];
+                messageCount = 0;
+                state = State.MESSAGE_UNTIL_NULL;
+            }
+            return true;
+        }
+        int separator = 0;
+        while ((separator < length) && (Frame.HEADER_SEPARATOR_BYTE != line[separator])) {
+            separator++;
+        }
+        if (separator == length) {
+            throw new StompException("Missing header separator in line '" + new String(line, 0, length, Frame.UTF_8) + "'");
+        }
+        String key = Headers.nameOf(line, 0, separator);
+        if (key == null) {
+            key = new String(line, 0, separator, Frame.UTF_8);
+        }
+        header.put(key, new String(line, separator + 1, length - separator - 1, Frame.UTF_8));
+        if (key == Headers.CONTENT_LENGTH) {
+            messageLength = FrameInputStream.parseLength(line, separator + 1, length, maxFrameSize);
+        }
+        return true;
+    }
+
+    /**
+     * Copy the message bytes until the NULL byte, which is consumed.
+     *
+     * @return <code>true</code> if the NULL byte was found
+     */
+    private boolean decodeMessageUntilNull(ByteBuffer buffer) {
+        int end = buffer.position();
+        while ((end < buffer.limit()) && (Frame.NULL_BYTE != buffer.get(end))) {
+            end++;
+        }
+        int count = end - buffer.position();
+        if (count > (maxFrameSize - messageCount)) {
+            throw new StompException("The message exceeds the maximum frame size of " + maxFrameSize + " bytes");
+        }
+        if ((messageCount + count) > message.length) {
+            message = Arrays.copyOf(message, Math.min(Math.max(message.length * 2, messageCount + count), maxFrameSize));
+        }
+        buffer.get(message, messageCount, count);
+        messageCount += count;
+        if (end == buffer.limit()) {
+            return false;
+        }
+        buffer.get();
+        message = Arrays.copyOf(message, messageCount);
+        return true;
+    }
+
+    /**
+     * Copy the next line, without its end of line, into {@link #line}. Nothing is consumed if the line is not complete.
+     *
+     * @return the length of the line or -1 if the end of line is not received yet
+     */
+    private int readLine(ByteBuffer buffer) {
+        int start = buffer.position();
+        int end = start;
+        while ((end < buffer.limit()) && (Frame.ENDLINE_BYTE != buffer.get(end))) {
+            end++;
+        }
+        if (end == buffer.limit()) {
+            return -1;
+        }
+        int length = end - start;
+        if (length > line.length) {
+            line = new byte[Math.max(line.length * 2, length)];
+        }
+        buffer.get(line, 0, length);
+        buffer.get();
+        if ((length > 0) && (CARRIAGE_RETURN_BYTE == line[length - 1])) {
+            length--;
+        }
+        return length;
+    }
+
+    private Frame endOfFrame() {
+        Frame frame = new Frame(command, header.build(), message);
+        LOGGER.trace("message of {} bytes", message.length);
+        reset();
+        return frame;
+    }
+
+    private void reset() {
+        command = null;
+        header.clear();
+        messageLength = -1;
+        message = null;
+        state = State.COMMAND;
+    }
+}
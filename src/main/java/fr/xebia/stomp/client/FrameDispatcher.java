@@ -0,0 +1,185 @@
+package fr.xebia.stomp.client;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Route the frames read from a connection: a MESSAGE frame to the listener or to the queue of its subscription, found by its id, a RECEIPT or
+ * ERROR frame to the
+ * future of {@link Connection#sendAsync(Frame)} or to its own listener. The other frames go to the connection listener, or are kept for {@link Connection#receive()}.
+ */
+class FrameDispatcher implements InboundHandler {
+    private static final Logger LOGGER = LoggerFactory.getLogger(FrameDispatcher.class);
+
+    private final ConcurrentHashMap<String, MessageListener> messageListeners = new ConcurrentHashMap<String, MessageListener>();
+    private final ConcurrentHashMap<String, FrameQueue> subscriptionQueues = new ConcurrentHashMap<String, FrameQueue>();
+    private final FrameQueue inbox = new FrameQueue();
+    private volatile ReceiptWindow receiptWindow;
+    private volatile FrameListener receiptListener;
+    private volatile FrameListener errorListener;
+    private volatile FrameListener frameListener;
+    // The thread calling the listeners, a reader thread or an event loop
+    private volatile Thread readingThread;
+    // The loop reading the connection, which also calls the listeners of the other connections it reads
+    private volatile EventLoop eventLoop;
+    // The threads calling a listener of a subscription with a prefetch window, during the call
+    private final Set<Thread> deliveryThreads = ConcurrentHashMap.newKeySet();
+
+    @Override
+    public void onFrame(Frame frame) {
+        Thread currentThread = Thread.currentThread();
+        if (readingThread != currentThread) {
+            readingThread = currentThread;
+        }
+        switch (frame.command) {
+            case MESSAGE:
+                String subscription = frame.header.get(Headers.SUBSCRIPTION);
+                MessageListener messageListener = (subscription == null) ? null : messageListeners.get(subscription);
+                if (messageListener != null) {
+                    messageListener.onMessage(frame);
+                    return;
+                }
+                FrameQueue subscriptionQueue = (subscription == null) ? null : subscriptionQueues.get(subscription);
+                if (subscriptionQueue != null) {
+                    subscriptionQueue.onFrame(frame);
+                    return;
+                }
+                break;
+            case RECEIPT:
+                ReceiptWindow localReceiptWindow = receiptWindow;
+                if ((localReceiptWindow != null) && localReceiptWindow.onReceipt(frame)) {
+                    return;
+                }
+                FrameListener localReceiptListener = receiptListener;
+                if (localReceiptListener != null) {
+                    localReceiptListener.onFrame(frame);
+                    return;
+                }
+                break;
+            case ERROR:
+                localReceiptWindow = receiptWindow;
+                if ((localReceiptWindow != null) && localReceiptWindow.onError(frame)) {
+                    return;
+                }
+                FrameListener localErrorListener = errorListener;
+                if (localErrorListener != null) {
+                    localErrorListener.onFrame(frame);
+                    return;
+                }
+                break;
+            default:
+                break;
+        }
+        deliver(frame);
+    }
+
+    private void deliver(Frame frame) {
+        FrameListener localFrameListener = frameListener;
+        if (localFrameListener == null) {
+            synchronized (inbox) {
+                localFrameListener = frameListener;
+                if (localFrameListener == null) {
+                    inbox.onFrame(frame);
+                    return;
+                }
+            }
+        }
+        localFrameListener.onFrame(frame);
+    }
+
+    @Override
+    public void onClose(StompException cause) {
+        LOGGER.debug("Connection closed: {}", cause.getMessage());
+        inbox.close(cause);
+        for (FrameQueue subscriptionQueue : subscriptionQueues.values()) {
+            subscriptionQueue.close(cause);
+        }
+        ReceiptWindow localReceiptWindow = receiptWindow;
+        if (localReceiptWindow != null) {
+            localReceiptWindow.failAll(cause);
+        }
+    }
+
+    /**
+     * A thread calling listeners can't wait for a receipt: the thread reading the connection would wait for itself, and a delivery thread for
+     * the reading, paused while its subscription queue is full. The loop reading the connection can't wait either while it calls the listener
+     * of another connection.
+     *
+     * @return <code>true</code> if the calling thread reads the connection or delivers the messages of a subscription queue
+     */
+    boolean isListenerThread() {
+        Thread currentThread = Thread.currentThread();
+        EventLoop localEventLoop = eventLoop;
+        return (readingThread == currentThread) || ((localEventLoop != null) && localEventLoop.inEventLoop())
+                || deliveryThreads.contains(currentThread);
+    }
+
+    /**
+     * Called when the connection is handed to an event loop, before it reads.
+     */
+    void readBy(EventLoop eventLoop) {
+        this.eventLoop = eventLoop;
+    }
+
+    /**
+     * Called before a thread calls the listener of a subscription queue, and with <code>false</code> once the call is done.
+     */
+    void delivering(boolean delivering) {
+        if (delivering) {
+            deliveryThreads.add(Thread.currentThread());
+        } else {
+            deliveryThreads.remove(Thread.currentThread());
+        }
+    }
+
+    FrameQueue inbox() {
+        return inbox;
+    }
+
+    void subscribe(String subscription, MessageListener messageListener) {
+        messageListeners.put(subscription, messageListener);
+    }
+
+    void subscribe(String subscription, FrameQueue subscriptionQueue) {
+        subscriptionQueues.put(subscription, subscriptionQueue);
+    }
+
+    FrameQueue subscriptionQueue(String subscription) {
+        return subscriptionQueues.get(subscription);
+    }
+
+    void unsubscribe(String subscription) {
+        messageListeners.remove(subscription);
+        FrameQueue subscriptionQueue = subscriptionQueues.remove(subscription);
+        if (subscriptionQueue != null) {
+            subscriptionQueue.close(new StompException("Unsubscribed from " + subscription));
+        }
+    }
+
+    void receipts(ReceiptWindow receiptWindow) {
+        this.receiptWindow = receiptWindow;
+    }
+
+    void onReceipt(FrameListener listener) {
+        receiptListener = listener;
+    }
+
+    void onError(FrameListener listener) {
+        errorListener = listener;
+    }
+
+    /**
+     * Push the frames not routed to another listener, starting with the ones kept in the inbox.
+     */
+    void listen(FrameListener listener) {
+        synchronized (inbox) {
+            for (Frame frame : inbox.drain()) {
+                listener.onFrame(frame);
+            }
+            frameListener = listener;
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package fr.xebia.stomp.client;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Encode frames for a gathering write: the commands and the headers are appended to a reusable direct buffer, which may hold several frames until
+ * it is written. A small message is copied after its header, a large message is written from its own buffer and followed by a NULL byte, so it
+ * must be written before the next frame is encoded.
+ */
+class FrameEncoder {
+    private static final int DEFAULT_HEAD_SIZE = 8192;
+    private static final int MAX_COPIED_MESSAGE_SIZE = 1024;
+    // The longest UTF-8 encoding of a char, or of a surrogate pair
+    private static final int MAX_BYTES_PER_CHAR = 4;
+
+    // In write mode until buffers() is called
+    private ByteBuffer head = ByteBuffer.allocateDirect(DEFAULT_HEAD_SIZE);
+    private final ByteBuffer tail = ByteBuffer.allocateDirect(1).put(0, Frame.NULL_BYTE);
+    private final ByteBuffer[] buffers = new ByteBuffer[3];
+    private final ByteBuffer[] headOnly = new ByteBuffer[1];
+    private ByteBuffer largeBody;
+    private long encodedBytes = 0;
+
+    /**
+     * Append a frame to the encoded frames.
+     *
+     * @param frame the frame to encode
+     * @return <code>true</code> if the frame has a large message, which must be written before the next frame is encoded
+     */
+    public boolean encode(Frame frame) {
+        if (largeBody != null) {
+            throw new IllegalStateException("The frame with a large message must be written first");
+        }
+        int start = head.position();
+        put(frame.command.bytes());
+        put(Frame.ENDLINE_BYTE);
+        HeaderMap header = frame.header;
+        for (int i = 0; i < header.size(); i++) {
+            byte[] key = Headers.bytesOf(header.key(i));
+            if (key != null) {
+                put(key);
+            } else {
+                put(header.key(i));
+            }
+            put(Frame.HEADER_SEPARATOR_BYTE);
+            put(header.value(i));
+            put(Frame.ENDLINE_BYTE);
+        }
+        put(Frame.ENDLINE_BYTE);
+
+        ByteBuffer body = frame.body();
+        if ((body == null) || (body.remaining() <= MAX_COPIED_MESSAGE_SIZE)) {
+            if (body != null) {
+                ensureRemaining(body.remaining() + 1);
+                head.put(body.duplicate());
+            }
+            put(Frame.NULL_BYTE);
+            encodedBytes += head.position() - start;
+            return false;
+        }
+        largeBody = body.duplicate();
+        encodedBytes += (head.position() - start) + largeBody.remaining() + 1;
+        return true;
+    }
+
+    /**
+     * Append an end of line, sent as a heart-beat.
+     */
+    public void encodeHeartBeat() {
+        if (largeBody != null) {
+            throw new IllegalStateException("The frame with a large message must be written first");
+        }
+        put(Frame.ENDLINE_BYTE);
+        encodedBytes++;
+    }
+
+    /**
+     * @return the number of bytes of the frames encoded since the creation
+     */
+    public long encodedBytes() {
+        return encodedBytes;
+    }
+
+    /**
+     * @return the number of encoded bytes not written yet
+     */
+    public int pending() {
+        return head.position() + ((largeBody == null) ? 0 : (largeBody.remaining() + 1));
+    }
+
+    /**
+     * The buffers to write, in order. The encoder must be {@link #clear() cleared} once they are written.
+     *
+     * @return the encoded frames
+     */
+    public ByteBuffer[] buffers() {
+        head.flip();
+        if (largeBody == null) {
+            headOnly[0] = head;
+            return headOnly;
+        }
+        tail.clear();
+        buffers[0] = head;
+        buffers[1] = largeBody;
+        buffers[2] = tail;
+        return buffers;
+    }
+
+    public void clear() {
+        head.clear();
+        largeBody = null;
+        buffers[1] = null;
+    }
+
+    private void put(byte value) {
+        ensureRemaining(1);
+        head.put(value);
+    }
+
+    private void put(byte[] bytes) {
+        ensureRemaining(bytes.length);
+        head.put(bytes);
+    }
+
+    /**
+     * Encode a string in UTF-8 into the head buffer.
+     */
+    private void put(String value) {
+        int length = value.length();
+        ensureRemaining(length);
+        for (int i = 0; i < length; i++) {
+            if (head.remaining() < MAX_BYTES_PER_CHAR) {
+                ensureRemaining(MAX_BYTES_PER_CHAR * (length - i));
+            }
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                head.put((byte) c);
+            } else if (c < 0x800) {
+                head.put((byte) (0xC0 | (c >> 6)));
+                head.put((byte) (0x80 | (c & 0x3F)));
+            } else if (Character.isHighSurrogate(c) && ((i + 1) < length) && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                head.put((byte) (0xF0 | (codePoint >> 18)));
+                head.put((byte) (0x80 | ((codePoint >> 12) & 0x3F)));
+                head.put((byte) (0x80 | ((codePoint >> 6) & 0x3F)));
+                head.put((byte) (0x80 | (codePoint & 0x3F)));
+            } else if (Character.isSurrogate(c)) {
+                // Malformed surrogate, replaced like String.getBytes does
+                head.put((byte) '?');
+            } else {
+                head.put((byte) (0xE0 | (c >> 12)));
+                head.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                head.put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+    }
+
+    /**
+     * Grow the head buffer if it has less than the given number of bytes remaining.
+     */
+    private void ensureRemaining(int count) {
+        if (head.remaining() < count) {
+            ByteBuffer newHead = ByteBuffer.allocateDirect(Math.max(head.capacity() * 2, head.position() + count));
+            head.flip();
+            newHead.put(head);
+            head = newHead;
+        }
+    }
+}
@@ -3,14 +3,61 @@ package fr.xebia.stomp.client;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.*;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
 import java.net.Socket;
-import java.util.HashMap;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
+/**
+ * Read frames from a stream. The stream is read by bytes in a reusable buffer: the command, the header lines and the end of the message are found
+ * by scanning the bytes for {@code '\n'}, {@code ':'} and {@code '\0'}. The command and the well-known header keys are matched against their
+ * encoded bytes, so only the other header keys and the header values are decoded. The message is kept as bytes. A frame can also be read in
+ * place, without decoding nor copy, see {@link #read(FrameViewListener)}.
+ * <p/>
+ * The progress of the frame being read is kept between the reads, so a read stopped by a timeout is resumed by the next one. A stream is read by
+ * one thread at a time.
+ */
 public class FrameInputStream implements Closeable {
     private static final Logger LOGGER = LoggerFactory.getLogger(FrameInputStream.class);
-    private BufferedReader bufferedReader;
-    private boolean askingClose = false;
+    private static final int DEFAULT_BUFFER_SIZE = 8192;
+    private static final byte CARRIAGE_RETURN_BYTE = '\r';
+
+    private final Socket socket;
+    private final InputStream inputStream;
+    private final int maxFrameSize;
+    private volatile boolean askingClose = false;
+
+    // The frame being read, kept when a read times out
+    private Command command;
+    // Reused from frame to frame
+    private final HeaderMap.Builder header = HeaderMap.builder();
+    private boolean headerRead = false;
+    // The content-length of the frame, -1 if it has none
+    private int messageLength = -1;
+    private byte[] message;
+    private int messageRead = 0;
+
+    // Reused by the reads in place
+    private final FrameView view = new FrameView();
+
+    // Set during a read with a timeout
+    private boolean timed = false;
+    private long deadlineNanos;
+    private int socketTimeout;
+    // The socket timeout of the last read is the deadline
+    private boolean deadlineReached;
+
+    // Bytes read from the stream and not consumed yet are between position (inclusive) and limit (exclusive)
+    private byte[] buffer = new byte[DEFAULT_BUFFER_SIZE];
+    private int position = 0;
+    private int limit = 0;
+    // Bytes read from the stream, read by the heart-beat timer
+    private volatile long received = 0;
 
     /**
      * Constructor.
@@ -18,8 +65,20 @@ public class FrameInputStream implements Closeable {
      * @param socket the socket which will be read through its {@code InputStream}
      */
     public FrameInputStream(Socket socket) {
+        this(socket, Frame.DEFAULT_MAX_FRAME_SIZE);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param socket       the socket which will be read through its {@code InputStream}
+     * @param maxFrameSize the maximum content-length of a frame, a larger one fails the read
+     */
+    public FrameInputStream(Socket socket, int maxFrameSize) {
+        this.socket = socket;
+        this.maxFrameSize = checkMaxFrameSize(maxFrameSize);
         try {
-            this.bufferedReader = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF8"));
+            this.inputStream = socket.getInputStream();
         } catch (IOException e) {
             throw new StompException(e);
         }
@@ -30,95 +89,517 @@ public class FrameInputStream implements Closeable {
      *
      * @param inputStream the input stream which will be read
      */
-    protected FrameInputStream(InputStream inputStream) throws UnsupportedEncodingException {
-        this.bufferedReader = new BufferedReader(new InputStreamReader(inputStream, "UTF8"));
+    protected FrameInputStream(InputStream inputStream) {
+        this(inputStream, Frame.DEFAULT_MAX_FRAME_SIZE);
     }
 
     /**
-     * Read a new frame.
+     * Useful for testint without socket.
+     *
+     * @param inputStream  the input stream which will be read
+     * @param maxFrameSize the maximum content-length of a frame, a larger one fails the read
+     */
+    protected FrameInputStream(InputStream inputStream, int maxFrameSize) {
+        this.socket = null;
+        this.inputStream = inputStream;
+        this.maxFrameSize = checkMaxFrameSize(maxFrameSize);
+    }
+
+    static int checkMaxFrameSize(int maxFrameSize) {
+        if (maxFrameSize <= 0) {
+            throw new IllegalArgumentException("maxFrameSize should be positive");
+        }
+        return maxFrameSize;
+    }
+
+    /**
+     * Read a new frame. If the previous read failed on a socket timeout, the frame it was reading is resumed.
      *
      * @return the new received frame from the connection
      */
     public Frame read() {
-        StringBuilder stringBuilder = new StringBuilder();
-        Command command;
-        HashMap<String, String> header;
         try {
-            // Read command
-            LOGGER.trace("Read frame");
-            byte currentByte;
-            do {
-                // Skip unnecessary bytes
-                currentByte = (byte) bufferedReader.read();
-            } while (!askingClose && ((Frame.ENDLINE_BYTE == currentByte) || (Frame.NULL_BYTE == currentByte)));
+            return readFrame();
+        } catch (IOException e) {
+            throw new StompException(e);
+        }
+    }
 
-            if (LOGGER.isTraceEnabled()) {
-                LOGGER.trace("Start read " + new String(new byte[]{currentByte}));
+    /**
+     * Read a new frame, waiting for at most the given time. When the time is out, the bytes already read are kept with the progress of the
+     * parsing, the command, the header lines and the part of the message read, and the next read resumes the frame. So a timed-out read
+     * doesn't lose bytes or leave a thread reading the stream.
+     *
+     * @param timeout the maximum time to wait
+     * @param unit    the unit of timeout
+     * @return the new received frame from the connection
+     * @throws TimeoutException if the frame is not fully received in time
+     */
+    public Frame read(long timeout, TimeUnit unit) throws TimeoutException {
+        if (socket == null) {
+            throw new IllegalStateException("A read with a timeout needs a socket");
+        }
+        try {
+            socketTimeout = socket.getSoTimeout();
+        } catch (SocketException e) {
+            throw new StompException(e);
+        }
+        deadlineNanos = System.nanoTime() + unit.toNanos(timeout);
+        timed = true;
+        try {
+            return readFrame();
+        } catch (SocketTimeoutException e) {
+            if (deadlineReached) {
+                throw new TimeoutException("No frame received in " + timeout + " " + unit);
+            }
+            // The timeout of the socket
+            throw new StompException(e);
+        } catch (IOException e) {
+            throw new StompException(e);
+        } finally {
+            timed = false;
+            try {
+                socket.setSoTimeout(socketTimeout);
+            } catch (SocketException e) {
+                LOGGER.warn("Can't restore the socket timeout: {}", e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Read a new frame in place and give it to the listener. The whole frame is kept in the buffer, which is grown for a large message up to the
+     * maximum frame size and shrunk once the frame is consumed. The frame is consumed once the listener returned: the view points into the
+     * buffer, no string is decoded and the message is not copied. A frame partly read by a timed read is completed and given through a view of
+     * the decoded frame.
+     *
+     * @param listener the listener, called by this thread
+     */
+    public void read(FrameViewListener listener) {
+        if (command != null) {
+            view.deliver(read(), listener);
+            return;
+        }
+        int end;
+        try {
+            end = readView();
+        } catch (IOException e) {
+            throw new StompException(e);
+        }
+        try {
+            listener.onFrame(view);
+        } finally {
+            view.clear();
+            position += end;
+            shrink();
+        }
+    }
+
+    /**
+     * Parse the next frame into the view without consuming it. The indexes are relative to the position, which stays at the start of the frame
+     * while the buffer is filled.
+     *
+     * @return the length of the frame, its trailing NULL byte included
+     */
+    private int readView() throws IOException {
+        // Skip unnecessary bytes (heart-beats and trailing NULL of the previous frame)
+        do {
+            if (position == limit) {
+                fill();
+            }
+            byte currentByte = buffer[position];
+            if ((Frame.ENDLINE_BYTE != currentByte) && (Frame.NULL_BYTE != currentByte) && (CARRIAGE_RETURN_BYTE != currentByte)) {
+                break;
+            }
+            position++;
+        } while (!askingClose);
+
+        // Read command
+        int endOfLine = relativeIndexOf(0, Frame.ENDLINE_BYTE);
+        int endOfCommand = endOfLine;
+        if ((endOfCommand > 0) && (CARRIAGE_RETURN_BYTE == buffer[position + endOfCommand - 1])) {
+            endOfCommand--;
+        }
+        Command readCommand = Command.of(buffer, position, position + endOfCommand);
+        if (readCommand == null) {
+            String line = decode(position, position + endOfCommand);
+            position += endOfLine + 1;
+            throw new StompException("Unknown command '" + line + "'");
+        }
+
+        // Read header
+        int lineStart = endOfLine + 1;
+        int contentLength = -1;
+        view.reset();
+        while (true) {
+            endOfLine = relativeIndexOf(lineStart, Frame.ENDLINE_BYTE);
+            int endOfValue = endOfLine;
+            if ((endOfValue > lineStart) && (CARRIAGE_RETURN_BYTE == buffer[position + endOfValue - 1])) {
+                endOfValue--;
+            }
+            if (endOfValue == lineStart) {
+                // Empty line: end of header
+                lineStart = endOfLine + 1;
+                break;
+            }
+            int separator = lineStart;
+            while ((separator < endOfValue) && (Frame.HEADER_SEPARATOR_BYTE != buffer[position + separator])) {
+                separator++;
+            }
+            if (separator == endOfValue) {
+                String line = decode(position + lineStart, position + endOfValue);
+                position += endOfLine + 1;
+                throw new StompException("Missing header separator in line '" + line + "'");
+            }
+            view.addHeader(lineStart, separator, separator + 1, endOfValue);
+            if (Headers.nameOf(buffer, position + lineStart, position + separator) == Headers.CONTENT_LENGTH) {
+                try {
+                    contentLength = parseLength(buffer, position + separator + 1, position + endOfValue, maxFrameSize);
+                } catch (StompException e) {
+                    position += endOfLine + 1;
+                    throw e;
+                }
+            }
+            lineStart = endOfLine + 1;
+        }
+
+        // Read message
+        int endOfMessage;
+        if (contentLength < 0) {
+            endOfMessage = relativeIndexOf(lineStart, Frame.NULL_BYTE);
+        } else {
+            // The whole frame is kept in the buffer, which doesn't grow beyond the maximum frame size
+            if (((long) lineStart + contentLength) >= maxFrameSize) {
+                position += lineStart;
+                throw new StompException("The frame exceeds the maximum frame size of " + maxFrameSize + " bytes");
+            }
+            endOfMessage = lineStart + contentLength;
+            while ((limit - position) <= endOfMessage) {
+                fill();
+            }
+            if (Frame.NULL_BYTE != buffer[position + endOfMessage]) {
+                position += endOfMessage;
+                throw new StompException("The message is not followed by a NULL byte, is the content-length header right?");
+            }
+        }
+        // The buffer doesn't move anymore
+        view.complete(readCommand, buffer, position, lineStart, endOfMessage);
+        return endOfMessage + 1;
+    }
+
+    /**
+     * Find the given byte in the buffer, reading the stream until it is found.
+     *
+     * @param from  the index, relative to the position, where the search starts
+     * @param value the searched byte
+     * @return the index of the byte relative to the position
+     * @throws IOException if the stream can't be read
+     */
+    private int relativeIndexOf(int from, byte value) throws IOException {
+        int index = position + from;
+        while (!askingClose) {
+            for (; index < limit; index++) {
+                if (buffer[index] == value) {
+                    return index - position;
+                }
+            }
+            int shift = position;
+            fill();
+            index -= shift - position;
+        }
+        throw new StompException("Frame input stream is closed");
+    }
+
+    /**
+     * Parse a content length without decoding it. A negative length, or a length larger than the maximum frame size, is invalid: the message
+     * array is allocated from it.
+     *
+     * @param bytes the bytes of the header value, between start (inclusive) and end (exclusive)
+     * @return the length, between 0 and maxLength
+     * @throws StompException if the length is not a number or is larger than maxLength
+     */
+    static int parseLength(byte[] bytes, int start, int end, int maxLength) {
+        int from = start;
+        int to = end;
+        while ((from < to) && (bytes[from] == ' ')) {
+            from++;
+        }
+        while ((to > from) && (bytes[to - 1] == ' ')) {
+            to--;
+        }
+        long length = 0;
+        for (int i = from; i < to; i++) {
+            byte digit = bytes[i];
+            if ((digit < '0') || (digit > '9')) {
+                throw new StompException("Invalid content-length '" + new String(bytes, start, end - start, Frame.UTF_8) + "'");
+            }
+            length = (length * 10) + (digit - '0');
+            if (length > maxLength) {
+                throw new StompException("The content-length '" + new String(bytes, start, end - start, Frame.UTF_8)
+                        + "' exceeds the maximum frame size of " + maxLength + " bytes");
             }
+        }
+        if (from == to) {
+            throw new StompException("Invalid content-length '" + new String(bytes, start, end - start, Frame.UTF_8) + "'");
+        }
+        return (int) length;
+    }
+
+    /**
+     * Read the frame, or the rest of the frame kept by the previous read. The position is moved after a line, or after the message of unknown
+     * length, once it is fully read, so a read stopped by a timeout doesn't consume a part of it.
+     */
+    private Frame readFrame() throws IOException {
+        try {
+            if (command == null) {
+                // Skip unnecessary bytes (heart-beats and trailing NULL of the previous frame)
+                LOGGER.trace("Read frame");
+                do {
+                    if (position == limit) {
+                        fill();
+                    }
+                    byte currentByte = buffer[position];
+                    if ((Frame.ENDLINE_BYTE != currentByte) && (Frame.NULL_BYTE != currentByte) && (CARRIAGE_RETURN_BYTE != currentByte)) {
+                        break;
+                    }
+                    position++;
+                } while (!askingClose);
 
-            command = Command.valueOf((char) currentByte + bufferedReader.readLine());
-            LOGGER.trace("Command {}", command);
+                // Read command
+                int endOfLine = indexOf(Frame.ENDLINE_BYTE);
+                int endOfCommand = endOfLine;
+                if ((endOfCommand > position) && (CARRIAGE_RETURN_BYTE == buffer[endOfCommand - 1])) {
+                    endOfCommand--;
+                }
+                Command readCommand = Command.of(buffer, position, endOfCommand);
+                if (readCommand == null) {
+                    throw new StompException("Unknown command '" + decode(position, endOfCommand) + "'");
+                }
+                position = endOfLine + 1;
+                command = readCommand;
+                LOGGER.trace("Command {}", command);
+            }
 
             // Read header
-            header = new HashMap<String, String>();
-            char currentChar;
-            while (!askingClose) {
-                currentChar = (char) bufferedReader.read();
-                if ('\n' != currentChar && '\r' != currentChar) {
-                    do {
-                        if (':' == currentChar) {
-                            header.put(stringBuilder.toString(), bufferedReader.readLine());
-                            stringBuilder=new StringBuilder();
-                            break;
-                        } else {
-                            stringBuilder.append(currentChar);
-                            LOGGER.trace("'{}'", currentChar);
-                            currentChar = (char) bufferedReader.read();
-                        }
-                    } while (!askingClose);
-                } else {
+            while (!headerRead && !askingClose) {
+                int endOfLine = indexOf(Frame.ENDLINE_BYTE);
+                int endOfValue = endOfLine;
+                if ((endOfValue > position) && (CARRIAGE_RETURN_BYTE == buffer[endOfValue - 1])) {
+                    endOfValue--;
+                }
+                if (endOfValue == position) {
+                    // Empty line: end of header
+                    position = endOfLine + 1;
+                    headerRead = true;
                     break;
                 }
+                int separator = position;
+                while ((separator < endOfValue) && (Frame.HEADER_SEPARATOR_BYTE != buffer[separator])) {
+                    separator++;
+                }
+                if (separator == endOfValue) {
+                    throw new StompException("Missing header separator in line '" + decode(position, endOfValue) + "'");
+                }
+                String key = Headers.nameOf(buffer, position, separator);
+                if (key == null) {
+                    key = decode(position, separator);
+                }
+                header.put(key, decode(separator + 1, endOfValue));
+                position = endOfLine + 1;
+                if (key == Headers.CONTENT_LENGTH) {
+                    // The line is consumed first, the buffer doesn't move until the next fill
+                    messageLength = parseLength(buffer, separator + 1, endOfValue, maxFrameSize);
+                }
             }
-            LOGGER.trace("header '{}'", header.entrySet().iterator().next().getKey());
 
             // Read message
-            if (header.containsKey("content-length")) {
-                int length = Integer.valueOf(header.get("content-length"));
-                LOGGER.trace("Content length is setted to {}",length);
-                stringBuilder = new StringBuilder(length);
-                char[] buffer = new char[length];
-                int read = 0;
-                int totalRead = 0;
-                while (read != -1 && totalRead < length) {
-                    read = bufferedReader.read(buffer, totalRead, length-totalRead);
-                    if(read!=-1){
-                        totalRead+=read;
-                    }
-                }
-                stringBuilder.append(buffer);
-            } else {
-                stringBuilder = new StringBuilder();
-                currentChar = (char) bufferedReader.read();
-                while (!askingClose && ('\00' != currentChar)) {
-                    stringBuilder.append(currentChar);
-                    currentChar = (char) bufferedReader.read();
+            if (message == null) {
+                if (messageLength < 0) {
+                    int endOfMessage = indexOf(Frame.NULL_BYTE);
+                    message = Arrays.copyOfRange(buffer, position, endOfMessage);
+                    position = endOfMessage + 1;
+                    return endOfFrame();
                 }
+                LOGGER.trace("Content length is setted to {}", messageLength);
+                message = new byte[messageLength];
+                messageRead = 0;
             }
-            LOGGER.trace("message {}", stringBuilder);
-        } catch (IOException e) {
-            throw new StompException(e);
+            readMessage();
+            skipNull();
+            return endOfFrame();
         } catch (IllegalArgumentException e) {
-            throw new StompException("May be a problem occurs with parsing. Current string builder is '" + stringBuilder + "'", e);
+            resetFrame();
+            throw new StompException("May be a problem occurs with parsing. Current buffer is '" + decode(position, limit) + "'", e);
+        } catch (StompException e) {
+            resetFrame();
+            throw e;
         }
-        return new Frame(command, header, stringBuilder.toString());
+    }
+
+    private Frame endOfFrame() {
+        LOGGER.trace("message of {} bytes", message.length);
+        Frame frame = new Frame(command, header.build(), message);
+        resetFrame();
+        shrink();
+        return frame;
+    }
+
+    private void resetFrame() {
+        command = null;
+        header.clear();
+        headerRead = false;
+        messageLength = -1;
+        message = null;
+        messageRead = 0;
+    }
+
+    /**
+     * Find the index of the given byte in the buffer from the current position, reading the stream until the byte is found.
+     *
+     * @param value the searched byte
+     * @return the index in the buffer of the searched byte
+     * @throws IOException if the stream can't be read
+     */
+    private int indexOf(byte value) throws IOException {
+        int index = position;
+        while (!askingClose) {
+            for (; index < limit; index++) {
+                if (buffer[index] == value) {
+                    return index;
+                }
+            }
+            int shift = position;
+            fill();
+            index -= shift - position;
+        }
+        throw new StompException("Frame input stream is closed");
+    }
+
+    /**
+     * Read the rest of a message of known length. Bytes already in the buffer are copied, then the remaining bytes are read from the stream
+     * directly into the message, so a large message doesn't grow the buffer.
+     *
+     * @throws IOException if the stream can't be read
+     */
+    private void readMessage() throws IOException {
+        int copied = Math.min(message.length - messageRead, limit - position);
+        System.arraycopy(buffer, position, message, messageRead, copied);
+        position += copied;
+        messageRead += copied;
+        while (messageRead < message.length) {
+            if (askingClose) {
+                throw new StompException("Frame input stream is closed");
+            }
+            int count = readStream(message, messageRead, message.length - messageRead);
+            if (count == -1) {
+                throw new StompException("End of stream reached, " + messageRead + " bytes read on " + message.length);
+            }
+            messageRead += count;
+        }
+    }
+
+    /**
+     * Consume the NULL byte ending a message read with its content length.
+     *
+     * @throws IOException if the stream can't be read
+     */
+    private void skipNull() throws IOException {
+        if (position == limit) {
+            fill();
+        }
+        if (Frame.NULL_BYTE != buffer[position]) {
+            throw new StompException("The message is not followed by a NULL byte, is the content-length header right?");
+        }
+        position++;
+    }
+
+    /**
+     * Read more bytes from the stream into the buffer. Unconsumed bytes are moved to the beginning of the buffer, which is grown if it is full, up
+     * to the maximum frame size: they are all part of the frame being read.
+     *
+     * @throws IOException if the stream can't be read
+     */
+    private void fill() throws IOException {
+        if (position > 0) {
+            System.arraycopy(buffer, position, buffer, 0, limit - position);
+            limit -= position;
+            position = 0;
+        }
+        if (limit == buffer.length) {
+            if (buffer.length >= maxFrameSize) {
+                throw new StompException("The frame exceeds the maximum frame size of " + maxFrameSize + " bytes");
+            }
+            byte[] newBuffer = new byte[(int) Math.min(buffer.length * 2L, maxFrameSize)];
+            System.arraycopy(buffer, 0, newBuffer, 0, limit);
+            buffer = newBuffer;
+        }
+        int read = readStream(buffer, limit, buffer.length - limit);
+        if (read == -1) {
+            throw new StompException("End of stream reached");
+        }
+        limit += read;
+    }
+
+    /**
+     * Shrink the buffer grown by a large frame back to its default size, once this frame is consumed and the bytes left fit in it.
+     */
+    private void shrink() {
+        int remaining = limit - position;
+        if ((buffer.length > DEFAULT_BUFFER_SIZE) && (remaining <= DEFAULT_BUFFER_SIZE)) {
+            byte[] newBuffer = new byte[DEFAULT_BUFFER_SIZE];
+            System.arraycopy(buffer, position, newBuffer, 0, remaining);
+            buffer = newBuffer;
+            position = 0;
+            limit = remaining;
+        }
+    }
+
+    /**
+     * @return the size of the read buffer
+     */
+    int bufferSize() {
+        return buffer.length;
+    }
+
+    /**
+     * Read the stream, at most until the deadline of a timed read.
+     *
+     * @throws SocketTimeoutException if the deadline or the socket timeout is reached
+     */
+    private int readStream(byte[] bytes, int offset, int length) throws IOException {
+        if (timed) {
+            long remainingNanos = deadlineNanos - System.nanoTime();
+            if (remainingNanos <= 0) {
+                deadlineReached = true;
+                throw new SocketTimeoutException("Read timed out");
+            }
+            // Rounded up, so a short timeout still reads the bytes already received
+            long remainingMillis = TimeUnit.NANOSECONDS.toMillis(remainingNanos + TimeUnit.MILLISECONDS.toNanos(1) - 1);
+            deadlineReached = (socketTimeout <= 0) || (socketTimeout >= remainingMillis);
+            socket.setSoTimeout((int) (deadlineReached ? Math.min(remainingMillis, Integer.MAX_VALUE) : socketTimeout));
+        }
+        int read = inputStream.read(bytes, offset, length);
+        if (read > 0) {
+            received += read;
+        }
+        return read;
+    }
+
+    /**
+     * @return the number of bytes read from the stream since the creation, heart-beats included
+     */
+    public long received() {
+        return received;
+    }
+
+    private String decode(int start, int end) {
+        return new String(buffer, start, end - start, Frame.UTF_8);
     }
 
     @Override
     public void close() throws IOException {
         askingClose = true;
-        if (bufferedReader != null) {
-            bufferedReader.close();
+        if (inputStream != null) {
+            inputStream.close();
         }
     }
 
@@ -0,0 +1,9 @@
+package fr.xebia.stomp.client;
+
+/**
+ * Receive the frames pushed by a connection. It is called by the thread reading the connection, so it should not block.
+ */
+public interface FrameListener {
+
+    void onFrame(Frame frame);
+}
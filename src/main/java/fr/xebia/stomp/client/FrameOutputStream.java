@@ -0,0 +1,210 @@
+package fr.xebia.stomp.client;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+
+/**
+ * Write frames to a stream. The command and the header are encoded directly into a reusable buffer, without intermediate strings. The command and
+ * the well-known header names are copied from their pre-encoded bytes. A message which fits in the buffer is copied after them, a larger message
+ * is written to the stream from its own array.
+ */
+public class FrameOutputStream implements Closeable, Flushable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(FrameOutputStream.class);
+    private static final int DEFAULT_BUFFER_SIZE = 8192;
+    // The longest UTF-8 encoding of a char, or of a surrogate pair
+    private static final int MAX_BYTES_PER_CHAR = 4;
+
+    private final OutputStream outputStream;
+    private final byte[] buffer;
+    private int count = 0;
+    // Bytes written to the stream, the buffered bytes excluded
+    private long writtenToStream = 0;
+
+    /**
+     * Constructor.
+     *
+     * @param socket the socket which will be written through its {@code OutputStream}
+     */
+    public FrameOutputStream(Socket socket) {
+        try {
+            this.outputStream = socket.getOutputStream();
+        } catch (IOException e) {
+            throw new StompException(e);
+        }
+        this.buffer = new byte[DEFAULT_BUFFER_SIZE];
+    }
+
+    /**
+     * Useful for testing without socket.
+     *
+     * @param outputStream the output stream which will be written
+     * @param bufferSize   the size of the buffer, at least 4 bytes
+     */
+    protected FrameOutputStream(OutputStream outputStream, int bufferSize) {
+        if (bufferSize < MAX_BYTES_PER_CHAR) {
+            throw new IllegalArgumentException("buffer size should be at least " + MAX_BYTES_PER_CHAR + " bytes");
+        }
+        this.outputStream = outputStream;
+        this.buffer = new byte[bufferSize];
+    }
+
+    /**
+     * Encode a frame. The bytes may stay in the buffer until {@link #flush()} is called.
+     *
+     * @param frame the frame to write
+     * @throws IOException if the stream can't be written
+     */
+    public void write(Frame frame) throws IOException {
+        writeBytes(frame.command.bytes());
+        writeByte(Frame.ENDLINE_BYTE);
+        HeaderMap header = frame.header;
+        for (int i = 0; i < header.size(); i++) {
+            byte[] key = Headers.bytesOf(header.key(i));
+            if (key != null) {
+                writeBytes(key);
+            } else {
+                writeString(header.key(i));
+            }
+            writeByte(Frame.HEADER_SEPARATOR_BYTE);
+            writeString(header.value(i));
+            writeByte(Frame.ENDLINE_BYTE);
+        }
+        writeByte(Frame.ENDLINE_BYTE);
+        ByteBuffer body = frame.body();
+        if (body != null) {
+            writeBytes(body);
+        }
+        writeByte(Frame.NULL_BYTE);
+        LOGGER.trace("Frame {} written", frame.command);
+    }
+
+    /**
+     * Encode an end of line, sent as a heart-beat. The byte may stay in the buffer until {@link #flush()} is called.
+     *
+     * @throws IOException if the stream can't be written
+     */
+    public void writeHeartBeat() throws IOException {
+        writeByte(Frame.ENDLINE_BYTE);
+    }
+
+    /**
+     * Write the buffered bytes to the stream and flush it.
+     *
+     * @throws IOException if the stream can't be written
+     */
+    @Override
+    public void flush() throws IOException {
+        flushBuffer();
+        outputStream.flush();
+    }
+
+    /**
+     * @return the number of bytes of the frames written since the creation, buffered or not
+     */
+    public long written() {
+        return writtenToStream + count;
+    }
+
+    private void flushBuffer() throws IOException {
+        if (count > 0) {
+            outputStream.write(buffer, 0, count);
+            writtenToStream += count;
+            count = 0;
+        }
+    }
+
+    private void writeByte(byte value) throws IOException {
+        if (count == buffer.length) {
+            flushBuffer();
+        }
+        buffer[count++] = value;
+    }
+
+    private void writeBytes(byte[] bytes) throws IOException {
+        if (bytes.length > (buffer.length - count)) {
+            flushBuffer();
+            if (bytes.length > buffer.length) {
+                outputStream.write(bytes);
+                writtenToStream += bytes.length;
+                return;
+            }
+        }
+        System.arraycopy(bytes, 0, buffer, count, bytes.length);
+        count += bytes.length;
+    }
+
+    private void writeBytes(ByteBuffer bytes) throws IOException {
+        int length = bytes.remaining();
+        if (length <= (buffer.length - count)) {
+            if (bytes.hasArray()) {
+                System.arraycopy(bytes.array(), bytes.arrayOffset() + bytes.position(), buffer, count, length);
+            } else {
+                bytes.duplicate().get(buffer, count, length);
+            }
+            count += length;
+        } else if (bytes.hasArray()) {
+            flushBuffer();
+            outputStream.write(bytes.array(), bytes.arrayOffset() + bytes.position(), length);
+            writtenToStream += length;
+        } else {
+            ByteBuffer source = bytes.duplicate();
+            while (source.hasRemaining()) {
+                if (count == buffer.length) {
+                    flushBuffer();
+                }
+                int chunk = Math.min(source.remaining(), buffer.length - count);
+                source.get(buffer, count, chunk);
+                count += chunk;
+            }
+        }
+    }
+
+    /**
+     * Encode a string in UTF-8 into the buffer.
+     */
+    private void writeString(String value) throws IOException {
+        int length = value.length();
+        for (int i = 0; i < length; i++) {
+            if ((buffer.length - count) < MAX_BYTES_PER_CHAR) {
+                flushBuffer();
+            }
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                buffer[count++] = (byte) c;
+            } else if (c < 0x800) {
+                buffer[count++] = (byte) (0xC0 | (c >> 6));
+                buffer[count++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && ((i + 1) < length) && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                buffer[count++] = (byte) (0xF0 | (codePoint >> 18));
+                buffer[count++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                buffer[count++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                buffer[count++] = (byte) (0x80 | (codePoint & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                // Malformed surrogate, replaced like String.getBytes does
+                buffer[count++] = '?';
+            } else {
+                buffer[count++] = (byte) (0xE0 | (c >> 12));
+                buffer[count++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                buffer[count++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            outputStream.close();
+        }
+    }
+
+}
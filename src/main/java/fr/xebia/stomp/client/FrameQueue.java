@@ -0,0 +1,182 @@
+package fr.xebia.stomp.client;
+
+import java.util.LinkedList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Frames pushed by an event loop and waiting for {@link Connection#receive()}. A frame is given to the oldest waiting
+ * {@link Connection#receiveAsync()} future, or queued.
+ * <p/>
+ * A queue with watermarks pauses the reading of the connection when it holds the high watermark number of frames, and resumes it once taken
+ * down to the low watermark.
+ */
+class FrameQueue implements FrameListener {
+    private final LinkedList<Frame> frames = new LinkedList<Frame>();
+    private final LinkedList<CompletableFuture<Frame>> waiters = new LinkedList<CompletableFuture<Frame>>();
+    private StompException closeCause;
+    private final CompletableFuture<StompException> closeFuture = new CompletableFuture<StompException>();
+
+    private final int highWatermark;
+    private final int lowWatermark;
+    private final ReadFlowControl readFlowControl;
+    private boolean paused = false;
+
+    FrameQueue() {
+        this(Integer.MAX_VALUE, 0, null);
+    }
+
+    /**
+     * @param highWatermark   the number of frames from which the reading is paused
+     * @param lowWatermark    the number of frames down to which the reading is resumed
+     * @param readFlowControl the control of the reading
+     */
+    FrameQueue(int highWatermark, int lowWatermark, ReadFlowControl readFlowControl) {
+        if ((lowWatermark < 0) || (lowWatermark >= highWatermark)) {
+            throw new IllegalArgumentException("lowWatermark should be positive and less than highWatermark");
+        }
+        this.highWatermark = highWatermark;
+        this.lowWatermark = lowWatermark;
+        this.readFlowControl = readFlowControl;
+    }
+
+    /**
+     * @return the number of frames waiting to be taken
+     */
+    public synchronized int size() {
+        return frames.size();
+    }
+
+    @Override
+    public void onFrame(Frame frame) {
+        CompletableFuture<Frame> waiter = null;
+        synchronized (this) {
+            while ((waiter == null) && !waiters.isEmpty()) {
+                waiter = waiters.removeFirst();
+                if (waiter.isDone()) {
+                    // Cancelled by the caller
+                    waiter = null;
+                }
+            }
+            if (waiter == null) {
+                frames.addLast(frame);
+                if ((readFlowControl != null) && !paused && (frames.size() >= highWatermark)) {
+                    paused = true;
+                    readFlowControl.pause();
+                }
+                notifyAll();
+                return;
+            }
+        }
+        if (!waiter.complete(frame)) {
+            onFrame(frame);
+        }
+    }
+
+    public synchronized Frame take() {
+        while (frames.isEmpty()) {
+            checkNotClosed();
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new StompException(e);
+            }
+        }
+        return removeFirst();
+    }
+
+    public synchronized Frame poll(long timeout, TimeUnit unit) throws TimeoutException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (frames.isEmpty()) {
+            checkNotClosed();
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                throw new TimeoutException("No frame received in " + timeout + " " + unit);
+            }
+            try {
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new StompException(e);
+            }
+        }
+        return removeFirst();
+    }
+
+    public synchronized CompletableFuture<Frame> takeAsync() {
+        CompletableFuture<Frame> future = new CompletableFuture<Frame>();
+        if (!frames.isEmpty()) {
+            future.complete(removeFirst());
+        } else if (closeCause != null) {
+            future.completeExceptionally(closeCause);
+        } else {
+            waiters.addLast(future);
+        }
+        return future;
+    }
+
+    /**
+     * Remove the queued frames.
+     *
+     * @return the frames received and not taken yet
+     */
+    public synchronized LinkedList<Frame> drain() {
+        LinkedList<Frame> drained = new LinkedList<Frame>(frames);
+        frames.clear();
+        resumeBelowLowWatermark();
+        return drained;
+    }
+
+    /**
+     * Called with the lock.
+     */
+    private Frame removeFirst() {
+        Frame frame = frames.removeFirst();
+        resumeBelowLowWatermark();
+        return frame;
+    }
+
+    private void resumeBelowLowWatermark() {
+        if (paused && ((frames.size() <= lowWatermark) || (closeCause != null))) {
+            paused = false;
+            readFlowControl.resume();
+        }
+    }
+
+    public void close(StompException cause) {
+        LinkedList<CompletableFuture<Frame>> closedWaiters;
+        synchronized (this) {
+            if (closeCause != null) {
+                return;
+            }
+            closeCause = cause;
+            resumeBelowLowWatermark();
+            closedWaiters = new LinkedList<CompletableFuture<Frame>>(waiters);
+            waiters.clear();
+            notifyAll();
+        }
+        for (CompletableFuture<Frame> waiter : closedWaiters) {
+            waiter.completeExceptionally(cause);
+        }
+        closeFuture.complete(cause);
+    }
+
+    /**
+     * @return a future completed with the cause when the queue is closed
+     */
+    CompletableFuture<StompException> closeFuture() {
+        return closeFuture;
+    }
+
+    public synchronized boolean isClosed() {
+        return closeCause != null;
+    }
+
+    private void checkNotClosed() {
+        if (closeCause != null) {
+            throw new StompException("Connection closed", closeCause);
+        }
+    }
+}
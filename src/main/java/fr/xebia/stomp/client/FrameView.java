@@ -0,0 +1,312 @@
+package fr.xebia.stomp.client;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * A received frame read in place: the header values and the message are not copied out of the read buffer of the connection, see
+ * {@link Connection#receive(FrameViewListener)}. The same view is reused for each frame, so reading a frame with a view allocates nothing once
+ * the buffers are large enough.
+ * <p/>
+ * A view is valid only during the call of {@link FrameViewListener#onFrame(FrameView)}: its accessors throw an {@link IllegalStateException}
+ * afterwards, and the header values and the message buffer it returned are overwritten by the next frames. {@link #copy()} gives a frame which
+ * can be kept.
+ * <p/>
+ * A frame already decoded, because a thread reads the connection or because its reading was started by a timed receive, is given through a view
+ * too, backed by the frame.
+ */
+public final class FrameView {
+    private static final ByteBuffer EMPTY_BODY = ByteBuffer.allocate(0).asReadOnlyBuffer();
+
+    private Command command;
+
+    // Read in place: the ranges are relative to the start of the frame in the buffer
+    private byte[] buffer;
+    private int start;
+    // keyStart, keyEnd, valueStart, valueEnd of each header
+    private int[] ranges = new int[32];
+    private int headerCount;
+    private int bodyStart;
+    private int bodyEnd;
+    private ByteBuffer bodyBuffer;
+    // The sequence returned for the value of each header, reused from frame to frame
+    private ByteSequence[] values = new ByteSequence[8];
+
+    // Or backed by a decoded frame
+    private Frame frame;
+
+    /**
+     * @return the command of the frame
+     */
+    public Command command() {
+        checkValid();
+        return command;
+    }
+
+    /**
+     * @return the number of header lines
+     */
+    public int headerCount() {
+        checkValid();
+        return (frame != null) ? frame.header.size() : headerCount;
+    }
+
+    /**
+     * The value of a header, read in place. Compare it with {@link String#contentEquals(CharSequence)} to avoid decoding it. A value with
+     * non-ASCII bytes is decoded.
+     *
+     * @param key the header name
+     * @return the value of the header, valid during the callback only, or <code>null</code> if the frame has no such header
+     */
+    public CharSequence header(String key) {
+        checkValid();
+        if (frame != null) {
+            return frame.header.get(key);
+        }
+        int index = indexOf(key);
+        if (index < 0) {
+            return null;
+        }
+        int valueStart = start + ranges[(index << 2) + 2];
+        int valueEnd = start + ranges[(index << 2) + 3];
+        for (int i = valueStart; i < valueEnd; i++) {
+            if (buffer[i] < 0) {
+                return new String(buffer, valueStart, valueEnd - valueStart, Frame.UTF_8);
+            }
+        }
+        ByteSequence value = values[index];
+        if (value == null) {
+            value = new ByteSequence();
+            values[index] = value;
+        }
+        value.reset(buffer, valueStart, valueEnd);
+        return value;
+    }
+
+    /**
+     * Copy the UTF-8 bytes of a header value.
+     *
+     * @param key         the header name
+     * @param destination the array receiving the bytes
+     * @param offset      the index of the first byte written in the array
+     * @return the number of bytes of the value, or -1 if the frame has no such header
+     * @throws IndexOutOfBoundsException if the value doesn't fit in the array
+     */
+    public int copyHeader(String key, byte[] destination, int offset) {
+        checkValid();
+        if (frame != null) {
+            String value = frame.header.get(key);
+            if (value == null) {
+                return -1;
+            }
+            byte[] bytes = value.getBytes(Frame.UTF_8);
+            System.arraycopy(bytes, 0, destination, offset, bytes.length);
+            return bytes.length;
+        }
+        int index = indexOf(key);
+        if (index < 0) {
+            return -1;
+        }
+        int valueStart = start + ranges[(index << 2) + 2];
+        int length = start + ranges[(index << 2) + 3] - valueStart;
+        System.arraycopy(buffer, valueStart, destination, offset, length);
+        return length;
+    }
+
+    /**
+     * The message bytes, between the position and the limit of a read-only buffer. The buffer is reused for the next frames.
+     *
+     * @return the message, empty if the frame has none
+     */
+    public ByteBuffer body() {
+        checkValid();
+        if (frame != null) {
+            ByteBuffer message = frame.messageAsBuffer();
+            return (message == null) ? EMPTY_BODY : message;
+        }
+        bodyBuffer.clear();
+        bodyBuffer.position(start + bodyStart).limit(start + bodyEnd);
+        return bodyBuffer;
+    }
+
+    /**
+     * @return the number of bytes of the message
+     */
+    public int messageLength() {
+        checkValid();
+        return (frame != null) ? frame.messageLength() : bodyEnd - bodyStart;
+    }
+
+    /**
+     * Decode the header and copy the message, so the frame can be kept after the callback.
+     *
+     * @return the frame
+     */
+    public Frame copy() {
+        checkValid();
+        if (frame != null) {
+            return frame;
+        }
+        HeaderMap.Builder header = HeaderMap.builder();
+        for (int i = 0; i < headerCount; i++) {
+            int keyStart = start + ranges[i << 2];
+            int keyEnd = start + ranges[(i << 2) + 1];
+            String key = Headers.nameOf(buffer, keyStart, keyEnd);
+            if (key == null) {
+                key = decode(keyStart, keyEnd);
+            }
+            header.put(key, decode(start + ranges[(i << 2) + 2], start + ranges[(i << 2) + 3]));
+        }
+        return new Frame(command, header.build(), Arrays.copyOfRange(buffer, start + bodyStart, start + bodyEnd));
+    }
+
+    @Override
+    public String toString() {
+        return (command == null) ? "FrameView [invalid]" : "FrameView [" + copy() + "]";
+    }
+
+    /**
+     * Start a frame read in place, before its header lines are added.
+     */
+    void reset() {
+        headerCount = 0;
+    }
+
+    /**
+     * Add a header line, with indexes relative to the start of the frame.
+     */
+    void addHeader(int keyStart, int keyEnd, int valueStart, int valueEnd) {
+        int index = headerCount << 2;
+        if (index == ranges.length) {
+            ranges = Arrays.copyOf(ranges, ranges.length << 1);
+        }
+        ranges[index] = keyStart;
+        ranges[index + 1] = keyEnd;
+        ranges[index + 2] = valueStart;
+        ranges[index + 3] = valueEnd;
+        headerCount++;
+        if (headerCount > values.length) {
+            values = Arrays.copyOf(values, values.length << 1);
+        }
+    }
+
+    /**
+     * End a frame read in place, once it is fully in the buffer.
+     *
+     * @param buffer    the buffer of the frame
+     * @param start     the index of the first byte of the frame in the buffer
+     * @param bodyStart the index of the message, relative to the start
+     * @param bodyEnd   the index after the message, relative to the start
+     */
+    void complete(Command command, byte[] buffer, int start, int bodyStart, int bodyEnd) {
+        if (this.buffer != buffer) {
+            this.buffer = buffer;
+            this.bodyBuffer = ByteBuffer.wrap(buffer).asReadOnlyBuffer();
+        }
+        this.start = start;
+        this.bodyStart = bodyStart;
+        this.bodyEnd = bodyEnd;
+        this.command = command;
+    }
+
+    /**
+     * Give a decoded frame to the listener through this view.
+     */
+    void deliver(Frame decoded, FrameViewListener listener) {
+        command = decoded.command;
+        frame = decoded;
+        try {
+            listener.onFrame(this);
+        } finally {
+            clear();
+        }
+    }
+
+    /**
+     * Invalidate the view once the listener returned.
+     */
+    void clear() {
+        command = null;
+        frame = null;
+    }
+
+    private void checkValid() {
+        if (command == null) {
+            throw new IllegalStateException("A frame view is valid only during the call of the listener, copy the frame to keep it");
+        }
+    }
+
+    /**
+     * @return the index of the last header with the key, as the parsers keep the last value, or -1
+     */
+    private int indexOf(String key) {
+        byte[] wellKnown = Headers.bytesOf(key);
+        for (int i = headerCount - 1; i >= 0; i--) {
+            int keyStart = start + ranges[i << 2];
+            int keyEnd = start + ranges[(i << 2) + 1];
+            if ((wellKnown != null) ? Headers.equals(wellKnown, buffer, keyStart, keyEnd) : equals(key, keyStart, keyEnd)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private boolean equals(String key, int keyStart, int keyEnd) {
+        if (key.length() != (keyEnd - keyStart)) {
+            // May still be equal with non-ASCII characters
+            return (key.length() < (keyEnd - keyStart)) && key.equals(decode(keyStart, keyEnd));
+        }
+        for (int i = 0; i < key.length(); i++) {
+            char c = key.charAt(i);
+            if (c >= 0x80) {
+                return key.equals(decode(keyStart, keyEnd));
+            }
+            if (c != buffer[keyStart + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private String decode(int from, int to) {
+        return new String(buffer, from, to - from, Frame.UTF_8);
+    }
+
+    /**
+     * ASCII characters read in place.
+     */
+    private static final class ByteSequence implements CharSequence {
+        private byte[] bytes;
+        private int from;
+        private int to;
+
+        void reset(byte[] bytes, int from, int to) {
+            this.bytes = bytes;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        public int length() {
+            return to - from;
+        }
+
+        @Override
+        public char charAt(int index) {
+            if ((index < 0) || (index >= (to - from))) {
+                throw new IndexOutOfBoundsException("Index " + index + " out of " + (to - from));
+            }
+            return (char) bytes[from + index];
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return toString().substring(start, end);
+        }
+
+        @Override
+        public String toString() {
+            return new String(bytes, from, to - from, Frame.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,9 @@
+package fr.xebia.stomp.client;
+
+/**
+ * Receive a frame read in place, see {@link Connection#receive(FrameViewListener)}. The view is valid only during the call.
+ */
+public interface FrameViewListener {
+
+    void onFrame(FrameView frame);
+}
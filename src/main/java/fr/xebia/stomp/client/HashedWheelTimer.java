@@ -0,0 +1,152 @@
+package fr.xebia.stomp.client;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Timer for many approximate timeouts, like the heart-beats of all the connections. The timeouts are hashed into the buckets of a wheel by their
+ * deadline, and one thread moves to the next bucket at each tick and runs its expired timeouts. So scheduling and cancelling cost a constant time
+ * whatever the number of timeouts, and a timeout runs at most one tick late. The tasks run on the timer thread, they must be short.
+ */
+class HashedWheelTimer {
+    private static final Logger LOGGER = LoggerFactory.getLogger(HashedWheelTimer.class);
+
+    /**
+     * The timer of the heart-beats and of the connection pools.
+     */
+    static final HashedWheelTimer SHARED = new HashedWheelTimer(10, TimeUnit.MILLISECONDS, 512, "stomp-timer");
+
+    private final long tickNanos;
+    private final LinkedList<Timeout>[] wheel;
+    private final ConcurrentLinkedQueue<Timeout> scheduled = new ConcurrentLinkedQueue<Timeout>();
+    private final String threadName;
+    private Thread worker;
+    private long startNanos;
+
+    /**
+     * @param tickDuration the precision of the timer
+     * @param unit         the unit of tickDuration
+     * @param wheelSize    the number of buckets, the timeouts further than a turn of the wheel wait for the next turns
+     * @param threadName   the name of the timer thread, started at the first timeout
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    HashedWheelTimer(long tickDuration, TimeUnit unit, int wheelSize, String threadName) {
+        if ((tickDuration <= 0) || (wheelSize <= 0)) {
+            throw new IllegalArgumentException("tickDuration and wheelSize should be positive");
+        }
+        this.tickNanos = unit.toNanos(tickDuration);
+        this.wheel = new LinkedList[wheelSize];
+        for (int i = 0; i < wheelSize; i++) {
+            wheel[i] = new LinkedList<Timeout>();
+        }
+        this.threadName = threadName;
+    }
+
+    /**
+     * Run a task once the delay is elapsed.
+     *
+     * @param task  the task, run by the timer thread
+     * @param delay the minimum time before the task runs
+     * @param unit  the unit of delay
+     * @return the timeout, to cancel the task
+     */
+    Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        start();
+        Timeout timeout = new Timeout(task, System.nanoTime() - startNanos + unit.toNanos(delay));
+        scheduled.add(timeout);
+        return timeout;
+    }
+
+    private synchronized void start() {
+        if (worker == null) {
+            startNanos = System.nanoTime();
+            worker = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    work();
+                }
+            }, threadName);
+            worker.setDaemon(true);
+            worker.start();
+        }
+    }
+
+    private void work() {
+        long tick = 0;
+        while (true) {
+            long deadline = (tick + 1) * tickNanos;
+            long sleepNanos;
+            while ((sleepNanos = deadline - (System.nanoTime() - startNanos)) > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleepNanos);
+                } catch (InterruptedException e) {
+                    // Shared daemon thread, only stopped with the JVM
+                }
+            }
+            transferScheduled(tick);
+            expire(wheel[(int) (tick % wheel.length)], deadline);
+            tick++;
+        }
+    }
+
+    /**
+     * Put the new timeouts in the bucket of their deadline. A deadline already passed goes in the current bucket.
+     */
+    private void transferScheduled(long tick) {
+        Timeout timeout;
+        while ((timeout = scheduled.poll()) != null) {
+            if (timeout.cancelled) {
+                continue;
+            }
+            long ticks = Math.max(tick, (timeout.deadlineNanos + tickNanos - 1) / tickNanos - 1);
+            timeout.remainingRounds = (ticks - tick) / wheel.length;
+            wheel[(int) (ticks % wheel.length)].add(timeout);
+        }
+    }
+
+    private void expire(LinkedList<Timeout> bucket, long deadline) {
+        Iterator<Timeout> iterator = bucket.iterator();
+        while (iterator.hasNext()) {
+            Timeout timeout = iterator.next();
+            if (timeout.cancelled) {
+                iterator.remove();
+            } else if ((timeout.remainingRounds <= 0) && (timeout.deadlineNanos <= deadline)) {
+                iterator.remove();
+                try {
+                    timeout.task.run();
+                } catch (RuntimeException e) {
+                    LOGGER.error("Timer task failed", e);
+                }
+            } else {
+                timeout.remainingRounds--;
+            }
+        }
+    }
+
+    /**
+     * A scheduled task.
+     */
+    static class Timeout {
+        private final Runnable task;
+        private final long deadlineNanos;
+        private long remainingRounds;
+        private volatile boolean cancelled = false;
+
+        private Timeout(Runnable task, long deadlineNanos) {
+            this.task = task;
+            this.deadlineNanos = deadlineNanos;
+        }
+
+        /**
+         * Don't run the task, if it is not run yet. The timeout is removed from its bucket at the next turn of the wheel.
+         */
+        void cancel() {
+            cancelled = true;
+        }
+    }
+}
@@ -0,0 +1,245 @@
+package fr.xebia.stomp.client;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * The immutable header of a {@link Frame}. A frame has a few headers, so the keys and the values are kept in one flat array, searched linearly:
+ * no entry object nor hashing per header, and the well-known keys, shared constants of {@link Headers}, are usually matched by reference. The
+ * hash code is computed once.
+ * <p/>
+ * A header map is built by a {@link Builder}, or copied from another map. A changed header gives a new map, see {@link #with(String, String)}.
+ */
+public final class HeaderMap extends AbstractMap<String, String> {
+    public static final HeaderMap EMPTY = new HeaderMap(new String[0]);
+
+    // key0, value0, key1, value1...
+    private final String[] entries;
+    // 0 until computed
+    private int hash;
+
+    private HeaderMap(String[] entries) {
+        this.entries = entries;
+    }
+
+    /**
+     * @param map the headers, may be <code>null</code>
+     * @return the map itself if it is a header map, otherwise an immutable copy
+     */
+    public static HeaderMap copyOf(Map<String, String> map) {
+        if (map instanceof HeaderMap) {
+            return (HeaderMap) map;
+        }
+        if ((map == null) || map.isEmpty()) {
+            return EMPTY;
+        }
+        Builder builder = new Builder(map.size());
+        for (Map.Entry<String, String> entry : map.entrySet()) {
+            builder.put(entry.getKey(), entry.getValue());
+        }
+        return builder.build();
+    }
+
+    public static Builder builder() {
+        return new Builder(Builder.DEFAULT_CAPACITY);
+    }
+
+    @Override
+    public int size() {
+        return entries.length >> 1;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return entries.length == 0;
+    }
+
+    /**
+     * @param index between 0 and {@link #size()}, excluded
+     * @return the key of the header at the index, in the insertion order
+     */
+    public String key(int index) {
+        return entries[index << 1];
+    }
+
+    /**
+     * @param index between 0 and {@link #size()}, excluded
+     * @return the value of the header at the index
+     */
+    public String value(int index) {
+        return entries[(index << 1) + 1];
+    }
+
+    @Override
+    public String get(Object key) {
+        int index = indexOf(entries, entries.length, key);
+        return (index < 0) ? null : entries[index + 1];
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return indexOf(entries, entries.length, key) >= 0;
+    }
+
+    /**
+     * @return a header map with the given header added or replaced, this map is not changed
+     */
+    public HeaderMap with(String key, String value) {
+        checkNotNull(key, value);
+        int index = indexOf(entries, entries.length, key);
+        if ((index >= 0) && value.equals(entries[index + 1])) {
+            return this;
+        }
+        String[] newEntries;
+        if (index >= 0) {
+            newEntries = entries.clone();
+            newEntries[index + 1] = value;
+        } else {
+            newEntries = Arrays.copyOf(entries, entries.length + 2);
+            newEntries[entries.length] = key;
+            newEntries[entries.length + 1] = value;
+        }
+        return new HeaderMap(newEntries);
+    }
+
+    @Override
+    public Set<Map.Entry<String, String>> entrySet() {
+        return new AbstractSet<Map.Entry<String, String>>() {
+            @Override
+            public Iterator<Map.Entry<String, String>> iterator() {
+                return new Iterator<Map.Entry<String, String>>() {
+                    private int index = 0;
+
+                    @Override
+                    public boolean hasNext() {
+                        return index < entries.length;
+                    }
+
+                    @Override
+                    public Map.Entry<String, String> next() {
+                        if (index >= entries.length) {
+                            throw new NoSuchElementException();
+                        }
+                        Map.Entry<String, String> entry = new SimpleImmutableEntry<String, String>(entries[index], entries[index + 1]);
+                        index += 2;
+                        return entry;
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return HeaderMap.this.size();
+            }
+        };
+    }
+
+    @Override
+    public int hashCode() {
+        int result = hash;
+        if ((result == 0) && (entries.length > 0)) {
+            // Same as AbstractMap, the sum of the entry hash codes
+            for (int i = 0; i < entries.length; i += 2) {
+                result += entries[i].hashCode() ^ entries[i + 1].hashCode();
+            }
+            hash = result;
+        }
+        return result;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof HeaderMap)) {
+            return super.equals(obj);
+        }
+        HeaderMap other = (HeaderMap) obj;
+        if ((entries.length != other.entries.length) || (hashCode() != other.hashCode())) {
+            return false;
+        }
+        for (int i = 0; i < entries.length; i += 2) {
+            if (!entries[i + 1].equals(other.get(entries[i]))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int indexOf(String[] entries, int length, Object key) {
+        for (int i = 0; i < length; i += 2) {
+            if (entries[i] == key) {
+                return i;
+            }
+        }
+        if (key == null) {
+            return -1;
+        }
+        for (int i = 0; i < length; i += 2) {
+            if (entries[i].equals(key)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static void checkNotNull(String key, String value) {
+        if ((key == null) || (value == null)) {
+            throw new NullPointerException("A header key or value can't be null: " + key + "=" + value);
+        }
+    }
+
+    /**
+     * Collect the headers of a frame. A key put twice keeps its last value. The builder can be cleared and reused once the map is built.
+     */
+    public static final class Builder {
+        private static final int DEFAULT_CAPACITY = 8;
+
+        private String[] entries;
+        private int length = 0;
+
+        private Builder(int capacity) {
+            this.entries = new String[Math.max(capacity, 1) << 1];
+        }
+
+        public Builder put(String key, String value) {
+            checkNotNull(key, value);
+            int index = indexOf(entries, length, key);
+            if (index >= 0) {
+                entries[index + 1] = value;
+                return this;
+            }
+            if (length == entries.length) {
+                entries = Arrays.copyOf(entries, entries.length << 1);
+            }
+            entries[length++] = key;
+            entries[length++] = value;
+            return this;
+        }
+
+        public String get(String key) {
+            int index = indexOf(entries, length, key);
+            return (index < 0) ? null : entries[index + 1];
+        }
+
+        public boolean containsKey(String key) {
+            return indexOf(entries, length, key) >= 0;
+        }
+
+        public HeaderMap build() {
+            return (length == 0) ? EMPTY : new HeaderMap(Arrays.copyOf(entries, length));
+        }
+
+        public Builder clear() {
+            Arrays.fill(entries, 0, length, null);
+            length = 0;
+            return this;
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package fr.xebia.stomp.client;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Names of the well-known headers. Their bytes are encoded once: the encoder writes them without encoding and the parser finds them without
+ * decoding.
+ * 
+ * @see Stomp 1.1 specification <a href="http://stomp.github.com/stomp-specification-1.1.html#Frames_and_Headers">frames and headers</a>
+ */
+public final class Headers {
+	public static final String ACCEPT_VERSION = "accept-version";
+	public static final String ACK = "ack";
+	public static final String CONTENT_LENGTH = "content-length";
+	public static final String CONTENT_TYPE = "content-type";
+	public static final String DESTINATION = "destination";
+	public static final String EXPIRES = "expires";
+	public static final String HEART_BEAT = "heart-beat";
+	public static final String HOST = "host";
+	public static final String ID = "id";
+	public static final String LOGIN = "login";
+	public static final String MESSAGE = "message";
+	public static final String MESSAGE_ID = "message-id";
+	public static final String PASSCODE = "passcode";
+	public static final String PERSISTENT = "persistent";
+	public static final String PRIORITY = "priority";
+	public static final String RECEIPT = "receipt";
+	public static final String RECEIPT_ID = "receipt-id";
+	public static final String SERVER = "server";
+	public static final String SESSION = "session";
+	public static final String SUBSCRIPTION = "subscription";
+	public static final String TIMESTAMP = "timestamp";
+	public static final String TRANSACTION = "transaction";
+	public static final String VERSION = "version";
+
+	private static final String[] NAMES = { ACCEPT_VERSION, ACK, CONTENT_LENGTH, CONTENT_TYPE, DESTINATION, EXPIRES, HEART_BEAT, HOST, ID, LOGIN,
+			MESSAGE, MESSAGE_ID, PASSCODE, PERSISTENT, PRIORITY, RECEIPT, RECEIPT_ID, SERVER, SESSION, SUBSCRIPTION, TIMESTAMP, TRANSACTION, VERSION };
+	private static final byte[][] NAMES_BYTES = new byte[NAMES.length][];
+	private static final Map<String, byte[]> BYTES_BY_NAME = new HashMap<String, byte[]>();
+
+	static {
+		for (int i = 0; i < NAMES.length; i++) {
+			NAMES_BYTES[i] = NAMES[i].getBytes(Frame.UTF_8);
+			BYTES_BY_NAME.put(NAMES[i], NAMES_BYTES[i]);
+		}
+	}
+
+	private Headers() {
+		// Constants
+	}
+
+	/**
+	 * @param name a header name
+	 * @return the UTF-8 bytes of the name if it is a well-known header, <code>null</code> otherwise
+	 */
+	static byte[] bytesOf(String name) {
+		return BYTES_BY_NAME.get(name);
+	}
+
+	/**
+	 * Find a well-known header name written in a buffer, without decoding it.
+	 * 
+	 * @param buffer the buffer
+	 * @param start the index of the first byte of the name
+	 * @param end the index after the last byte of the name
+	 * @return the constant name or <code>null</code> if it is not a well-known header
+	 */
+	static String nameOf(byte[] buffer, int start, int end) {
+		for (int i = 0; i < NAMES_BYTES.length; i++) {
+			if (equals(NAMES_BYTES[i], buffer, start, end)) {
+				return NAMES[i];
+			}
+		}
+		return null;
+	}
+
+	static boolean equals(byte[] bytes, byte[] buffer, int start, int end) {
+		if ((bytes.length != (end - start)) || (bytes[0] != buffer[start])) {
+			return false;
+		}
+		for (int i = 1; i < bytes.length; i++) {
+			if (bytes[i] != buffer[start + i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
@@ -0,0 +1,154 @@
+package fr.xebia.stomp.client;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Heart-beating of a connection, as negotiated with the CONNECT and CONNECTED frames, see
+ * http://stomp.github.com/stomp-specification-1.1.html#Heart-beating. An end of line is sent once nothing was written for the outgoing
+ * interval, and the connection fails when nothing was received during the incoming interval times a tolerance. The checks of all the
+ * connections are run by the shared {@link HashedWheelTimer}, the heart-beats are written by another thread.
+ */
+class HeartBeat {
+    private static final Logger LOGGER = LoggerFactory.getLogger(HeartBeat.class);
+    private static final HashedWheelTimer TIMER = HashedWheelTimer.SHARED;
+    // The incoming heart-beats may be late because of the network latency or of the timer precision
+    private static final int INCOMING_TOLERANCE = 2;
+
+    private final Connection connection;
+    private final long outgoingMillis;
+    private final long incomingMillis;
+
+    // Only used by the timer thread
+    private long lastReadBytes;
+    private long lastReadNanos;
+
+    private volatile HashedWheelTimer.Timeout outgoingTimeout;
+    private volatile HashedWheelTimer.Timeout incomingTimeout;
+    private volatile boolean stopped = false;
+
+    /**
+     * @param connection     the connection to watch
+     * @param outgoingMillis the negotiated interval between the outgoing heart-beats, 0 for none
+     * @param incomingMillis the negotiated interval between the incoming heart-beats, 0 for none
+     */
+    HeartBeat(Connection connection, long outgoingMillis, long incomingMillis) {
+        this.connection = connection;
+        this.outgoingMillis = outgoingMillis;
+        this.incomingMillis = incomingMillis;
+    }
+
+    /**
+     * Negotiate the intervals from the <code>heart-beat</code> headers of the CONNECT and CONNECTED frames.
+     *
+     * @return the outgoing and incoming intervals in milliseconds, 0 for none
+     */
+    static long[] negotiate(String clientHeartBeat, String serverHeartBeat) {
+        long[] client = parse(clientHeartBeat);
+        long[] server = parse(serverHeartBeat);
+        return new long[] { interval(client[0], server[1]), interval(server[0], client[1]) };
+    }
+
+    private static long interval(long sender, long receiver) {
+        return ((sender == 0) || (receiver == 0)) ? 0 : Math.max(sender, receiver);
+    }
+
+    private static long[] parse(String heartBeat) {
+        if (heartBeat == null) {
+            return new long[] { 0, 0 };
+        }
+        int separator = heartBeat.indexOf(',');
+        if (separator == -1) {
+            throw new StompException("Wrong heart-beat header '" + heartBeat + "'");
+        }
+        try {
+            return new long[] { Long.parseLong(heartBeat.substring(0, separator).trim()), Long.parseLong(heartBeat.substring(separator + 1).trim()) };
+        } catch (NumberFormatException e) {
+            throw new StompException("Wrong heart-beat header '" + heartBeat + "'", e);
+        }
+    }
+
+    void start() {
+        if (outgoingMillis > 0) {
+            scheduleOutgoing(TimeUnit.MILLISECONDS.toNanos(outgoingMillis));
+        }
+        if (incomingMillis > 0) {
+            lastReadBytes = connection.readBytes();
+            lastReadNanos = System.nanoTime();
+            incomingTimeout = TIMER.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    checkIncoming();
+                }
+            }, incomingMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    void stop() {
+        stopped = true;
+        HashedWheelTimer.Timeout timeout = outgoingTimeout;
+        if (timeout != null) {
+            timeout.cancel();
+        }
+        timeout = incomingTimeout;
+        if (timeout != null) {
+            timeout.cancel();
+        }
+    }
+
+    /**
+     * Send a heart-beat if nothing was written for the outgoing interval, otherwise check again an interval after the last write.
+     */
+    private void checkOutgoing() {
+        if (stopped) {
+            return;
+        }
+        long outgoingNanos = TimeUnit.MILLISECONDS.toNanos(outgoingMillis);
+        long idleNanos = System.nanoTime() - connection.lastWriteNanos();
+        if (idleNanos < outgoingNanos) {
+            scheduleOutgoing(outgoingNanos - idleNanos);
+            return;
+        }
+        try {
+            connection.sendHeartBeat();
+        } catch (StompException e) {
+            LOGGER.warn("Can't send a heart-beat: {}", e.getMessage());
+            return;
+        }
+        scheduleOutgoing(outgoingNanos);
+    }
+
+    private void scheduleOutgoing(long delayNanos) {
+        outgoingTimeout = TIMER.schedule(new Runnable() {
+            @Override
+            public void run() {
+                checkOutgoing();
+            }
+        }, delayNanos, TimeUnit.NANOSECONDS);
+    }
+
+    private void checkIncoming() {
+        if (stopped) {
+            return;
+        }
+        long readBytes = connection.readBytes();
+        long now = System.nanoTime();
+        if ((readBytes != lastReadBytes) || connection.isReadingPaused()) {
+            // While the reading is paused, the server heart-beats wait in the socket buffers
+            lastReadBytes = readBytes;
+            lastReadNanos = now;
+        } else if ((now - lastReadNanos) > TimeUnit.MILLISECONDS.toNanos(incomingMillis * INCOMING_TOLERANCE)) {
+            connection.fail(new StompException("No heart-beat received from the server for " + TimeUnit.NANOSECONDS.toMillis(now - lastReadNanos)
+                    + "ms"));
+            return;
+        }
+        incomingTimeout = TIMER.schedule(new Runnable() {
+            @Override
+            public void run() {
+                checkIncoming();
+            }
+        }, incomingMillis, TimeUnit.MILLISECONDS);
+    }
+}
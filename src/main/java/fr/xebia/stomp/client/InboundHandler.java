@@ -0,0 +1,14 @@
+package fr.xebia.stomp.client;
+
+/**
+ * Receive the frames read by a transport driven by an {@link EventLoop}.
+ */
+interface InboundHandler extends FrameListener {
+
+    /**
+     * The transport can't be read anymore.
+     *
+     * @param cause the reason, the end of the stream or an I/O error
+     */
+    void onClose(StompException cause);
+}
@@ -0,0 +1,10 @@
+package fr.xebia.stomp.client;
+
+/**
+ * Receive the MESSAGE frames of a subscription, see {@link FrameBuilder.SubscribeBuilder#withListener(MessageListener)}. It is called by the
+ * thread reading the connection, so it should not block.
+ */
+public interface MessageListener {
+
+    void onMessage(Frame message);
+}
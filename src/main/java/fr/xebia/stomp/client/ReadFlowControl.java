@@ -0,0 +1,60 @@
+package fr.xebia.stomp.client;
+
+/**
+ * Stop reading a connection while one of its subscription queues is above its high watermark, see
+ * {@link FrameBuilder.SubscribeBuilder#prefetch(int)}. A reader thread waits before reading the next frame, an event loop stops selecting the
+ * channel for reading. So the server stops sending once the socket buffers are full, instead of the client buffering without limit.
+ */
+class ReadFlowControl {
+    // Guarded by this
+    private int pausedQueues = 0;
+    private ChannelTransport channelTransport;
+
+    /**
+     * Called by a queue reaching its high watermark.
+     */
+    synchronized void pause() {
+        pausedQueues++;
+        if ((pausedQueues == 1) && (channelTransport != null)) {
+            channelTransport.pauseReading();
+        }
+    }
+
+    /**
+     * Called by a paused queue going down to its low watermark, or closed.
+     */
+    synchronized void resume() {
+        pausedQueues--;
+        if (pausedQueues == 0) {
+            if (channelTransport != null) {
+                channelTransport.resumeReading();
+            }
+            notifyAll();
+        }
+    }
+
+    synchronized boolean isPaused() {
+        return pausedQueues > 0;
+    }
+
+    /**
+     * Called by a reader thread before reading a frame.
+     *
+     * @throws InterruptedException if the reader is interrupted while paused
+     */
+    synchronized void awaitResumed() throws InterruptedException {
+        while (pausedQueues > 0) {
+            wait();
+        }
+    }
+
+    /**
+     * Control the reading of a transport registered on an event loop.
+     */
+    synchronized void readBy(ChannelTransport transport) {
+        this.channelTransport = transport;
+        if (pausedQueues > 0) {
+            transport.pauseReading();
+        }
+    }
+}
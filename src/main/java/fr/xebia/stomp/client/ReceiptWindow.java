@@ -0,0 +1,162 @@
+package fr.xebia.stomp.client;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+/**
+ * The frames sent with {@link Connection#sendAsync(Frame)} and waiting for their RECEIPT frame. A receipt id is generated for each frame, and at
+ * most a given number of frames are waiting: the next send waits for a receipt. The futures are completed by the thread reading the connection.
+ * <p/>
+ * A thread calling the listeners of the connection can't wait for a receipt, see {@link FrameDispatcher#isListenerThread()}: it fails instead
+ * of waiting for a permit or for a future.
+ */
+class ReceiptWindow {
+    private final Semaphore permits;
+    private final FrameDispatcher dispatcher;
+    private final ConcurrentHashMap<String, CompletableFuture<Frame>> pending = new ConcurrentHashMap<String, CompletableFuture<Frame>>();
+    private final AtomicLong receiptCount = new AtomicLong();
+
+    /**
+     * @param size       the maximum number of frames waiting for their receipt
+     * @param dispatcher the dispatcher routing the receipts
+     */
+    ReceiptWindow(int size, FrameDispatcher dispatcher) {
+        if (size <= 0) {
+            throw new IllegalArgumentException("The receipt window size should be positive");
+        }
+        this.permits = new Semaphore(size);
+        this.dispatcher = dispatcher;
+    }
+
+    /**
+     * @param frame the frame which will be sent
+     * @return the receipt header of the frame, or a generated receipt id if it has none
+     */
+    String receiptOf(Frame frame) {
+        String receipt = frame.header.get(Headers.RECEIPT);
+        return (receipt == null) ? "receipt-" + receiptCount.incrementAndGet() : receipt;
+    }
+
+    /**
+     * Wait for a receipt id, once a receipt is waited for less than the window size. The frame is sent with this id in its receipt header. A
+     * thread calling the listeners can't wait, so it fails if the window is full.
+     *
+     * @param receiptId the receipt id, see {@link #receiptOf(Frame)}
+     * @return the future of the RECEIPT frame
+     * @throws StompException if the window is full and the calling thread calls the listeners
+     */
+    CompletableFuture<Frame> register(final String receiptId) {
+        if (!permits.tryAcquire()) {
+            if (dispatcher.isListenerThread()) {
+                throw new StompException("The receipt window is full, a thread calling the listeners can't wait for the receipts");
+            }
+            try {
+                permits.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new StompException("Interrupted while waiting for a receipt", e);
+            }
+        }
+        CompletableFuture<Frame> future = new ReceiptFuture();
+        if (pending.putIfAbsent(receiptId, future) != null) {
+            permits.release();
+            throw new IllegalArgumentException("A frame with the receipt " + receiptId + " is already waiting");
+        }
+        future.whenComplete(new BiConsumer<Frame, Throwable>() {
+            @Override
+            public void accept(Frame frame, Throwable cause) {
+                if (pending.remove(receiptId) != null) {
+                    permits.release();
+                }
+            }
+        });
+        return future;
+    }
+
+    /**
+     * @return <code>true</code> if the RECEIPT frame completed a future
+     */
+    boolean onReceipt(Frame frame) {
+        String receiptId = frame.header.get(Headers.RECEIPT_ID);
+        CompletableFuture<Frame> future = (receiptId == null) ? null : pending.get(receiptId);
+        if (future == null) {
+            return false;
+        }
+        future.complete(frame);
+        return true;
+    }
+
+    /**
+     * An ERROR frame with a <code>receipt-id</code> header fails the future of the frame which caused it.
+     *
+     * @return <code>true</code> if the ERROR frame completed a future
+     */
+    boolean onError(Frame frame) {
+        String receiptId = frame.header.get(Headers.RECEIPT_ID);
+        CompletableFuture<Frame> future = (receiptId == null) ? null : pending.get(receiptId);
+        if (future == null) {
+            return false;
+        }
+        future.completeExceptionally(new StompException("Error received for the receipt " + receiptId + ": " + frame.header.get(Headers.MESSAGE)));
+        return true;
+    }
+
+    /**
+     * Fail the future of a frame which couldn't be sent, or all the futures when the connection is closed or lost.
+     */
+    void fail(String receiptId, StompException cause) {
+        CompletableFuture<Frame> future = pending.get(receiptId);
+        if (future != null) {
+            future.completeExceptionally(cause);
+        }
+    }
+
+    void failAll(StompException cause) {
+        for (Map.Entry<String, CompletableFuture<Frame>> entry : pending.entrySet()) {
+            entry.getValue().completeExceptionally(cause);
+        }
+    }
+
+    /**
+     * @return the number of frames waiting for their receipt
+     */
+    int inFlight() {
+        return pending.size();
+    }
+
+    /**
+     * A future which fails instead of waiting on a thread calling the listeners, where the receipt would never come.
+     */
+    private class ReceiptFuture extends CompletableFuture<Frame> {
+        @Override
+        public Frame get() throws InterruptedException, ExecutionException {
+            checkCanWait();
+            return super.get();
+        }
+
+        @Override
+        public Frame get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+            checkCanWait();
+            return super.get(timeout, unit);
+        }
+
+        @Override
+        public Frame join() {
+            checkCanWait();
+            return super.join();
+        }
+
+        private void checkCanWait() {
+            if (!isDone() && dispatcher.isListenerThread()) {
+                throw new StompException("Can't wait for a receipt on a thread calling the listeners, the reading of the connection waits for it");
+            }
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package fr.xebia.stomp.client;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Run the reads of {@link Connection#receiveAsync()} for a connection without reader thread. The reads of a connection run one at a time and in
+ * order, on a shared executor: virtual threads when the JVM has them, otherwise a pool of daemon threads. So a connection has no thread of its
+ * own, and a thread is only used while a read is waiting. Another executor can be given to
+ * {@link FrameBuilder.ConnectBuilder#receiveExecutor(Executor)}.
+ * <p/>
+ * Once shut down by the close of the connection, the reads not started yet are cancelled.
+ */
+class ReceiveExecutor implements Executor {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ReceiveExecutor.class);
+
+    static final Executor SHARED = sharedExecutor("stomp-receive-");
+
+    private final Executor executor;
+
+    // Guarded by this
+    private final ArrayDeque<Runnable> tasks = new ArrayDeque<Runnable>();
+    private boolean running = false;
+    private boolean shutdown = false;
+
+    ReceiveExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        synchronized (this) {
+            if (shutdown) {
+                throw new RejectedExecutionException("The connection is closed");
+            }
+            tasks.addLast(task);
+            if (running) {
+                return;
+            }
+            running = true;
+        }
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    runTasks();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // No run is coming for the task, the next one starts again
+            synchronized (this) {
+                tasks.remove(task);
+                running = false;
+            }
+            throw e;
+        }
+    }
+
+    private void runTasks() {
+        while (true) {
+            Runnable task;
+            synchronized (this) {
+                task = tasks.pollFirst();
+                if (task == null) {
+                    running = false;
+                    return;
+                }
+            }
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                LOGGER.error("Receive failed", e);
+            }
+        }
+    }
+
+    /**
+     * Cancel the reads not started yet. The running one ends with the close of the transport.
+     */
+    void shutdown() {
+        ArrayDeque<Runnable> cancelled;
+        synchronized (this) {
+            shutdown = true;
+            cancelled = new ArrayDeque<Runnable>(tasks);
+            tasks.clear();
+        }
+        for (Runnable task : cancelled) {
+            if (task instanceof Future) {
+                ((Future<?>) task).cancel(false);
+            }
+        }
+    }
+
+    /**
+     * An executor for the blocking I/O of all the connections: virtual threads when the JVM has them, otherwise a pool of daemon threads.
+     */
+    static Executor sharedExecutor(final String threadNamePrefix) {
+        try {
+            // Java 21
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            LOGGER.debug("No virtual threads, the {} threads are pooled daemon threads", threadNamePrefix);
+        }
+        final AtomicInteger threadCount = new AtomicInteger();
+        return Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, threadNamePrefix + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+}
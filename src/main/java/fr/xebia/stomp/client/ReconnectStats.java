@@ -0,0 +1,114 @@
+package fr.xebia.stomp.client;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Statistics of a resilient connection: the outages, the time to reconnect and the frames buffered while disconnected.
+ */
+public class ReconnectStats {
+    private final AtomicLong reconnects = new AtomicLong();
+    private final AtomicLong failedAttempts = new AtomicLong();
+    private final AtomicLong lastReconnectMillis = new AtomicLong();
+    private final AtomicLong maxReconnectMillis = new AtomicLong();
+    private final AtomicLong totalReconnectMillis = new AtomicLong();
+    private final AtomicLong bufferedFrames = new AtomicLong();
+    private final AtomicLong maxBufferedFrames = new AtomicLong();
+    private final AtomicLong rejectedFrames = new AtomicLong();
+    private final AtomicLong lostFrames = new AtomicLong();
+
+    void recordReconnect(long millis) {
+        reconnects.incrementAndGet();
+        lastReconnectMillis.set(millis);
+        totalReconnectMillis.addAndGet(millis);
+        long max;
+        do {
+            max = maxReconnectMillis.get();
+        } while ((millis > max) && !maxReconnectMillis.compareAndSet(max, millis));
+    }
+
+    void recordFailedAttempt() {
+        failedAttempts.incrementAndGet();
+    }
+
+    void recordBuffered(long buffered) {
+        bufferedFrames.set(buffered);
+        long max;
+        do {
+            max = maxBufferedFrames.get();
+        } while ((buffered > max) && !maxBufferedFrames.compareAndSet(max, buffered));
+    }
+
+    void recordRejected() {
+        rejectedFrames.incrementAndGet();
+    }
+
+    void recordLost(long frames) {
+        lostFrames.addAndGet(frames);
+    }
+
+    /**
+     * @return the number of successful reconnections
+     */
+    public long reconnects() {
+        return reconnects.get();
+    }
+
+    /**
+     * @return the number of connection attempts which failed during the outages
+     */
+    public long failedAttempts() {
+        return failedAttempts.get();
+    }
+
+    /**
+     * @return the time between the loss of the connection and the last reconnection, in milliseconds
+     */
+    public long lastReconnectMillis() {
+        return lastReconnectMillis.get();
+    }
+
+    public long maxReconnectMillis() {
+        return maxReconnectMillis.get();
+    }
+
+    public double averageReconnectMillis() {
+        long localReconnects = reconnects.get();
+        return (localReconnects == 0) ? 0 : ((double) totalReconnectMillis.get() / localReconnects);
+    }
+
+    /**
+     * @return the number of frames buffered during the current outage, 0 when connected
+     */
+    public long bufferedFrames() {
+        return bufferedFrames.get();
+    }
+
+    /**
+     * @return the highest number of frames buffered during an outage
+     */
+    public long maxBufferedFrames() {
+        return maxBufferedFrames.get();
+    }
+
+    /**
+     * @return the number of frames refused because the buffer was full
+     */
+    public long rejectedFrames() {
+        return rejectedFrames.get();
+    }
+
+    /**
+     * @return the number of frames written to a connection which was lost before they were flushed
+     */
+    public long lostFrames() {
+        return lostFrames.get();
+    }
+
+    @Override
+    public String toString() {
+        return "ReconnectStats [reconnects=" + reconnects() + ", failedAttempts=" + failedAttempts() + ", lastReconnectMillis="
+                + lastReconnectMillis() + ", maxReconnectMillis=" + maxReconnectMillis() + ", averageReconnectMillis=" + averageReconnectMillis()
+                + ", bufferedFrames=" + bufferedFrames() + ", maxBufferedFrames=" + maxBufferedFrames() + ", rejectedFrames=" + rejectedFrames()
+                + ", lostFrames=" + lostFrames() + "]";
+    }
+}
@@ -0,0 +1,181 @@
+package fr.xebia.stomp.client;
+
+import fr.xebia.stomp.client.FrameBuilder.ConnectBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reconnection of a resilient connection, see {@link ConnectBuilder#reconnect(long, long, TimeUnit, int)}. The SUBSCRIBE frames written to the
+ * server are recorded until their UNSUBSCRIBE. When the connection is lost, a thread connects again after a jittered exponential backoff: each
+ * attempt waits a random time between 0 and the backoff, which doubles from the initial delay up to the maximum delay. So the clients of a
+ * restarted broker don't reconnect all at once. Once connected, the subscriptions are written again before the frames buffered during the outage.
+ */
+class Reconnector {
+    private static final Logger LOGGER = LoggerFactory.getLogger(Reconnector.class);
+    private static final AtomicInteger RECONNECTOR_COUNT = new AtomicInteger();
+
+    private final ConnectBuilder connectBuilder;
+    private final String host;
+    private final int port;
+    private final Object[] socketParams;
+    private final long initialDelayNanos;
+    private final long maxDelayNanos;
+    private final int maxBufferedFrames;
+
+    private final ReconnectStats stats = new ReconnectStats();
+    private final AtomicInteger bufferedFrames = new AtomicInteger();
+    private final Random random = new Random();
+    // The SUBSCRIBE frames by subscription id, in their order
+    private final LinkedHashMap<String, Frame> subscriptions = new LinkedHashMap<String, Frame>();
+    private Thread thread;
+
+    Reconnector(ConnectBuilder connectBuilder, String host, int port, Object[] socketParams, long initialDelayNanos, long maxDelayNanos,
+            int maxBufferedFrames) {
+        this.connectBuilder = connectBuilder;
+        this.host = host;
+        this.port = port;
+        this.socketParams = socketParams;
+        this.initialDelayNanos = initialDelayNanos;
+        this.maxDelayNanos = maxDelayNanos;
+        this.maxBufferedFrames = maxBufferedFrames;
+    }
+
+    ReconnectStats stats() {
+        return stats;
+    }
+
+    /**
+     * Keep the SUBSCRIBE frames until their UNSUBSCRIBE. Called by the writer of the connection for each written frame.
+     */
+    void written(Frame frame) {
+        if ((Command.SUBSCRIBE != frame.command) && (Command.UNSUBSCRIBE != frame.command)) {
+            return;
+        }
+        String id = frame.header.get(Headers.ID);
+        if (id == null) {
+            id = frame.header.get(Headers.DESTINATION);
+        }
+        synchronized (subscriptions) {
+            if (Command.SUBSCRIBE == frame.command) {
+                subscriptions.put(id, frame);
+            } else {
+                subscriptions.remove(id);
+            }
+        }
+    }
+
+    List<Frame> subscriptions() {
+        synchronized (subscriptions) {
+            return new ArrayList<Frame>(subscriptions.values());
+        }
+    }
+
+    /**
+     * Count a frame sent during the outage.
+     *
+     * @return <code>false</code> if the buffer is full
+     */
+    boolean buffer() {
+        return buffer(1);
+    }
+
+    /**
+     * Count frames sent together during the outage, all of them or none.
+     *
+     * @return <code>false</code> if the buffer can't take them all
+     */
+    boolean buffer(int frames) {
+        int buffered;
+        do {
+            buffered = bufferedFrames.get();
+            if (buffered + frames > maxBufferedFrames) {
+                stats.recordRejected();
+                return false;
+            }
+        } while (!bufferedFrames.compareAndSet(buffered, buffered + frames));
+        stats.recordBuffered(buffered + frames);
+        return true;
+    }
+
+    /**
+     * Connect again in a new thread, until it succeeds or the connection is closed.
+     */
+    synchronized void start(final Connection connection, final StompException cause) {
+        LOGGER.warn("Connection to {}:{} lost, reconnecting: {}", new Object[] { host, port, cause.getMessage() });
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                reconnect(connection);
+            }
+        }, "stomp-reconnect-" + RECONNECTOR_COUNT.incrementAndGet());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    synchronized void stop() {
+        if (thread != null) {
+            thread.interrupt();
+            thread = null;
+        }
+    }
+
+    private void reconnect(Connection connection) {
+        long start = System.nanoTime();
+        long backoffNanos = initialDelayNanos;
+        while (!connection.isClosed()) {
+            try {
+                TimeUnit.NANOSECONDS.sleep((long) (random.nextDouble() * backoffNanos));
+            } catch (InterruptedException e) {
+                LOGGER.debug("Reconnection to {}:{} stopped", host, port);
+                return;
+            }
+            backoffNanos = Math.min(maxDelayNanos, backoffNanos * 2);
+            Transport transport = null;
+            try {
+                transport = connectBuilder.open(host, port, socketParams);
+                Frame connected = connectBuilder.handshake(transport);
+                connection.reconnected(transport, connected);
+                long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                stats.recordReconnect(millis);
+                LOGGER.info("Reconnected to {}:{} in {}ms", new Object[] { host, port, millis });
+                return;
+            } catch (IOException e) {
+                failedAttempt(transport, e);
+            } catch (RuntimeException e) {
+                failedAttempt(transport, e);
+            }
+        }
+    }
+
+    private void failedAttempt(Transport transport, Exception cause) {
+        stats.recordFailedAttempt();
+        LOGGER.debug("Can't reconnect to {}:{}: {}", new Object[] { host, port, cause.getMessage() });
+        if (transport != null) {
+            try {
+                transport.close();
+            } catch (IOException e) {
+                LOGGER.warn("Can't close the connection: {}", e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Called once connected and the buffered frames handed to the writer.
+     */
+    void resetBuffer() {
+        bufferedFrames.set(0);
+        stats.recordBuffered(0);
+    }
+
+    String heartBeat() {
+        return connectBuilder.heartBeat();
+    }
+}
@@ -0,0 +1,89 @@
+package fr.xebia.stomp.client;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Blocking transport over a {@link Socket}, with one stream per direction.
+ */
+class SocketTransport implements Transport {
+    private final Socket socket;
+    private final FrameInputStream frameInputStream;
+    private final FrameOutputStream frameOutputStream;
+
+    SocketTransport(Socket socket) {
+        this.socket = socket;
+        this.frameInputStream = new FrameInputStream(socket);
+        this.frameOutputStream = new FrameOutputStream(socket);
+    }
+
+    /**
+     * @param socket          the connected socket
+     * @param writeBufferSize the number of bytes buffered before they are written without waiting for {@link #flush()}
+     * @param maxFrameSize    the maximum content-length of a received frame
+     */
+    SocketTransport(Socket socket, int writeBufferSize, int maxFrameSize) {
+        this.socket = socket;
+        this.frameInputStream = new FrameInputStream(socket, maxFrameSize);
+        try {
+            this.frameOutputStream = new FrameOutputStream(socket.getOutputStream(), writeBufferSize);
+        } catch (IOException e) {
+            throw new StompException(e);
+        }
+    }
+
+    @Override
+    public Socket socket() {
+        return socket;
+    }
+
+    @Override
+    public Frame read() {
+        return frameInputStream.read();
+    }
+
+    @Override
+    public Frame read(long timeout, TimeUnit unit) throws TimeoutException {
+        return frameInputStream.read(timeout, unit);
+    }
+
+    /**
+     * The frame is read in place in the buffer of the stream.
+     */
+    @Override
+    public void read(FrameViewListener listener) {
+        frameInputStream.read(listener);
+    }
+
+    @Override
+    public void write(Frame frame) throws IOException {
+        frameOutputStream.write(frame);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        frameOutputStream.flush();
+    }
+
+    @Override
+    public void writeHeartBeat() throws IOException {
+        frameOutputStream.writeHeartBeat();
+    }
+
+    @Override
+    public long writtenBytes() {
+        return frameOutputStream.written();
+    }
+
+    @Override
+    public long readBytes() {
+        return frameInputStream.received();
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+}
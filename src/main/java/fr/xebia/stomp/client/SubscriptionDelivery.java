@@ -0,0 +1,94 @@
+package fr.xebia.stomp.client;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.BiConsumer;
+
+/**
+ * Give the MESSAGE frames of a subscription queue to its listener, see {@link FrameBuilder.SubscribeBuilder#prefetch(int)}. The frames are taken
+ * with {@link FrameQueue#takeAsync()}, and the listener is called by a task of the receive executor of the connection: no thread waits for an
+ * empty queue, so thousands of subscriptions share the threads of the executor. A task delivers the frames already queued, up to
+ * {@link #MAX_FRAMES_PER_TASK} to leave the threads to the other subscriptions, and the next frame submits the next task. So the frames of a
+ * subscription are delivered one at a time and in order.
+ * <p/>
+ * The delivery ends when the queue is closed, by an unsubscribe or the close of the connection.
+ */
+class SubscriptionDelivery implements Runnable, BiConsumer<Frame, Throwable> {
+    private static final Logger LOGGER = LoggerFactory.getLogger(SubscriptionDelivery.class);
+    private static final int MAX_FRAMES_PER_TASK = 64;
+
+    private final String subscription;
+    private final FrameQueue queue;
+    private final MessageListener listener;
+    private final FrameDispatcher dispatcher;
+    private final Executor executor;
+
+    // Set before submitting the task which delivers it
+    private Frame next;
+
+    SubscriptionDelivery(String subscription, FrameQueue queue, MessageListener listener, FrameDispatcher dispatcher, Executor executor) {
+        this.subscription = subscription;
+        this.queue = queue;
+        this.listener = listener;
+        this.dispatcher = dispatcher;
+        this.executor = executor;
+    }
+
+    void start() {
+        queue.takeAsync().whenComplete(this);
+    }
+
+    /**
+     * Called with the next frame, by the thread reading the connection or by the delivery task which asked for it.
+     */
+    @Override
+    public void accept(Frame frame, Throwable cause) {
+        if (cause != null) {
+            LOGGER.debug("End of the delivery of {}: {}", subscription, cause.getMessage());
+            return;
+        }
+        next = frame;
+        try {
+            executor.execute(this);
+        } catch (RejectedExecutionException e) {
+            LOGGER.error("Can't deliver the messages of " + subscription + ", the receive executor is shut down", e);
+        }
+    }
+
+    @Override
+    public void run() {
+        Frame frame = next;
+        next = null;
+        for (int delivered = 1; ; delivered++) {
+            deliver(frame);
+            CompletableFuture<Frame> taken = queue.takeAsync();
+            if (!taken.isDone() || (delivered == MAX_FRAMES_PER_TASK)) {
+                taken.whenComplete(this);
+                return;
+            }
+            try {
+                frame = taken.join();
+            } catch (CompletionException e) {
+                accept(null, e.getCause());
+                return;
+            }
+        }
+    }
+
+    private void deliver(Frame frame) {
+        // The listener can't wait for a receipt, the reading is paused while it doesn't consume
+        dispatcher.delivering(true);
+        try {
+            listener.onMessage(frame);
+        } catch (RuntimeException e) {
+            LOGGER.error("Message listener failed on " + frame, e);
+        } finally {
+            dispatcher.delivering(false);
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package fr.xebia.stomp.client;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+/**
+ * The MESSAGE frames of a subscription as a {@link Flow.Publisher}, see {@link FrameBuilder.SubscribeBuilder#toPublisher(String)}. The frames
+ * are taken from the bounded queue of the subscription only when the subscriber requested them: a frame arriving without demand stays in the
+ * queue, which pauses the reading of the connection once it holds the prefetch number of frames. So the server is slowed down by the subscriber.
+ * <p/>
+ * The publisher has one subscriber, signaled by the thread reading the connection or by the thread calling {@link Flow.Subscription#request(long)}.
+ * Cancelling unsubscribes. The subscriber is completed when the connection is closed or the subscription is unsubscribed, and fails when the
+ * connection is lost.
+ */
+class SubscriptionPublisher implements Flow.Publisher<Frame> {
+    private static final Logger LOGGER = LoggerFactory.getLogger(SubscriptionPublisher.class);
+
+    private final Connection connection;
+    private final String subscription;
+    private final FrameQueue queue;
+    private final AtomicBoolean subscribed = new AtomicBoolean();
+
+    SubscriptionPublisher(Connection connection, String subscription) {
+        this.connection = connection;
+        this.subscription = subscription;
+        this.queue = connection.subscriptionQueue(subscription);
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super Frame> subscriber) {
+        if (subscriber == null) {
+            throw new NullPointerException("Can't subscribe a subscriber null");
+        }
+        if (!subscribed.compareAndSet(false, true)) {
+            subscriber.onSubscribe(new Flow.Subscription() {
+                @Override
+                public void request(long n) {
+                }
+
+                @Override
+                public void cancel() {
+                }
+            });
+            subscriber.onError(new IllegalStateException("The subscription " + subscription + " already has a subscriber"));
+            return;
+        }
+        new FrameSubscription(subscriber).start();
+    }
+
+    private class FrameSubscription implements Flow.Subscription {
+        private final Flow.Subscriber<? super Frame> subscriber;
+        private final AtomicLong demand = new AtomicLong();
+        // The signals are sent by the thread which increments it from 0, the other threads only ask for another pass
+        private final AtomicInteger drainRequests = new AtomicInteger();
+        private volatile boolean cancelled = false;
+        private volatile IllegalArgumentException invalidRequest;
+
+        // Only used by the draining thread
+        private CompletableFuture<Frame> next;
+        private boolean done = false;
+
+        private FrameSubscription(Flow.Subscriber<? super Frame> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        private void start() {
+            subscriber.onSubscribe(this);
+            queue.closeFuture().whenComplete(new BiConsumer<StompException, Throwable>() {
+                @Override
+                public void accept(StompException cause, Throwable throwable) {
+                    drain();
+                }
+            });
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                invalidRequest = new IllegalArgumentException("The number of requested frames should be positive: " + n);
+            } else {
+                long current;
+                long updated;
+                do {
+                    current = demand.get();
+                    updated = (current + n < 0) ? Long.MAX_VALUE : current + n;
+                } while (!demand.compareAndSet(current, updated));
+            }
+            drain();
+        }
+
+        @Override
+        public void cancel() {
+            if (cancelled) {
+                return;
+            }
+            cancelled = true;
+            unsubscribe();
+        }
+
+        private void drain() {
+            if (drainRequests.getAndIncrement() != 0) {
+                return;
+            }
+            int missed = 1;
+            do {
+                emit();
+                missed = drainRequests.addAndGet(-missed);
+            } while (missed != 0);
+        }
+
+        private void emit() {
+            while (!cancelled && !done) {
+                if (invalidRequest != null) {
+                    done = true;
+                    cancelled = true;
+                    unsubscribe();
+                    subscriber.onError(invalidRequest);
+                    return;
+                }
+                if (next == null) {
+                    if (demand.get() == 0) {
+                        if (queue.isClosed() && (queue.size() == 0)) {
+                            terminate(null);
+                        }
+                        return;
+                    }
+                    next = queue.takeAsync();
+                    next.whenComplete(new BiConsumer<Frame, Throwable>() {
+                        @Override
+                        public void accept(Frame frame, Throwable cause) {
+                            drain();
+                        }
+                    });
+                }
+                if (!next.isDone()) {
+                    return;
+                }
+                CompletableFuture<Frame> taken = next;
+                next = null;
+                Frame frame;
+                try {
+                    frame = taken.join();
+                } catch (CompletionException e) {
+                    terminate(e.getCause());
+                    return;
+                }
+                if (demand.get() != Long.MAX_VALUE) {
+                    demand.decrementAndGet();
+                }
+                subscriber.onNext(frame);
+            }
+        }
+
+        private void terminate(Throwable cause) {
+            done = true;
+            if (connection.isClosed() || (connection.ackMode(subscription) == null)) {
+                subscriber.onComplete();
+            } else {
+                subscriber.onError((cause != null) ? cause : new StompException("The subscription " + subscription + " is closed"));
+            }
+        }
+
+        private void unsubscribe() {
+            try {
+                connection.unsubscribe(subscription);
+            } catch (StompException e) {
+                LOGGER.debug("Can't unsubscribe from {}: {}", subscription, e.getMessage());
+            }
+        }
+    }
+}
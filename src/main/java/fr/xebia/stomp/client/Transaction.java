@@ -0,0 +1,169 @@
+package fr.xebia.stomp.client;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A transaction of a connection, see {@link Connection#begin()}. The SEND and ACK frames are tagged with the transaction id and kept until the
+ * commit, which queues BEGIN, the frames and COMMIT at once and flushes them: a batch of transactional messages costs one write, and one round
+ * trip if the commit waits for its receipt. An abort before the commit writes nothing, the server never saw the transaction.
+ * <p/>
+ * A transaction is used by one thread, and is done once committed or aborted.
+ */
+public class Transaction {
+    private final Connection connection;
+    private final String id;
+    private final List<Frame> frames = new ArrayList<Frame>();
+    private boolean done = false;
+
+    Transaction(Connection connection, String id) {
+        this.connection = connection;
+        this.id = id;
+        frames.add(new FrameBuilder().command(Command.BEGIN).header(Headers.TRANSACTION, id).end());
+    }
+
+    /**
+     * @return the transaction id
+     */
+    public String id() {
+        return id;
+    }
+
+    /**
+     * Send a frame in this transaction, at the commit.
+     *
+     * @param frame a SEND frame, built without connection
+     * @return this transaction
+     */
+    public Transaction send(Frame frame) {
+        if (frame == null) {
+            throw new NullPointerException("Can't send a frame null");
+        }
+        checkNotDone();
+        frames.add(frame.withHeader(Headers.TRANSACTION, id));
+        return this;
+    }
+
+    /**
+     * Send a message in this transaction, at the commit.
+     *
+     * @param destination the destination of the message
+     * @param message     the message
+     * @return this transaction
+     */
+    public Transaction send(String destination, String message) {
+        return send(new FrameBuilder().command(Command.SEND).header(Headers.DESTINATION, destination).message(message).end());
+    }
+
+    /**
+     * Acknowledge a received message in this transaction, at the commit.
+     *
+     * @param message a MESSAGE frame
+     * @return this transaction
+     */
+    public Transaction ack(Frame message) {
+        String subscription = message.header.get(Headers.SUBSCRIPTION);
+        String messageId = message.header.get(Headers.MESSAGE_ID);
+        if (messageId == null) {
+            throw new IllegalArgumentException("The frame has no message-id header: " + message);
+        }
+        checkNotDone();
+        FrameBuilder ack = new FrameBuilder().command(Command.ACK).header(Headers.MESSAGE_ID, messageId).header(Headers.TRANSACTION, id);
+        if (subscription != null) {
+            ack.header(Headers.SUBSCRIPTION, subscription);
+        }
+        frames.add(ack.end());
+        return this;
+    }
+
+    /**
+     * @return the number of SEND and ACK frames of this transaction
+     */
+    public int size() {
+        return frames.size() - 1;
+    }
+
+    /**
+     * Write BEGIN, the frames and COMMIT together, without waiting for the server. If they can't be queued, the transaction is not done: the
+     * commit can be retried, or the transaction aborted.
+     */
+    public void commit() {
+        connection.enqueueAll(commitFrames());
+        done();
+        connection.flush();
+    }
+
+    /**
+     * Write BEGIN, the frames and COMMIT together, the COMMIT frame with a receipt, see {@link Connection#sendAsync(Frame)}. If they can't be
+     * queued, the transaction is not done.
+     *
+     * @return the future of the RECEIPT frame of the commit
+     */
+    public CompletableFuture<Frame> commitAsync() {
+        CompletableFuture<Frame> receipt = connection.enqueueAllAsync(commitFrames());
+        done();
+        try {
+            connection.flush();
+        } catch (StompException e) {
+            receipt.completeExceptionally(e);
+        }
+        return receipt;
+    }
+
+    /**
+     * Write BEGIN, the frames and COMMIT together, and wait for the receipt of the commit.
+     *
+     * @param timeout the maximum time to wait for the receipt
+     * @param unit    the unit of timeout
+     * @return the RECEIPT frame
+     * @throws TimeoutException if the receipt is not received in time
+     * @throws StompException   if the server answered with an ERROR frame, if the connection is closed, or if called by a listener, which
+     *                          can't wait for a receipt, see {@link Connection#sendAsync(Frame)}
+     */
+    public Frame commit(long timeout, TimeUnit unit) throws TimeoutException {
+        try {
+            return commitAsync().get(timeout, unit);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new StompException("Interrupted while waiting for the commit of " + id, e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof StompException) {
+                throw (StompException) e.getCause();
+            }
+            throw new StompException(e.getCause());
+        }
+    }
+
+    /**
+     * Forget the frames of this transaction. Nothing was written, so nothing is sent.
+     */
+    public void abort() {
+        checkNotDone();
+        done();
+    }
+
+    /**
+     * @return the frames to queue, the transaction is done once they are queued
+     */
+    private List<Frame> commitFrames() {
+        checkNotDone();
+        List<Frame> commitFrames = new ArrayList<Frame>(frames);
+        commitFrames.add(new FrameBuilder().command(Command.COMMIT).header(Headers.TRANSACTION, id).end());
+        return commitFrames;
+    }
+
+    private void done() {
+        done = true;
+        frames.clear();
+    }
+
+    private void checkNotDone() {
+        if (done) {
+            throw new IllegalStateException("The transaction " + id + " is already committed or aborted");
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package fr.xebia.stomp.client;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The way frames are read from and written to the server by a {@link Connection}.
+ */
+interface Transport extends Closeable {
+
+    /**
+     * @return the underlying socket, used to set the {@link Connection.SocketParam}
+     */
+    Socket socket();
+
+    /**
+     * Read a new frame, waiting for it if needed.
+     *
+     * @return the new received frame
+     */
+    Frame read();
+
+    /**
+     * Read a new frame, waiting for at most the given time. A frame partly received when the time is out is kept, and completed by the next read.
+     *
+     * @param timeout the maximum time to wait
+     * @param unit    the unit of timeout
+     * @return the new received frame
+     * @throws TimeoutException if the frame is not fully received in time
+     */
+    Frame read(long timeout, TimeUnit unit) throws TimeoutException;
+
+    /**
+     * Read a new frame and give it to the listener through a view, valid only during the call.
+     *
+     * @param listener the listener, called by this thread
+     */
+    void read(FrameViewListener listener);
+
+    /**
+     * Write a frame. It may stay buffered until {@link #flush()} is called.
+     *
+     * @param frame the frame to write
+     * @throws IOException if the frame can't be written
+     */
+    void write(Frame frame) throws IOException;
+
+    void flush() throws IOException;
+
+    /**
+     * Write an end of line, sent as a heart-beat. It may stay buffered until {@link #flush()} is called.
+     *
+     * @throws IOException if the heart-beat can't be written
+     */
+    void writeHeartBeat() throws IOException;
+
+    /**
+     * @return the number of bytes of the frames written since the creation, flushed or not
+     */
+    long writtenBytes();
+
+    /**
+     * @return the number of bytes received since the creation, heart-beats included
+     */
+    long readBytes();
+}
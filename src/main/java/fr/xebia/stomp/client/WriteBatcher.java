@@ -0,0 +1,45 @@
+package fr.xebia.stomp.client;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Batching of a connection: the written frames are flushed when their size reaches a threshold, or when the oldest one waited for a maximum
+ * latency. Each connection has its own batcher, used by the thread holding its writer flag. The latency timers run on
+ * {@link HashedWheelTimer#SHARED}, which hands the flush to the timer writes executor of the connections.
+ */
+class WriteBatcher {
+    final int maxBatchBytes;
+    private final long maxLatencyNanos;
+    private HashedWheelTimer.Timeout scheduledFlush;
+
+    WriteBatcher(int maxBatchBytes, long maxLatency, TimeUnit unit) {
+        this.maxBatchBytes = maxBatchBytes;
+        this.maxLatencyNanos = unit.toNanos(maxLatency);
+    }
+
+    /**
+     * Flush the connection once the maximum latency is elapsed, unless a flush is already scheduled. Called by the writer of the connection while a
+     * batch is pending.
+     */
+    void schedule(final Connection connection) {
+        if (scheduledFlush != null) {
+            return;
+        }
+        scheduledFlush = HashedWheelTimer.SHARED.schedule(new Runnable() {
+            @Override
+            public void run() {
+                connection.flushOnTimer();
+            }
+        }, maxLatencyNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Called by the writer of the connection when a batch is flushed.
+     */
+    void cancel() {
+        if (scheduledFlush != null) {
+            scheduledFlush.cancel();
+            scheduledFlush = null;
+        }
+    }
+}
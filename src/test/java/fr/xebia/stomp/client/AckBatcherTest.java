@@ -0,0 +1,109 @@
+package fr.xebia.stomp.client;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class AckBatcherTest {
+    private FakeServer server;
+    private BlockingQueue<Frame> receivedByServer = new LinkedBlockingQueue<Frame>();
+    private Connection connection;
+
+    @Test
+    public void should_send_cumulative_ack_in_client_mode() throws InterruptedException {
+        // Init
+        connection = Connection.to("localhost", server.port());
+        connection.subscribe().clientAcknowledge().forClient("subscription").to("/queue/test");
+        assertEquals(Command.SUBSCRIBE, receivedByServer.poll(5, TimeUnit.SECONDS).command);
+        AckBatcher acks = connection.batchAcks(10, 1, TimeUnit.HOURS);
+
+        // Test
+        for (int i = 0; i < 25; i++) {
+            acks.ack(message("subscription", "message-" + i));
+        }
+
+        // Assert
+        assertAck("message-9");
+        assertAck("message-19");
+        assertNull(receivedByServer.poll(100, TimeUnit.MILLISECONDS));
+        assertEquals(5, acks.unacked());
+        assertEquals(5, acks.unacked("subscription"));
+        acks.flush();
+        assertAck("message-24");
+        assertEquals(0, acks.unacked());
+        assertEquals(3, acks.acksSent());
+        assertEquals(25, acks.messagesAcked());
+    }
+
+    @Test
+    public void should_write_individual_acks_at_once_after_max_delay() throws InterruptedException {
+        // Init
+        connection = Connection.to("localhost", server.port());
+        connection.subscribe().clientIndividualAcknowledge().forClient("subscription").to("/queue/test");
+        assertEquals(Command.SUBSCRIBE, receivedByServer.poll(5, TimeUnit.SECONDS).command);
+        AckBatcher acks = connection.batchAcks(100, 50, TimeUnit.MILLISECONDS);
+        long batches = connection.batchStats().batches();
+
+        // Test
+        for (int i = 0; i < 5; i++) {
+            acks.ack(message("subscription", "message-" + i));
+        }
+
+        // Assert
+        for (int i = 0; i < 5; i++) {
+            assertAck("message-" + i);
+        }
+        assertEquals(batches + 1, connection.batchStats().batches());
+        assertEquals(5, connection.batchStats().maxFramesPerBatch());
+        assertEquals(5, acks.acksSent());
+    }
+
+    @Test
+    public void should_not_ack_in_auto_mode() throws InterruptedException {
+        // Init
+        connection = Connection.to("localhost", server.port());
+        connection.subscribe().forClient("subscription").to("/queue/test");
+        assertEquals(Command.SUBSCRIBE, receivedByServer.poll(5, TimeUnit.SECONDS).command);
+        AckBatcher acks = connection.batchAcks(1, 1, TimeUnit.MILLISECONDS);
+
+        // Test
+        acks.ack(message("subscription", "message-0"));
+
+        // Assert
+        assertNull(receivedByServer.poll(100, TimeUnit.MILLISECONDS));
+        assertEquals(0, acks.unacked());
+    }
+
+    private Frame message(String subscription, String messageId) {
+        return new FrameBuilder().command(Command.MESSAGE).header(Headers.SUBSCRIPTION, subscription).header(Headers.MESSAGE_ID, messageId)
+                .message("message").end();
+    }
+
+    private void assertAck(String messageId) throws InterruptedException {
+        Frame ack = receivedByServer.poll(5, TimeUnit.SECONDS);
+        assertEquals(Command.ACK, ack.command);
+        assertEquals("subscription", ack.header.get(Headers.SUBSCRIPTION));
+        assertEquals(messageId, ack.header.get(Headers.MESSAGE_ID));
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        server = FakeServer.recording(receivedByServer);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (connection != null) {
+            connection.closeQuietly();
+        }
+        server.close();
+    }
+}
@@ -0,0 +1,102 @@
+package fr.xebia.stomp.client;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class BatchingTest {
+    private FakeServer server;
+    private BlockingQueue<Frame> receivedByServer = new LinkedBlockingQueue<Frame>();
+    private Connection connection;
+
+    @Test
+    public void should_flush_batch_after_max_latency() throws InterruptedException {
+        // Init
+        connection = Connection.login("admin").passcode("password").batching(65536, 50, TimeUnit.MILLISECONDS).to("localhost", server.port());
+
+        // Test
+        for (int i = 0; i < 100; i++) {
+            connection.send().message("message " + i).to("/queue/test");
+        }
+
+        // Assert
+        for (int i = 0; i < 100; i++) {
+            Frame frame = receivedByServer.poll(5, TimeUnit.SECONDS);
+            assertNotNull(frame);
+            assertEquals("message " + i, frame.messageAsString());
+        }
+        BatchStats batchStats = connection.batchStats();
+        assertEquals(101, batchStats.frames());
+        assertTrue(batchStats.flushesOnTimer() >= 1);
+        assertTrue(batchStats.maxFramesPerBatch() > 1);
+    }
+
+    @Test
+    public void should_flush_batch_when_size_is_reached_or_on_demand() throws InterruptedException {
+        // Init
+        connection = Connection.login("admin").passcode("password").nio().batching(1000, 1, TimeUnit.HOURS).to("localhost", server.port());
+        String message = new String(new char[300]).replace('\0', 'a');
+
+        // Test
+        for (int i = 0; i < 4; i++) {
+            connection.send().message(message).to("/queue/test");
+        }
+        connection.send().message("last").to("/queue/test");
+
+        // Assert
+        for (int i = 0; i < 4; i++) {
+            assertNotNull(receivedByServer.poll(5, TimeUnit.SECONDS));
+        }
+        assertNull(receivedByServer.poll(100, TimeUnit.MILLISECONDS));
+        assertEquals(1, connection.batchStats().flushesOnSize());
+        connection.flush();
+        assertEquals("last", receivedByServer.poll(5, TimeUnit.SECONDS).messageAsString());
+        assertEquals(6, connection.batchStats().frames());
+        assertEquals(3, connection.batchStats().batches());
+    }
+
+    @Test
+    public void should_flush_each_connection_of_a_builder_after_max_latency() throws InterruptedException {
+        // Init
+        FrameBuilder.ConnectBuilder connectBuilder = Connection.login("admin").passcode("password").batching(65536, 50, TimeUnit.MILLISECONDS);
+        connection = connectBuilder.to("localhost", server.port());
+        Connection other = connectBuilder.to("localhost", server.port());
+
+        try {
+            // Test
+            connection.send().message("first").to("/queue/test");
+            other.send().message("second").to("/queue/test");
+
+            // Assert
+            assertNotNull(receivedByServer.poll(5, TimeUnit.SECONDS));
+            assertNotNull(receivedByServer.poll(5, TimeUnit.SECONDS));
+            assertEquals(1, connection.batchStats().flushesOnTimer());
+            assertEquals(1, other.batchStats().flushesOnTimer());
+        } finally {
+            other.closeQuietly();
+        }
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        server = FakeServer.recording(receivedByServer);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (connection != null) {
+            connection.closeQuietly();
+        }
+        server.close();
+    }
+}
@@ -0,0 +1,49 @@
+package fr.xebia.stomp.client;
+
+import com.google.common.base.Strings;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.SocketChannel;
+
+import static org.junit.Assert.assertEquals;
+
+public class ChannelTransportTest {
+
+    @Test
+    public void should_write_and_read_frames_through_a_channel() throws IOException {
+        // Init
+        Frame smallFrame = FrameBuilder.send().message("a message").to("/queue/test");
+        Frame largeFrame = FrameBuilder.send().header("content-length", "100000").message(Strings.repeat("0", 100000)).to("/queue/test");
+        ServerSocket serverSocket = new ServerSocket(0);
+        ChannelTransport transport = new ChannelTransport(SocketChannel.open(new InetSocketAddress("localhost", serverSocket.getLocalPort())));
+        Socket server = serverSocket.accept();
+        FrameInputStream serverInput = new FrameInputStream(server);
+        FrameOutputStream serverOutput = new FrameOutputStream(server);
+
+        try {
+            // Test
+            transport.write(smallFrame);
+            transport.write(largeFrame);
+            transport.flush();
+            Frame smallFrameReceivedByServer = serverInput.read();
+            Frame largeFrameReceivedByServer = serverInput.read();
+            serverOutput.write(largeFrame);
+            serverOutput.write(smallFrame);
+            serverOutput.flush();
+
+            // Assert
+            assertEquals(smallFrame, smallFrameReceivedByServer);
+            assertEquals(largeFrame, largeFrameReceivedByServer);
+            assertEquals(largeFrame, transport.read());
+            assertEquals(smallFrame, transport.read());
+        } finally {
+            transport.close();
+            server.close();
+            serverSocket.close();
+        }
+    }
+}
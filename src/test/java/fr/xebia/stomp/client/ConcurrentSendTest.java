@@ -0,0 +1,115 @@
+package fr.xebia.stomp.client;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class ConcurrentSendTest {
+    private static final int THREADS = 8;
+    private static final int FRAMES_PER_THREAD = 500;
+
+    private FakeServer server;
+    private BlockingQueue<Frame> receivedByServer = new LinkedBlockingQueue<Frame>();
+    private Connection connection;
+
+    @Test
+    public void should_not_interleave_frames_sent_by_several_threads() throws InterruptedException {
+        // Init
+        connection = Connection.to("localhost", server.port());
+
+        // Test
+        sendFromThreads();
+
+        // Assert
+        assertReceivedInOrderByThread();
+        assertTrue(connection.batchStats().batches() <= connection.batchStats().frames());
+    }
+
+    @Test
+    public void should_not_interleave_frames_sent_by_several_threads_in_batches() throws InterruptedException {
+        // Init
+        connection = Connection.login("admin").passcode("password").nio().batching(4096, 5, TimeUnit.MILLISECONDS)
+                .to("localhost", server.port());
+
+        // Test
+        sendFromThreads();
+
+        // Assert
+        assertReceivedInOrderByThread();
+        assertEquals(THREADS * FRAMES_PER_THREAD + 1, connection.batchStats().frames());
+    }
+
+    private void sendFromThreads() throws InterruptedException {
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch end = new CountDownLatch(THREADS);
+        for (int t = 0; t < THREADS; t++) {
+            final String sender = "sender-" + t;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int i = 0; i < FRAMES_PER_THREAD; i++) {
+                            if ((i % 2) == 0) {
+                                connection.send().header("sender", sender).message(sender + " message " + i).to("/queue/test");
+                            } else {
+                                // A large message is written from its own buffer
+                                connection.send().header("sender", sender).message(sender + " message " + i + new String(new char[2000]).replace('\0', 'a'))
+                                        .to("/queue/test");
+                            }
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        end.countDown();
+                    }
+                }
+            }).start();
+        }
+        start.countDown();
+        assertTrue(end.await(10, TimeUnit.SECONDS));
+        connection.flush();
+    }
+
+    private void assertReceivedInOrderByThread() throws InterruptedException {
+        Map<String, Integer> nextBySender = new HashMap<String, Integer>();
+        for (int i = 0; i < (THREADS * FRAMES_PER_THREAD); i++) {
+            Frame frame = receivedByServer.poll(5, TimeUnit.SECONDS);
+            assertNotNull(frame);
+            assertEquals(Command.SEND, frame.command);
+            String sender = frame.header.get("sender");
+            Integer next = nextBySender.containsKey(sender) ? nextBySender.get(sender) : 0;
+            String expected = sender + " message " + next + (((next % 2) == 0) ? "" : new String(new char[2000]).replace('\0', 'a'));
+            assertEquals(expected, frame.messageAsString());
+            nextBySender.put(sender, next + 1);
+        }
+        for (int t = 0; t < THREADS; t++) {
+            assertEquals(Integer.valueOf(FRAMES_PER_THREAD), nextBySender.get("sender-" + t));
+        }
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        server = FakeServer.recording(receivedByServer);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (connection != null) {
+            connection.closeQuietly();
+        }
+        server.close();
+    }
+}
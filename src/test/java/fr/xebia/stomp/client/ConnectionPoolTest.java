@@ -0,0 +1,174 @@
+package fr.xebia.stomp.client;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ConnectionPoolTest {
+    private static final int BORROWERS = 8;
+
+    private FakeServer server;
+    private AtomicInteger connectsReceivedByServer = new AtomicInteger();
+    private BlockingQueue<Frame> receivedByServer = new LinkedBlockingQueue<Frame>();
+    private ConnectionPool pool;
+
+    @Test
+    public void should_lend_warm_connections_and_wait_for_release() throws TimeoutException {
+        // Init
+        pool = Connection.login("admin").passcode("password").pooled().warm(2).max(2).to("localhost", server.port());
+        assertEquals(2, connectsReceivedByServer.get());
+
+        // Test
+        Connection first = pool.borrow();
+        Connection second = pool.borrow(1, TimeUnit.SECONDS);
+        try {
+            pool.borrow(50, TimeUnit.MILLISECONDS);
+            fail("At most two connections should be lent");
+        } catch (TimeoutException e) {
+            // Expected
+        }
+        pool.release(second);
+
+        // Assert
+        assertNotSame(first, second);
+        assertSame(second, pool.borrow(1, TimeUnit.SECONDS));
+        assertEquals(2, connectsReceivedByServer.get());
+    }
+
+    @Test
+    public void should_replace_closed_connection() throws Exception {
+        // Init
+        pool = Connection.login("admin").passcode("password").pooled().warm(1).max(2).to("localhost", server.port());
+        Connection connection = pool.borrow();
+        pool.release(connection);
+
+        // Test
+        connection.close();
+        Connection replacement = pool.borrow();
+
+        // Assert
+        assertNotSame(connection, replacement);
+        assertEquals(2, connectsReceivedByServer.get());
+        assertEquals(1, pool.size());
+    }
+
+    @Test
+    public void should_evict_idle_connections_down_to_warm_ones() throws Exception {
+        // Init
+        pool = Connection.login("admin").passcode("password").pooled().warm(1).max(4).evictIdleAfter(100, TimeUnit.MILLISECONDS)
+                .to("localhost", server.port());
+        Connection[] connections = new Connection[4];
+        for (int i = 0; i < connections.length; i++) {
+            connections[i] = pool.borrow();
+        }
+        for (Connection connection : connections) {
+            pool.release(connection);
+        }
+        assertEquals(4, pool.idle());
+
+        // Test
+        long start = System.nanoTime();
+        while ((pool.size() > 1) && ((System.nanoTime() - start) < TimeUnit.SECONDS.toNanos(5))) {
+            Thread.sleep(10);
+        }
+
+        // Assert
+        assertEquals(1, pool.size());
+        assertEquals(1, pool.idle());
+        assertTrue(pool.borrow().isUsable());
+    }
+
+    @Test
+    public void should_create_batching_connections_for_concurrent_borrowers() throws Exception {
+        // Init
+        pool = Connection.login("admin").passcode("password").batching(65536, 50, TimeUnit.MILLISECONDS)
+                .pooled().warm(0).max(BORROWERS).to("localhost", server.port());
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<Connection> borrowed = new CopyOnWriteArrayList<Connection>();
+        List<Thread> borrowers = new ArrayList<Thread>();
+        for (int i = 0; i < BORROWERS; i++) {
+            final String message = "message " + i;
+            Thread borrower = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        Connection connection = pool.borrow();
+                        borrowed.add(connection);
+                        connection.send().message(message).to("/queue/test");
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+            borrower.start();
+            borrowers.add(borrower);
+        }
+
+        // Test
+        start.countDown();
+        for (Thread borrower : borrowers) {
+            borrower.join(5000);
+        }
+
+        // Assert
+        Set<String> messages = new HashSet<String>();
+        for (int i = 0; i < BORROWERS; i++) {
+            Frame frame = receivedByServer.poll(5, TimeUnit.SECONDS);
+            assertEquals("admin", frame.header.get("login"));
+            messages.add(frame.messageAsString());
+        }
+        assertEquals(BORROWERS, messages.size());
+        assertEquals(BORROWERS, borrowed.size());
+        for (Connection connection : borrowed) {
+            assertEquals(1, connection.batchStats().flushesOnTimer());
+            pool.release(connection);
+        }
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        server = FakeServer.start(new FakeServer.Handler() {
+            @Override
+            Frame connected(Frame connect) throws InterruptedException {
+                connectsReceivedByServer.incrementAndGet();
+                return super.connected(connect);
+            }
+
+            @Override
+            void serve(FakeServer.Session session) {
+                while (true) {
+                    // With the login of the connection, to check the CONNECT frame of each connection
+                    receivedByServer.add(session.read().withHeader("login", session.connect.header.get("login")));
+                }
+            }
+        });
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (pool != null) {
+            pool.close();
+        }
+        server.close();
+    }
+}
@@ -0,0 +1,177 @@
+package fr.xebia.stomp.client;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ConnectionTest {
+    private FakeServer server;
+    private final BlockingQueue<Frame> toSend = new LinkedBlockingQueue<Frame>();
+    private Connection connection;
+    private ExecutorService receiver;
+
+    @Test
+    public void should_start_reader_after_direct_read_in_progress() throws Exception {
+        // Init
+        connection = Connection.to("localhost", server.port());
+        Future<String> directReads = receiver.submit(new Callable<String>() {
+            @Override
+            public String call() {
+                return connection.receive().header.get(Headers.MESSAGE_ID) + "," + connection.receive().header.get(Headers.MESSAGE_ID);
+            }
+        });
+        // Wait for the receiver to read the transport
+        Thread.sleep(200);
+        final BlockingQueue<Frame> listened = new LinkedBlockingQueue<Frame>();
+
+        // Test
+        connection.subscribe().forClient("listened").withListener(new MessageListener() {
+            @Override
+            public void onMessage(Frame message) {
+                listened.add(message);
+            }
+        }).to("/queue/test");
+        toSend.add(message("direct", "message-0"));
+        toSend.add(message("listened", "message-1"));
+        toSend.add(message("direct", "message-2"));
+
+        // Assert
+        assertEquals("message-0,message-2", directReads.get(5, TimeUnit.SECONDS));
+        assertEquals("message-1", listened.poll(5, TimeUnit.SECONDS).header.get(Headers.MESSAGE_ID));
+    }
+
+    @Test
+    public void should_fail_queued_frames_and_receipts_when_write_fails() throws Exception {
+        // Init
+        FailingTransport failingTransport = new FailingTransport();
+        connection = new Connection(failingTransport);
+        CompletableFuture<Frame> receipt = connection.sendAsync(FrameBuilder.send().message("receipted").to("/queue/test"));
+        // Queued by other senders, not written yet
+        connection.enqueue(FrameBuilder.send().message("queued-0").to("/queue/test"));
+        connection.enqueue(FrameBuilder.send().message("queued-1").to("/queue/test"));
+        failingTransport.failing = true;
+
+        // Test
+        try {
+            connection.send(FrameBuilder.send().message("failed").to("/queue/test"));
+            fail("The write failed");
+        } catch (StompException e) {
+            // Assert
+            assertTrue(e.getMessage(), e.getMessage().contains("3 frames"));
+        }
+        try {
+            receipt.get(5, TimeUnit.SECONDS);
+            fail("The receipt won't come");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause().getMessage(), e.getCause().getMessage().contains("3 frames"));
+        }
+        try {
+            connection.send(FrameBuilder.send().message("after").to("/queue/test"));
+            fail("The connection failed");
+        } catch (StompException e) {
+            assertTrue(e.getCause().getMessage(), e.getCause().getMessage().contains("3 frames"));
+        }
+    }
+
+    private static Frame message(String subscription, String messageId) {
+        return new FrameBuilder().messsage().header(Headers.SUBSCRIPTION, subscription).header(Headers.MESSAGE_ID, messageId).message(messageId)
+                .end();
+    }
+
+    /**
+     * A transport whose writes fail once asked to, and whose reads wait until it is closed.
+     */
+    private static class FailingTransport implements Transport {
+        private final CountDownLatch closed = new CountDownLatch(1);
+        volatile boolean failing = false;
+
+        @Override
+        public Socket socket() {
+            return new Socket();
+        }
+
+        @Override
+        public Frame read() {
+            try {
+                closed.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            throw new StompException("Transport closed");
+        }
+
+        @Override
+        public Frame read(long timeout, TimeUnit unit) {
+            return read();
+        }
+
+        @Override
+        public void read(FrameViewListener listener) {
+            read();
+        }
+
+        @Override
+        public void write(Frame frame) throws IOException {
+            if (failing) {
+                throw new IOException("Broken pipe");
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            // Nothing buffered
+        }
+
+        @Override
+        public void writeHeartBeat() throws IOException {
+            write(null);
+        }
+
+        @Override
+        public long writtenBytes() {
+            return 0;
+        }
+
+        @Override
+        public long readBytes() {
+            return 0;
+        }
+
+        @Override
+        public void close() {
+            closed.countDown();
+        }
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        server = FakeServer.sending(toSend);
+        receiver = Executors.newSingleThreadExecutor();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        receiver.shutdownNow();
+        if (connection != null) {
+            connection.closeQuietly();
+        }
+        server.close();
+    }
+}
@@ -0,0 +1,473 @@
+package fr.xebia.stomp.client;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A STOMP broker in the JVM, listening on the loopback interface only, so the end-to-end tests don't need an external broker. It accepts CONNECT,
+ * SEND, SUBSCRIBE, UNSUBSCRIBE, ACK, NACK, BEGIN, COMMIT and ABORT, and answers a receipt header with a RECEIPT frame.
+ * <p/>
+ * A destination starting with <code>/topic/</code> is a topic: a message goes to each of its current subscriptions. Any other destination is a
+ * queue: a message goes to one of its subscriptions in turn, or waits for one. The messages of a queue sent to a subscription with the client or
+ * client-individual ack mode are delivered again if the subscription ends before they are acknowledged.
+ * <p/>
+ * The frames of a connection are read by a thread, and written by another which flushes once no frame is waiting. At most 1024 frames wait to
+ * be written to a connection: then the thread giving it a frame waits, so a slow consumer slows the producers down by no longer reading their
+ * connections, like the TCP flow control between a broker and its clients. The state of the destinations is guarded by the broker.
+ */
+class EmbeddedBroker implements Closeable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(EmbeddedBroker.class);
+    private static final String TOPIC_PREFIX = "/topic/";
+    private static final int OUTBOUND_CAPACITY = 1024;
+    private static final long OUTBOUND_WAIT_MILLIS = 100;
+
+    private final ServerSocket serverSocket;
+    private final List<Session> sessions = new CopyOnWriteArrayList<Session>();
+    private final AtomicInteger sessionCount = new AtomicInteger();
+    private volatile boolean closed = false;
+
+    // Guarded by this
+    private final Map<String, Destination> destinations = new HashMap<String, Destination>();
+    private long messageCount = 0;
+
+    private EmbeddedBroker() throws IOException {
+        this.serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+    }
+
+    /**
+     * Start a broker on a free port of the loopback interface.
+     */
+    static EmbeddedBroker start() throws IOException {
+        final EmbeddedBroker broker = new EmbeddedBroker();
+        Thread acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                broker.accept();
+            }
+        }, "embedded-broker-" + broker.port());
+        acceptor.setDaemon(true);
+        acceptor.start();
+        return broker;
+    }
+
+    String host() {
+        return serverSocket.getInetAddress().getHostAddress();
+    }
+
+    int port() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * @return the number of messages waiting for a subscription in a queue
+     */
+    synchronized int pending(String queue) {
+        Destination destination = destinations.get(queue);
+        return (destination == null) ? 0 : destination.pending.size();
+    }
+
+    private void accept() {
+        while (!closed) {
+            try {
+                Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                Session session = new Session(socket, sessionCount.incrementAndGet());
+                sessions.add(session);
+                session.start();
+            } catch (IOException e) {
+                if (!closed) {
+                    LOGGER.warn("Can't accept a connection: {}", e.getMessage());
+                }
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        serverSocket.close();
+        for (Session session : sessions) {
+            session.close();
+        }
+    }
+
+    // Handle the frames of a session, called by its reader thread
+
+    private void handle(Session session, Frame frame) {
+        String transaction = frame.header.get(Headers.TRANSACTION);
+        switch (frame.command) {
+            case CONNECT:
+                connect(session, frame);
+                return;
+            case SEND:
+            case ACK:
+            case NACK:
+                if (transaction != null) {
+                    session.transaction(transaction).add(frame);
+                } else {
+                    apply(session, frame);
+                }
+                break;
+            case SUBSCRIBE:
+                subscribe(session, frame);
+                break;
+            case UNSUBSCRIBE:
+                unsubscribe(session, frame);
+                break;
+            case BEGIN:
+                if (transaction == null) {
+                    throw new StompException("A BEGIN frame needs a transaction");
+                }
+                if (session.transactions.putIfAbsent(transaction, new ArrayList<Frame>()) != null) {
+                    throw new StompException("Transaction " + transaction + " already started");
+                }
+                break;
+            case COMMIT:
+                for (Frame transacted : session.transaction(transaction)) {
+                    apply(session, transacted);
+                }
+                session.transactions.remove(transaction);
+                break;
+            case ABORT:
+                session.transaction(transaction);
+                session.transactions.remove(transaction);
+                break;
+            default:
+                throw new StompException("Unexpected frame " + frame.command);
+        }
+        receipt(session, frame);
+    }
+
+    private void connect(Session session, Frame frame) {
+        FrameBuilder connected = new FrameBuilder().command(Command.CONNECTED).header(Headers.SESSION, "session-" + session.number)
+                .header(Headers.SERVER, "embedded").header(Headers.HEART_BEAT, "0,0");
+        String acceptVersion = frame.header.get(Headers.ACCEPT_VERSION);
+        if ((acceptVersion != null) && acceptVersion.contains("1.1")) {
+            connected.header(Headers.VERSION, "1.1");
+        }
+        session.write(connected.end());
+    }
+
+    private void apply(Session session, Frame frame) {
+        if (frame.is(Command.SEND)) {
+            send(frame);
+        } else {
+            acknowledge(session, frame);
+        }
+    }
+
+    private void receipt(Session session, Frame frame) {
+        String receipt = frame.header.get(Headers.RECEIPT);
+        if (receipt != null) {
+            session.write(new FrameBuilder().command(Command.RECEIPT).header(Headers.RECEIPT_ID, receipt).end());
+        }
+    }
+
+    private void send(Frame frame) {
+        String destinationName = frame.header.get(Headers.DESTINATION);
+        if (destinationName == null) {
+            throw new StompException("A SEND frame needs a destination");
+        }
+        HeaderMap.Builder header = HeaderMap.builder();
+        for (int i = 0; i < frame.header.size(); i++) {
+            String key = frame.header.key(i);
+            if (!Headers.RECEIPT.equals(key) && !Headers.TRANSACTION.equals(key) && !Headers.CONTENT_LENGTH.equals(key)) {
+                header.put(key, frame.header.value(i));
+            }
+        }
+        if (frame.messageLength() > 0) {
+            header.put(Headers.CONTENT_LENGTH, Integer.toString(frame.messageLength()));
+        }
+        synchronized (this) {
+            header.put(Headers.MESSAGE_ID, "message-" + (++messageCount));
+            Frame message = new Frame(Command.MESSAGE, header.build(), frame.body());
+            Destination destination = destination(destinationName);
+            if (destination.topic) {
+                for (Subscription subscription : destination.subscriptions) {
+                    subscription.session.write(message.withHeader(Headers.SUBSCRIPTION, subscription.id));
+                }
+            } else {
+                destination.pending.addLast(message);
+                dispatch(destination);
+            }
+        }
+    }
+
+    private void subscribe(Session session, Frame frame) {
+        String destinationName = frame.header.get(Headers.DESTINATION);
+        if (destinationName == null) {
+            throw new StompException("A SUBSCRIBE frame needs a destination");
+        }
+        // Without id, the messages of a STOMP 1.0 subscription give its destination
+        String id = frame.header.containsKey(Headers.ID) ? frame.header.get(Headers.ID) : destinationName;
+        String ack = frame.header.get(Headers.ACK);
+        synchronized (this) {
+            if (session.subscriptions.containsKey(id)) {
+                throw new StompException("Subscription " + id + " already exists");
+            }
+            Destination destination = destination(destinationName);
+            Subscription subscription = new Subscription(session, id, destination, (ack == null) ? "auto" : ack);
+            session.subscriptions.put(id, subscription);
+            destination.subscriptions.add(subscription);
+            dispatch(destination);
+        }
+    }
+
+    private void unsubscribe(Session session, Frame frame) {
+        String id = frame.header.containsKey(Headers.ID) ? frame.header.get(Headers.ID) : frame.header.get(Headers.DESTINATION);
+        synchronized (this) {
+            Subscription subscription = session.subscriptions.remove(id);
+            if (subscription == null) {
+                throw new StompException("No subscription " + id);
+            }
+            end(subscription);
+        }
+    }
+
+    private void acknowledge(Session session, Frame frame) {
+        String messageId = frame.header.get(Headers.MESSAGE_ID);
+        String subscriptionId = frame.header.get(Headers.SUBSCRIPTION);
+        synchronized (this) {
+            for (Subscription subscription : session.subscriptions.values()) {
+                if (((subscriptionId == null) || subscriptionId.equals(subscription.id)) && subscription.unacknowledged.containsKey(messageId)) {
+                    subscription.acknowledge(messageId, frame.is(Command.NACK));
+                    dispatch(subscription.destination);
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Give the pending messages of a queue to its subscriptions in turn.
+     */
+    private synchronized void dispatch(Destination destination) {
+        while (!destination.pending.isEmpty() && !destination.subscriptions.isEmpty()) {
+            Subscription subscription = destination.subscriptions.get(destination.next++ % destination.subscriptions.size());
+            Frame message = destination.pending.pollFirst();
+            if (!"auto".equals(subscription.ack)) {
+                subscription.unacknowledged.put(message.header.get(Headers.MESSAGE_ID), message);
+            }
+            subscription.session.write(message.withHeader(Headers.SUBSCRIPTION, subscription.id));
+        }
+    }
+
+    /**
+     * Remove a subscription, its unacknowledged messages are delivered again.
+     */
+    private synchronized void end(Subscription subscription) {
+        Destination destination = subscription.destination;
+        destination.subscriptions.remove(subscription);
+        List<Frame> unacknowledged = new ArrayList<Frame>(subscription.unacknowledged.values());
+        for (int i = unacknowledged.size() - 1; i >= 0; i--) {
+            destination.pending.addFirst(unacknowledged.get(i));
+        }
+        subscription.unacknowledged.clear();
+        dispatch(destination);
+    }
+
+    private synchronized Destination destination(String name) {
+        Destination destination = destinations.get(name);
+        if (destination == null) {
+            destination = new Destination(name.startsWith(TOPIC_PREFIX));
+            destinations.put(name, destination);
+        }
+        return destination;
+    }
+
+    private static final class Destination {
+        private final boolean topic;
+        private final List<Subscription> subscriptions = new ArrayList<Subscription>();
+        // Messages of a queue waiting for a subscription
+        private final ArrayDeque<Frame> pending = new ArrayDeque<Frame>();
+        // The subscription receiving the next message of a queue
+        private int next = 0;
+
+        Destination(boolean topic) {
+            this.topic = topic;
+        }
+    }
+
+    private static final class Subscription {
+        private final Session session;
+        private final String id;
+        private final Destination destination;
+        private final String ack;
+        // Messages of a queue delivered and not acknowledged yet, in the delivery order
+        private final LinkedHashMap<String, Frame> unacknowledged = new LinkedHashMap<String, Frame>();
+
+        Subscription(Session session, String id, Destination destination, String ack) {
+            this.session = session;
+            this.id = id;
+            this.destination = destination;
+            this.ack = ack;
+        }
+
+        /**
+         * An ACK in the client mode acknowledges the message and the messages delivered before it. A NACK gives the message back to the queue.
+         */
+        void acknowledge(String messageId, boolean nack) {
+            if (nack) {
+                destination.pending.addFirst(unacknowledged.remove(messageId));
+                return;
+            }
+            if ("client-individual".equals(ack)) {
+                unacknowledged.remove(messageId);
+                return;
+            }
+            Iterator<String> messageIds = unacknowledged.keySet().iterator();
+            while (messageIds.hasNext()) {
+                String acknowledged = messageIds.next();
+                messageIds.remove();
+                if (acknowledged.equals(messageId)) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private final class Session {
+        private final Socket socket;
+        private final int number;
+        private final FrameInputStream input;
+        private final FrameOutputStream output;
+        private final BlockingQueue<Frame> outbound = new LinkedBlockingQueue<Frame>(OUTBOUND_CAPACITY);
+        // Guarded by the broker
+        private final Map<String, Subscription> subscriptions = new LinkedHashMap<String, Subscription>();
+        // Used by the reader thread only
+        private final Map<String, List<Frame>> transactions = new HashMap<String, List<Frame>>();
+        private volatile boolean closed = false;
+        private Thread writer;
+
+        Session(Socket socket, int number) throws IOException {
+            this.socket = socket;
+            this.number = number;
+            this.input = new FrameInputStream(socket);
+            this.output = new FrameOutputStream(socket.getOutputStream(), 65536);
+        }
+
+        void start() {
+            Thread reader = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    read();
+                }
+            }, "embedded-broker-reader-" + number);
+            reader.setDaemon(true);
+            writer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    writeOutbound();
+                }
+            }, "embedded-broker-writer-" + number);
+            writer.setDaemon(true);
+            writer.start();
+            reader.start();
+        }
+
+        private void read() {
+            try {
+                while (!closed) {
+                    Frame frame = input.read();
+                    try {
+                        handle(this, frame);
+                    } catch (StompException e) {
+                        FrameBuilder error = new FrameBuilder().command(Command.ERROR).header(Headers.MESSAGE, e.getMessage());
+                        String receipt = frame.header.get(Headers.RECEIPT);
+                        if (receipt != null) {
+                            error.header(Headers.RECEIPT_ID, receipt);
+                        }
+                        write(error.end());
+                    }
+                }
+            } catch (StompException e) {
+                LOGGER.debug("Session {} ends: {}", number, e.getMessage());
+            } finally {
+                close();
+            }
+        }
+
+        private void writeOutbound() {
+            try {
+                while (!closed) {
+                    Frame frame = outbound.take();
+                    do {
+                        output.write(frame);
+                        frame = outbound.poll();
+                    } while (frame != null);
+                    output.flush();
+                }
+            } catch (InterruptedException e) {
+                // Closed
+            } catch (IOException e) {
+                LOGGER.debug("Session {} can't be written: {}", number, e.getMessage());
+                close();
+            }
+        }
+
+        /**
+         * Queue a frame for the writer, waiting while the queue is full. The caller may hold the broker, so the wait ends with the close of the
+         * session.
+         */
+        void write(Frame frame) {
+            try {
+                while (!closed && !outbound.offer(frame, OUTBOUND_WAIT_MILLIS, TimeUnit.MILLISECONDS)) {
+                    LOGGER.trace("Session {} is slow, {} frames wait", number, outbound.size());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        List<Frame> transaction(String transaction) {
+            List<Frame> frames = transactions.get(transaction);
+            if (frames == null) {
+                throw new StompException("No transaction " + transaction);
+            }
+            return frames;
+        }
+
+        void close() {
+            synchronized (this) {
+                // Before waiting for the broker, which a thread writing to this session may hold
+                if (closed) {
+                    return;
+                }
+                closed = true;
+            }
+            synchronized (EmbeddedBroker.this) {
+                for (Subscription subscription : subscriptions.values()) {
+                    end(subscription);
+                }
+                subscriptions.clear();
+            }
+            sessions.remove(this);
+            if (writer != null) {
+                writer.interrupt();
+            }
+            try {
+                socket.close();
+            } catch (IOException e) {
+                LOGGER.debug("Can't close session {}: {}", number, e.getMessage());
+            }
+        }
+    }
+}
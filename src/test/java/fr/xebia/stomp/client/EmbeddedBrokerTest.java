@@ -0,0 +1,203 @@
+package fr.xebia.stomp.client;
+
+import com.google.common.base.Strings;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class EmbeddedBrokerTest {
+    private EmbeddedBroker broker;
+    private final List<Connection> connections = new ArrayList<Connection>();
+
+    @Test
+    public void should_deliver_queue_messages_to_subscriptions_in_turn() throws Exception {
+        // Init
+        Connection receiver1 = subscribe(connect(), "receiver1", "/queue/test", "auto");
+        Connection receiver2 = subscribe(connect(), "receiver2", "/queue/test", "auto");
+        Connection sender = connect();
+
+        // Test
+        for (int i = 0; i < 4; i++) {
+            sender.send(FrameBuilder.send().message("message-" + i).to("/queue/test"));
+        }
+
+        // Assert
+        assertEquals("message-0", receiver1.receive(5, TimeUnit.SECONDS).messageAsString());
+        assertEquals("message-1", receiver2.receive(5, TimeUnit.SECONDS).messageAsString());
+        assertEquals("message-2", receiver1.receive(5, TimeUnit.SECONDS).messageAsString());
+        Frame message = receiver2.receive(5, TimeUnit.SECONDS);
+        assertEquals("message-3", message.messageAsString());
+        assertEquals("receiver2", message.message().subscription());
+        assertEquals("/queue/test", message.header.get(Headers.DESTINATION));
+    }
+
+    @Test
+    public void should_keep_queue_messages_until_subscription() throws Exception {
+        // Init
+        Connection sender = connect();
+        sender.sendAsync(FrameBuilder.send().message("message").to("/queue/test")).get(5, TimeUnit.SECONDS);
+        assertEquals(1, broker.pending("/queue/test"));
+
+        // Test
+        Connection receiver = subscribe(connect(), "receiver", "/queue/test", "auto");
+
+        // Assert
+        assertEquals("message", receiver.receive(5, TimeUnit.SECONDS).messageAsString());
+        assertEquals(0, broker.pending("/queue/test"));
+    }
+
+    @Test
+    public void should_deliver_topic_messages_to_each_subscription() throws Exception {
+        // Init
+        Connection receiver1 = subscribe(connect(), "receiver1", "/topic/test", "auto");
+        Connection receiver2 = subscribe(connect(), "receiver2", "/topic/test", "auto");
+
+        // Test
+        connect().send(FrameBuilder.send().message("message").to("/topic/test"));
+
+        // Assert
+        assertEquals("message", receiver1.receive(5, TimeUnit.SECONDS).messageAsString());
+        assertEquals("message", receiver2.receive(5, TimeUnit.SECONDS).messageAsString());
+    }
+
+    @Test
+    public void should_deliver_unacknowledged_messages_again() throws Exception {
+        // Init
+        Connection receiver1 = subscribe(connect(), "receiver1", "/queue/test", "client-individual");
+        Connection sender = connect();
+        sender.send(FrameBuilder.send().message("message-0").to("/queue/test"));
+        sender.send(FrameBuilder.send().message("message-1").to("/queue/test"));
+        Frame acknowledged = receiver1.receive(5, TimeUnit.SECONDS);
+        receiver1.receive(5, TimeUnit.SECONDS);
+        receiver1.sendAsync(FrameBuilder.ack(null).messageId(acknowledged.message().messageId()).to("receiver1")).get(5, TimeUnit.SECONDS);
+
+        // Test
+        receiver1.close();
+        Connection receiver2 = subscribe(connect(), "receiver2", "/queue/test", "client");
+
+        // Assert
+        assertEquals("message-1", receiver2.receive(5, TimeUnit.SECONDS).messageAsString());
+        assertNoMessage(receiver2);
+    }
+
+    @Test
+    public void should_deliver_committed_messages_only() throws Exception {
+        // Init
+        Connection receiver = subscribe(connect(), "receiver", "/queue/test", "auto");
+        Connection sender = connect();
+        Transaction aborted = sender.begin();
+        aborted.send("/queue/test", "aborted");
+        aborted.abort();
+        Transaction committed = sender.begin();
+        committed.send("/queue/test", "committed");
+
+        // Test
+        committed.commit(5, TimeUnit.SECONDS);
+
+        // Assert
+        assertEquals("committed", receiver.receive(5, TimeUnit.SECONDS).messageAsString());
+        assertNoMessage(receiver);
+    }
+
+    @Test
+    public void should_answer_error_with_receipt_id() throws Exception {
+        // Init
+        Connection connection = connect();
+
+        // Test
+        try {
+            connection.sendAsync(new FrameBuilder().command(Command.UNSUBSCRIBE).header(Headers.ID, "unknown").end()).get(5, TimeUnit.SECONDS);
+            fail("The subscription doesn't exist");
+        } catch (ExecutionException e) {
+            // Assert
+            assertTrue(e.getCause().getMessage().contains("No subscription unknown"));
+        }
+    }
+
+    @Test
+    public void should_slow_producer_down_to_consumer() throws Exception {
+        // Init
+        final int messages = 20000;
+        // The receiver stops reading once 10 messages wait in its subscription queue
+        Connection receiver = connect();
+        receiver.subscribe().forClient("receiver").prefetch(10).to("/queue/test");
+        final Connection sender = connect();
+        final AtomicInteger sent = new AtomicInteger();
+        final String message = Strings.repeat("a", 4096);
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (sent.get() < messages) {
+                    sender.send(FrameBuilder.send().message(message).to("/queue/test"));
+                    sent.incrementAndGet();
+                }
+            }
+        });
+        producer.setDaemon(true);
+
+        // Test
+        producer.start();
+
+        // Assert
+        int sentBefore;
+        do {
+            sentBefore = sent.get();
+            Thread.sleep(200);
+        } while (sentBefore != sent.get());
+        assertTrue("The broker buffered all the messages", sentBefore < messages);
+        for (int i = 0; i < messages; i++) {
+            assertEquals(4096, receiver.receive("receiver", 5, TimeUnit.SECONDS).messageLength());
+        }
+        producer.join(5000);
+        assertEquals(messages, sent.get());
+    }
+
+    private Connection connect() {
+        Connection connection = Connection.login("admin").passcode("password").to(broker.host(), broker.port());
+        connections.add(connection);
+        return connection;
+    }
+
+    /**
+     * Subscribe with a receipt, so the subscription exists on the broker once it returns.
+     */
+    private Connection subscribe(Connection connection, String id, String destination, String ack) throws Exception {
+        connection.sendAsync(new FrameBuilder().command(Command.SUBSCRIBE).header(Headers.ID, id).header(Headers.ACK, ack)
+                .header(Headers.DESTINATION, destination).end()).get(5, TimeUnit.SECONDS);
+        return connection;
+    }
+
+    private void assertNoMessage(Connection connection) {
+        try {
+            Frame frame = connection.receive(200, TimeUnit.MILLISECONDS);
+            fail("Unexpected frame " + frame);
+        } catch (TimeoutException e) {
+            // Expected
+        }
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        broker = EmbeddedBroker.start();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        for (Connection connection : connections) {
+            connection.closeQuietly();
+        }
+        broker.close();
+    }
+}
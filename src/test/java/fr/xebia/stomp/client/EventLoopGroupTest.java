@@ -0,0 +1,85 @@
+package fr.xebia.stomp.client;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class EventLoopGroupTest {
+    private static final int NUMBER_OF_CONNECTIONS = 20;
+    private static final int NUMBER_OF_MESSAGES = 100;
+
+    private FakeServer server;
+    private EventLoopGroup eventLoopGroup;
+    private List<Connection> connections = new ArrayList<Connection>();
+
+    @Test
+    public void should_read_many_connections_with_few_threads() throws Exception {
+        // Init
+        final CountDownLatch received = new CountDownLatch((NUMBER_OF_CONNECTIONS / 2) * NUMBER_OF_MESSAGES);
+        for (int i = 0; i < NUMBER_OF_CONNECTIONS; i++) {
+            connections.add(Connection.login("admin").passcode("password").on(eventLoopGroup).to("localhost", server.port()));
+        }
+
+        // Test
+        for (int i = 0; i < NUMBER_OF_CONNECTIONS; i += 2) {
+            connections.get(i).listen(new FrameListener() {
+                @Override
+                public void onFrame(Frame frame) {
+                    if (frame.is(Command.MESSAGE)) {
+                        received.countDown();
+                    }
+                }
+            });
+        }
+
+        // Assert
+        for (int i = 1; i < NUMBER_OF_CONNECTIONS; i += 2) {
+            for (int j = 0; j < NUMBER_OF_MESSAGES; j++) {
+                Frame frame = connections.get(i).receive(5, TimeUnit.SECONDS);
+                assertEquals("message " + j, frame.messageAsString());
+            }
+        }
+        assertTrue(received.await(5, TimeUnit.SECONDS));
+        int eventLoopThreads = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().startsWith("stomp-event-loop-")) {
+                eventLoopThreads++;
+            }
+        }
+        assertEquals(2, eventLoopThreads);
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        eventLoopGroup = new EventLoopGroup(2);
+        server = FakeServer.start(new FakeServer.Handler() {
+            @Override
+            void serve(FakeServer.Session session) throws IOException {
+                for (int i = 0; i < NUMBER_OF_MESSAGES; i++) {
+                    session.write(new FrameBuilder().messsage().header("destination", "/queue/test").message("message " + i).end());
+                }
+                while (true) {
+                    session.read();
+                }
+            }
+        });
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        for (Connection connection : connections) {
+            connection.closeQuietly();
+        }
+        eventLoopGroup.close();
+        server.close();
+    }
+}
@@ -0,0 +1,130 @@
+package fr.xebia.stomp.client;
+
+import com.google.common.base.Strings;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class EventLoopListenerTest {
+    private static final int MESSAGES = 16;
+    private static final int MESSAGE_SIZE = 1000000;
+
+    private FakeServer server;
+    private final BlockingQueue<Frame> receivedByServer = new LinkedBlockingQueue<Frame>();
+    // The server reads once released
+    private final CountDownLatch serverReading = new CountDownLatch(1);
+    private EventLoopGroup eventLoopGroup;
+    private final List<Connection> connections = new ArrayList<Connection>();
+
+    @Test
+    public void should_not_block_event_loop_when_listener_writes_more_than_socket_buffer() throws Exception {
+        // Init
+        final Connection writing = connect("listener");
+        Connection other = connect("other");
+        final String message = Strings.repeat("a", MESSAGE_SIZE);
+        final CountDownLatch written = new CountDownLatch(1);
+        final CountDownLatch otherReceived = new CountDownLatch(1);
+
+        // Test
+        writing.listen(new FrameListener() {
+            @Override
+            public void onFrame(Frame frame) {
+                for (int i = 0; i < MESSAGES; i++) {
+                    writing.send(FrameBuilder.send().message(message).to("/queue/test"));
+                }
+                written.countDown();
+            }
+        });
+        other.listen(new FrameListener() {
+            @Override
+            public void onFrame(Frame frame) {
+                otherReceived.countDown();
+            }
+        });
+        writing.subscribe().to("/queue/test");
+        other.subscribe().to("/queue/test");
+
+        // Assert
+        assertTrue("The listener waits for the socket", written.await(5, TimeUnit.SECONDS));
+        assertTrue("The event loop is blocked", otherReceived.await(5, TimeUnit.SECONDS));
+        serverReading.countDown();
+        for (int i = 0; i < MESSAGES; i++) {
+            Frame frame = receivedByServer.poll(10, TimeUnit.SECONDS);
+            assertEquals(MESSAGE_SIZE, frame.messageLength());
+        }
+    }
+
+    @Test
+    public void should_not_wait_for_receipt_of_connection_read_by_same_event_loop() throws Exception {
+        // Init
+        serverReading.countDown();
+        Connection listened = connect("listener");
+        final Connection other = connect("other");
+        final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+        final CountDownLatch done = new CountDownLatch(1);
+
+        // Test
+        listened.listen(new FrameListener() {
+            @Override
+            public void onFrame(Frame frame) {
+                try {
+                    other.sendAsync(FrameBuilder.send().message("message").to("/queue/test")).get(5, TimeUnit.SECONDS);
+                } catch (Exception e) {
+                    failure.set(e);
+                } finally {
+                    done.countDown();
+                }
+            }
+        });
+        listened.subscribe().to("/queue/test");
+
+        // Assert
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertTrue(String.valueOf(failure.get()), failure.get() instanceof StompException);
+        assertTrue(failure.get().getMessage().startsWith("Can't wait for a receipt"));
+    }
+
+    private Connection connect(String login) {
+        Connection connection = Connection.login(login).passcode("password").on(eventLoopGroup).to("localhost", server.port());
+        connections.add(connection);
+        return connection;
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        eventLoopGroup = new EventLoopGroup(1);
+        server = FakeServer.start(new FakeServer.Handler() {
+            @Override
+            void serve(FakeServer.Session session) throws IOException, InterruptedException {
+                // Answer the subscription, so the listener is called by the event loop
+                session.read();
+                session.write(new FrameBuilder().messsage().header(Headers.DESTINATION, "/queue/test").message("message").end());
+                serverReading.await();
+                while (true) {
+                    receivedByServer.add(session.read());
+                }
+            }
+        });
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        for (Connection connection : connections) {
+            connection.closeQuietly();
+        }
+        eventLoopGroup.close();
+        server.close();
+    }
+}
@@ -0,0 +1,166 @@
+package fr.xebia.stomp.client;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A fake STOMP server for the tests of the client: it answers the CONNECT frame of each connection, then gives the connection to a handler which
+ * plays the part of the server in the test. Each connection is served by its own thread, until the handler returns or the connection is closed.
+ * The sockets accepted by the server are closed with it.
+ */
+class FakeServer implements Closeable {
+    private final ServerSocket serverSocket;
+    private final Handler handler;
+    private final List<Socket> sockets = new CopyOnWriteArrayList<Socket>();
+    private final AtomicInteger sessionCount = new AtomicInteger();
+
+    private FakeServer(Handler handler) throws IOException {
+        this.serverSocket = new ServerSocket(0);
+        this.handler = handler;
+    }
+
+    /**
+     * Start a server on a free port.
+     */
+    static FakeServer start(Handler handler) throws IOException {
+        final FakeServer server = new FakeServer(handler);
+        Thread acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                server.accept();
+            }
+        }, "fake-server-" + server.port());
+        acceptor.setDaemon(true);
+        acceptor.start();
+        return server;
+    }
+
+    /**
+     * Start a server keeping the frames received after the CONNECT frame.
+     */
+    static FakeServer recording(final BlockingQueue<Frame> receivedByServer) throws IOException {
+        return start(new Handler() {
+            @Override
+            void serve(Session session) {
+                while (true) {
+                    receivedByServer.add(session.read());
+                }
+            }
+        });
+    }
+
+    /**
+     * Start a server writing the frames of the queue once connected.
+     */
+    static FakeServer sending(final BlockingQueue<Frame> toSend) throws IOException {
+        return start(new Handler() {
+            @Override
+            void serve(Session session) throws IOException, InterruptedException {
+                while (true) {
+                    session.write(toSend.take());
+                }
+            }
+        });
+    }
+
+    int port() {
+        return serverSocket.getLocalPort();
+    }
+
+    private void accept() {
+        try {
+            while (true) {
+                final Socket socket = serverSocket.accept();
+                sockets.add(socket);
+                Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        serve(socket);
+                    }
+                }, "fake-server-session-" + sessionCount.incrementAndGet());
+                thread.setDaemon(true);
+                thread.start();
+            }
+        } catch (IOException e) {
+            // Server socket closed
+        }
+    }
+
+    private void serve(Socket socket) {
+        try {
+            FrameInputStream input = new FrameInputStream(socket);
+            Frame connect = input.read();
+            Session session = new Session(socket, connect, input, new FrameOutputStream(socket));
+            session.write(handler.connected(connect));
+            handler.serve(session);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            // Socket closed
+        } catch (StompException e) {
+            // Client socket closed
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+        for (Socket socket : sockets) {
+            socket.close();
+        }
+    }
+
+    /**
+     * The part of the server in a test.
+     */
+    abstract static class Handler {
+        /**
+         * @param connect the CONNECT frame of the client
+         * @return the answer to the CONNECT frame, a CONNECTED frame by default
+         */
+        Frame connected(Frame connect) throws InterruptedException {
+            return new FrameBuilder().command(Command.CONNECTED).end();
+        }
+
+        /**
+         * Serve a connection once connected. The end of the connection ends the handler with a {@link StompException} or an
+         * {@link IOException}.
+         */
+        abstract void serve(Session session) throws IOException, InterruptedException;
+    }
+
+    /**
+     * A connection accepted by the server.
+     */
+    static class Session {
+        final Socket socket;
+        final Frame connect;
+        final FrameInputStream input;
+        private final FrameOutputStream output;
+
+        private Session(Socket socket, Frame connect, FrameInputStream input, FrameOutputStream output) {
+            this.socket = socket;
+            this.connect = connect;
+            this.input = input;
+            this.output = output;
+        }
+
+        Frame read() {
+            return input.read();
+        }
+
+        /**
+         * Write and flush a frame, several threads of the handler can write.
+         */
+        synchronized void write(Frame frame) throws IOException {
+            output.write(frame);
+            output.flush();
+        }
+    }
+}
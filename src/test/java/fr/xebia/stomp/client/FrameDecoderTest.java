@@ -0,0 +1,126 @@
+package fr.xebia.stomp.client;
+
+import com.google.common.base.Strings;
+import com.google.common.primitives.Bytes;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class FrameDecoderTest {
+
+    @Test
+    public void should_decode_frames_received_byte_by_byte() {
+        // Init
+        Frame frameWithLength = new FrameBuilder()//
+                .command(Command.MESSAGE)//
+                .header("0é0", "toot")//
+                .header("content-length", "3")//
+                .message(new byte[]{0, 1, 2})//
+                .end();
+        Frame frameUntilNull = new FrameBuilder()//
+                .command(Command.MESSAGE)//
+                .header("destination", "/queue/test")//
+                .message("&é'(§è!çà)-$^`=:;,°_*¨M+/.?end•¿#‰Ó¥Ô∏Œª")//
+                .end();
+        byte[] bytes = Bytes.concat(frameWithLength.getBytes(), "\n\n".getBytes(), frameUntilNull.getBytes());
+        FrameDecoder decoder = new FrameDecoder();
+        ByteBuffer buffer = ByteBuffer.allocate(bytes.length);
+        buffer.flip();
+
+        // Test
+        List<Frame> frames = new ArrayList<Frame>();
+        for (byte currentByte : bytes) {
+            buffer.compact();
+            buffer.put(currentByte);
+            buffer.flip();
+            Frame frame = decoder.decode(buffer);
+            if (frame != null) {
+                frames.add(frame);
+            }
+        }
+
+        // Assert
+        assertEquals(2, frames.size());
+        assertEquals(frameWithLength, frames.get(0));
+        assertEquals(frameUntilNull, frames.get(1));
+        assertTrue(decoder.isIdle());
+    }
+
+    @Test
+    public void should_decode_message_larger_than_the_buffer() {
+        // Init
+        Frame frameIn = new FrameBuilder()//
+                .command(Command.MESSAGE)//
+                .message(Strings.repeat("0", 100000))//
+                .end();
+        ByteBuffer bytes = ByteBuffer.wrap(frameIn.getBytes());
+        FrameDecoder decoder = new FrameDecoder();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(1000);
+
+        // Test
+        Frame frameOut = null;
+        while (bytes.hasRemaining()) {
+            assertNull(frameOut);
+            ByteBuffer chunk = bytes.slice();
+            chunk.limit(Math.min(chunk.remaining(), buffer.capacity()));
+            bytes.position(bytes.position() + chunk.remaining());
+            buffer.clear();
+            buffer.put(chunk);
+            buffer.flip();
+            frameOut = decoder.decode(buffer);
+        }
+
+        // Assert
+        assertEquals(frameIn, frameOut);
+    }
+
+    @Test
+    public void should_fail_frame_with_negative_content_length_and_decode_next_one() {
+        // Init
+        ByteBuffer buffer = ByteBuffer.wrap("MESSAGE\ncontent-length:-1\n\n\0MESSAGE\nmessage-id:1\n\nnext\0".getBytes());
+        FrameDecoder decoder = new FrameDecoder();
+
+        // Test
+        try {
+            decoder.decode(buffer);
+            fail("The content-length is negative");
+        } catch (StompException e) {
+            // Assert
+            assertEquals("Invalid content-length '-1'", e.getMessage());
+        }
+        assertTrue(decoder.isIdle());
+        Frame next = decoder.decode(buffer);
+        assertEquals("1", next.header.get(Headers.MESSAGE_ID));
+        assertNull(next.header.get(Headers.CONTENT_LENGTH));
+        assertEquals("next", next.messageAsString());
+    }
+
+    @Test
+    public void should_fail_frames_larger_than_max_frame_size() {
+        // Init
+        FrameDecoder decoder = new FrameDecoder(1024);
+
+        // Test
+        try {
+            decoder.decode(ByteBuffer.wrap("MESSAGE\ncontent-length:2147483648\n\n\0".getBytes()));
+            fail("The content-length is larger than the maximum frame size");
+        } catch (StompException e) {
+            // Assert
+            assertEquals("The content-length '2147483648' exceeds the maximum frame size of 1024 bytes", e.getMessage());
+        }
+        try {
+            decoder.decode(ByteBuffer.wrap(("MESSAGE\n\n" + Strings.repeat("0", 1025)).getBytes()));
+            fail("The message is larger than the maximum frame size");
+        } catch (StompException e) {
+            assertEquals("The message exceeds the maximum frame size of 1024 bytes", e.getMessage());
+        }
+        assertTrue(decoder.isIdle());
+    }
+}
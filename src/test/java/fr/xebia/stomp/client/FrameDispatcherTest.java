@@ -0,0 +1,72 @@
+package fr.xebia.stomp.client;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class FrameDispatcherTest {
+
+    @Test
+    public void should_route_frames_to_their_listeners() throws TimeoutException {
+        // Init
+        FrameDispatcher dispatcher = new FrameDispatcher();
+        final List<Frame> messagesOfA = new ArrayList<Frame>();
+        final List<Frame> messagesOfB = new ArrayList<Frame>();
+        final List<Frame> receipts = new ArrayList<Frame>();
+        final List<Frame> errors = new ArrayList<Frame>();
+        dispatcher.subscribe("a", new MessageListener() {
+            @Override
+            public void onMessage(Frame message) {
+                messagesOfA.add(message);
+            }
+        });
+        dispatcher.subscribe("b", new MessageListener() {
+            @Override
+            public void onMessage(Frame message) {
+                messagesOfB.add(message);
+            }
+        });
+        dispatcher.onReceipt(new FrameListener() {
+            @Override
+            public void onFrame(Frame frame) {
+                receipts.add(frame);
+            }
+        });
+        dispatcher.onError(new FrameListener() {
+            @Override
+            public void onFrame(Frame frame) {
+                errors.add(frame);
+            }
+        });
+        Frame messageOfA = new FrameBuilder().messsage().header("subscription", "a").message("a").end();
+        Frame messageOfB = new FrameBuilder().messsage().header("subscription", "b").message("b").end();
+        Frame messageOfUnknown = new FrameBuilder().messsage().header("subscription", "unknown").message("unknown").end();
+        Frame receipt = new FrameBuilder().receipt().header("receipt-id", "1").end();
+        Frame error = new FrameBuilder().command(Command.ERROR).message("error").end();
+
+        // Test
+        dispatcher.onFrame(messageOfA);
+        dispatcher.onFrame(messageOfB);
+        dispatcher.onFrame(messageOfUnknown);
+        dispatcher.onFrame(messageOfA);
+        dispatcher.onFrame(receipt);
+        dispatcher.onFrame(error);
+        dispatcher.unsubscribe("b");
+        dispatcher.onFrame(messageOfB);
+
+        // Assert
+        assertEquals(2, messagesOfA.size());
+        assertEquals(1, messagesOfB.size());
+        assertEquals(1, receipts.size());
+        assertEquals(1, errors.size());
+        assertEquals(messageOfUnknown, dispatcher.inbox().poll(1, TimeUnit.SECONDS));
+        assertEquals(messageOfB, dispatcher.inbox().poll(1, TimeUnit.SECONDS));
+        assertTrue(dispatcher.inbox().drain().isEmpty());
+    }
+}
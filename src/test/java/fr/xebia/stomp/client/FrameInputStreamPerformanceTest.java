@@ -0,0 +1,86 @@
+package fr.xebia.stomp.client;
+
+import com.google.common.base.Strings;
+import org.apache.activemq.util.ByteArrayInputStream;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Compare the reading of messages with a content-length header by {@link FrameInputStream}, which reads the bytes, and by the former reader,
+ * which decoded the stream and read as many chars, for the sizes used in {@link QueuePerformanceTest}.
+ */
+public class FrameInputStreamPerformanceTest {
+    private static final long MAX_NUMBER_OF_MESSAGES = 10000;
+    private static final long MAX_SIZE_OF_MESSAGES_IN_BYTES = 200000000;
+
+    @Test
+    public void readMessagesAsBytesAndAsChars() throws IOException {
+        List<Integer> sizes = Arrays.asList(1000, 10000, 100000, 500000, 1000000);
+        for (Integer size : sizes) {
+            read(size, false);
+            read(size, true);
+        }
+    }
+
+    private void read(int size, boolean asChars) throws IOException {
+        byte[] frameBytes = new FrameBuilder()//
+                .command(Command.MESSAGE)//
+                .header("destination", "/queue/test")//
+                .header("content-length", String.valueOf(size))//
+                .message(Strings.repeat("a", size)).end().getBytes();
+        long nbOfMessages = Math.min(MAX_NUMBER_OF_MESSAGES, MAX_SIZE_OF_MESSAGES_IN_BYTES / size);
+
+        // Warm up
+        for (int i = 0; i < nbOfMessages; i++) {
+            readOnce(frameBytes, asChars);
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < nbOfMessages; i++) {
+            readOnce(frameBytes, asChars);
+        }
+        long elapsedInMillis = Math.max(1, (System.nanoTime() - start) / 1000000);
+        System.out.println("Read " + nbOfMessages + " messages of " + size + " bytes as " + (asChars ? "chars" : "bytes") + " in " + elapsedInMillis
+                + "ms - " + ((nbOfMessages * 1000) / elapsedInMillis) + "msg/s - " + ((nbOfMessages * size * 1000) / elapsedInMillis) + " Bps");
+    }
+
+    private static void readOnce(byte[] frameBytes, boolean asChars) throws IOException {
+        if (asChars) {
+            readAsChars(frameBytes);
+        } else {
+            // Decoded too, as the former reader did
+            new FrameInputStream(new ByteArrayInputStream(frameBytes)).read().messageAsString();
+        }
+    }
+
+    /**
+     * The former reading of a frame with a content-length header: the stream is decoded by a reader, and the message is read as many chars.
+     */
+    private static Frame readAsChars(byte[] frameBytes) throws IOException {
+        BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(frameBytes), "UTF8"));
+        Command command = Command.valueOf(bufferedReader.readLine());
+        HashMap<String, String> header = new HashMap<String, String>();
+        String line;
+        while (((line = bufferedReader.readLine()) != null) && !line.isEmpty()) {
+            int colon = line.indexOf(':');
+            header.put(line.substring(0, colon), line.substring(colon + 1));
+        }
+        int length = Integer.parseInt(header.get("content-length"));
+        char[] buffer = new char[length];
+        int totalRead = 0;
+        int read = 0;
+        while ((read != -1) && (totalRead < length)) {
+            read = bufferedReader.read(buffer, totalRead, length - totalRead);
+            if (read != -1) {
+                totalRead += read;
+            }
+        }
+        return new Frame(command, header, new String(buffer));
+    }
+}
@@ -1,18 +1,28 @@
 package fr.xebia.stomp.client;
 
 import com.google.common.base.Strings;
+import com.google.common.primitives.Bytes;
 import org.apache.activemq.util.ByteArrayInputStream;
 import org.junit.Assert;
+import org.junit.BeforeClass;
 import org.junit.Test;
 
 import java.io.BufferedInputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 
 public class FrameInputStreamTest {
 
+    @BeforeClass
+    public static void warmUp() throws IOException {
+        // Load the classes used by the parser, so the first measured test doesn't pay for it
+        Frame frame = new FrameBuilder().command(Command.MESSAGE).header("content-length", "1").message("a").end();
+        new FrameInputStream(new BufferedInputStream(new ByteArrayInputStream(frame.getBytes()))).read();
+    }
+
     @Test
     public void should_read_connect_frame() throws IOException {
         // Init
@@ -34,7 +44,7 @@ public class FrameInputStreamTest {
         assertNotNull(frameOut);
         assertEquals(frameIn, frameOut);
         System.out.println("elapsed: " + elapsed + "ns");
-        Assert.assertEquals("Should change the delta or elapsed time for unit perf test", 200000, elapsed, 30000);
+        Assert.assertTrue("Should change the maximum elapsed time for unit perf test, elapsed " + elapsed + "ns", elapsed < 230000);
     }
 
     @Test
@@ -59,6 +69,49 @@ public class FrameInputStreamTest {
         System.out.println("elapsed: " + elapsed + "ns");
     }
 
+    @Test
+    public void should_read_utf8_message_with_content_length_in_bytes() throws IOException {
+        // Init
+        String message = "&é'(§è!çà)-$^`=:;,°_*¨M+/.?end•¿#‰Ó¥Ô∏Œª";
+        Frame frameIn = new FrameBuilder()//
+                .command(Command.MESSAGE)//
+                .header("content-length", String.valueOf(message.getBytes("UTF-8").length))//
+                .message(message)//
+                .end();
+        Frame nextFrameIn = new FrameBuilder()//
+                .command(Command.MESSAGE)//
+                .message("next")//
+                .end();
+        FrameInputStream frameInputStream = new FrameInputStream(new BufferedInputStream(new ByteArrayInputStream(Bytes.concat(frameIn.getBytes(), nextFrameIn.getBytes()))));
+
+        // Test
+        Frame frameOut = frameInputStream.read();
+        Frame nextFrameOut = frameInputStream.read();
+
+        // Assert
+        assertEquals(frameIn, frameOut);
+        assertEquals(nextFrameIn, nextFrameOut);
+    }
+
+    @Test
+    public void should_read_binary_message_with_content_length() throws IOException {
+        // Init
+        byte[] body = new byte[]{0, 1, 2, (byte) 0xFF, 0, '\n', ':'};
+        Frame frameIn = FrameBuilder.send()//
+                .header("content-length", String.valueOf(body.length))//
+                .message(ByteBuffer.wrap(body))//
+                .to("/queue/test");
+        FrameInputStream frameInputStream = new FrameInputStream(new BufferedInputStream(new ByteArrayInputStream(frameIn.getBytes())));
+
+        // Test
+        Frame frameOut = frameInputStream.read();
+
+        // Assert
+        assertEquals(frameIn, frameOut);
+        assertEquals(ByteBuffer.wrap(body), frameOut.messageAsBuffer());
+        assertEquals(body.length, frameOut.messageLength());
+    }
+
     @Test
     public void should_read_message_with_content_length_equals_100000B() throws IOException {
         // Init
@@ -82,7 +135,7 @@ public class FrameInputStreamTest {
         assertNotNull(frameOut);
         assertEquals(frameIn, frameOut);
         System.out.println("elapsed: " + elapsed + "ns");
-        Assert.assertEquals("Should change the delta or elapsed time for unit perf test", 1400000, elapsed, 400000);
+        Assert.assertTrue("Should change the maximum elapsed time for unit perf test, elapsed " + elapsed + "ns", elapsed < 1800000);
     }
 
     @Test
@@ -108,7 +161,7 @@ public class FrameInputStreamTest {
         assertNotNull(frameOut);
         assertEquals(frameIn, frameOut);
         System.out.println("elapsed: " + elapsed + "ns");
-        Assert.assertEquals("Should change the delta or elapsed time for unit perf test", 350000, elapsed, 150000);
+        Assert.assertTrue("Should change the maximum elapsed time for unit perf test, elapsed " + elapsed + "ns", elapsed < 500000);
     }
 
     @Test
@@ -134,6 +187,42 @@ public class FrameInputStreamTest {
         assertNotNull(frameOut);
         assertEquals(frameIn, frameOut);
         System.out.println("elapsed: " + elapsed + "ns");
-        Assert.assertEquals("Should change the delta or elapsed time for unit perf test", 130000, elapsed, 40000);
+        Assert.assertTrue("Should change the maximum elapsed time for unit perf test, elapsed " + elapsed + "ns", elapsed < 170000);
+    }
+
+    @Test
+    public void should_fail_frame_with_negative_content_length_and_read_next_one() {
+        // Init
+        String frames = "MESSAGE\ncontent-length:-1\n\n\0MESSAGE\nmessage-id:1\n\nnext\0";
+        FrameInputStream frameInputStream = new FrameInputStream(new ByteArrayInputStream(frames.getBytes()));
+
+        // Test
+        try {
+            frameInputStream.read();
+            Assert.fail("The content-length is negative");
+        } catch (StompException e) {
+            // Assert
+            assertEquals("Invalid content-length '-1'", e.getMessage());
+        }
+        Frame next = frameInputStream.read();
+        assertEquals("1", next.header.get(Headers.MESSAGE_ID));
+        assertEquals(null, next.header.get(Headers.CONTENT_LENGTH));
+        assertEquals("next", next.messageAsString());
+    }
+
+    @Test
+    public void should_fail_frame_with_content_length_larger_than_max_frame_size() {
+        // Init
+        String frame = "MESSAGE\ncontent-length:2147483647\n\n\0";
+        FrameInputStream frameInputStream = new FrameInputStream(new ByteArrayInputStream(frame.getBytes()), 1024);
+
+        // Test
+        try {
+            frameInputStream.read();
+            Assert.fail("The content-length is larger than the maximum frame size");
+        } catch (StompException e) {
+            // Assert
+            assertEquals("The content-length '2147483647' exceeds the maximum frame size of 1024 bytes", e.getMessage());
+        }
     }
 }
@@ -0,0 +1,66 @@
+package fr.xebia.stomp.client;
+
+import com.google.common.base.Strings;
+import org.apache.activemq.util.ByteArrayInputStream;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class FrameOutputStreamTest {
+
+    @Test
+    public void should_encode_header_in_utf8() throws IOException {
+        // Init
+        String value = "&é'(§è!çà)-$^`=;,°_*¨M+/.?end•¿#‰Ó¥Ô∏Œª😀";
+        Frame frame = new FrameBuilder()//
+                .command(Command.SEND)//
+                .header("destination", value)//
+                .message("a message")//
+                .end();
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+
+        // Test
+        FrameOutputStream frameOutputStream = new FrameOutputStream(outputStream, 16);
+        frameOutputStream.write(frame);
+        frameOutputStream.flush();
+
+        // Assert
+        assertArrayEquals(("SEND\ndestination:" + value + "\n\na message\00").getBytes("UTF-8"), outputStream.toByteArray());
+    }
+
+    @Test
+    public void should_write_frames_larger_than_the_buffer() throws IOException {
+        // Init
+        Frame heapFrame = FrameBuilder.send()//
+                .header("content-length", "100000")//
+                .message(Strings.repeat("0", 100000))//
+                .to("/queue/test");
+        ByteBuffer directBody = ByteBuffer.allocateDirect(10000);
+        while (directBody.hasRemaining()) {
+            directBody.put((byte) 1);
+        }
+        directBody.flip();
+        Frame directFrame = FrameBuilder.send()//
+                .header("content-length", "10000")//
+                .message(directBody)//
+                .to("/queue/test");
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+
+        // Test
+        FrameOutputStream frameOutputStream = new FrameOutputStream(outputStream, 1024);
+        frameOutputStream.write(heapFrame);
+        frameOutputStream.write(directFrame);
+        frameOutputStream.flush();
+
+        // Assert
+        FrameInputStream frameInputStream = new FrameInputStream(new ByteArrayInputStream(outputStream.toByteArray()));
+        assertEquals(heapFrame, frameInputStream.read());
+        assertEquals(directFrame, frameInputStream.read());
+        assertEquals(10000, directFrame.messageAsBuffer().remaining());
+    }
+}
@@ -0,0 +1,215 @@
+package fr.xebia.stomp.client;
+
+import com.google.common.base.Strings;
+import com.google.common.primitives.Bytes;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class FrameViewTest {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private FakeServer server;
+    private final BlockingQueue<Frame> toSend = new LinkedBlockingQueue<Frame>();
+    private Connection connection;
+
+    @Test
+    public void should_read_frames_in_place() {
+        // Init
+        String bytes = "\n\nMESSAGE\ndestination:/queue/a\nmessage-id:message-0\ncontent-length:5\n\nab\0cd\0\n"
+                + "MESSAGE\r\ndestination:/queue/b\r\ncustom:é\r\n\r\nmessage\0";
+        FrameInputStream frameInputStream = new FrameInputStream(new ByteArrayInputStream(bytes.getBytes(UTF_8)));
+        final List<String> read = new ArrayList<String>();
+
+        // Test
+        FrameViewListener listener = new FrameViewListener() {
+            @Override
+            public void onFrame(FrameView frame) {
+                assertEquals(Command.MESSAGE, frame.command());
+                assertNull(frame.header(Headers.RECEIPT));
+                read.add(frame.header(Headers.DESTINATION) + " " + frame.header("custom") + " " + frame.messageLength() + " " + UTF_8.decode(frame.body()));
+            }
+        };
+        frameInputStream.read(listener);
+        frameInputStream.read(listener);
+
+        // Assert
+        assertEquals(Arrays.asList("/queue/a null 5 ab\0cd", "/queue/b é 7 message"), read);
+    }
+
+    @Test
+    public void should_copy_frame_like_read() {
+        // Init
+        Frame frame = new FrameBuilder().command(Command.MESSAGE).header(Headers.DESTINATION, "/queue/a").header("custom", "1").message("message").end();
+        byte[] bytes = frame.getBytes();
+        final List<Frame> copies = new ArrayList<Frame>();
+
+        // Test
+        new FrameInputStream(new ByteArrayInputStream(bytes)).read(new FrameViewListener() {
+            @Override
+            public void onFrame(FrameView frame) {
+                copies.add(frame.copy());
+            }
+        });
+
+        // Assert
+        assertEquals(new FrameInputStream(new ByteArrayInputStream(bytes)).read(), copies.get(0));
+    }
+
+    @Test
+    public void should_grow_buffer_for_large_message() {
+        // Init
+        char[] body = new char[20000];
+        Arrays.fill(body, 'a');
+        Frame frame = new FrameBuilder().command(Command.MESSAGE).header(Headers.CONTENT_LENGTH, "20000").message(new String(body)).end();
+        byte[] bytes = frame.getBytes();
+        final byte[] destination = new byte[5];
+        final List<Integer> lengths = new ArrayList<Integer>();
+
+        // Test
+        new FrameInputStream(new ByteArrayInputStream(bytes)).read(new FrameViewListener() {
+            @Override
+            public void onFrame(FrameView frame) {
+                lengths.add(frame.body().remaining());
+                lengths.add(frame.copyHeader(Headers.CONTENT_LENGTH, destination, 0));
+            }
+        });
+
+        // Assert
+        assertEquals(Arrays.asList(20000, 5), lengths);
+        assertEquals("20000", new String(destination, UTF_8));
+    }
+
+    @Test
+    public void should_invalidate_view_after_listener() {
+        // Init
+        final List<FrameView> views = new ArrayList<FrameView>();
+        FrameInputStream frameInputStream = new FrameInputStream(new ByteArrayInputStream("MESSAGE\n\n\0".getBytes(UTF_8)));
+
+        // Test
+        frameInputStream.read(new FrameViewListener() {
+            @Override
+            public void onFrame(FrameView frame) {
+                views.add(frame);
+            }
+        });
+
+        // Assert
+        try {
+            views.get(0).command();
+            fail("The view is used after the listener");
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void should_receive_view_from_connection() {
+        connection = Connection.to("localhost", server.port());
+        assertReceived();
+    }
+
+    @Test
+    public void should_receive_view_of_decoded_frame_from_channel() {
+        connection = Connection.login("admin").passcode("password").nio().to("localhost", server.port());
+        assertReceived();
+    }
+
+    private void assertReceived() {
+        // Init
+        toSend.add(new FrameBuilder().command(Command.MESSAGE).header(Headers.MESSAGE_ID, "message-0").message("message").end());
+        final List<Frame> received = new ArrayList<Frame>();
+
+        // Test
+        connection.receive(new FrameViewListener() {
+            @Override
+            public void onFrame(FrameView frame) {
+                assertTrue("message-0".contentEquals(frame.header(Headers.MESSAGE_ID)));
+                assertEquals(ByteBuffer.wrap("message".getBytes(UTF_8)), frame.body());
+                received.add(frame.copy());
+            }
+        });
+
+        // Assert
+        assertEquals("message", received.get(0).messageAsString());
+    }
+
+    @Test
+    public void should_shrink_buffer_after_large_frame() {
+        // Init
+        Frame large = new FrameBuilder().command(Command.MESSAGE).header(Headers.CONTENT_LENGTH, "100000").message(Strings.repeat("0", 100000)).end();
+        Frame small = new FrameBuilder().command(Command.MESSAGE).message("small").end();
+        FrameInputStream frameInputStream = new FrameInputStream(new ByteArrayInputStream(Bytes.concat(large.getBytes(), small.getBytes())));
+        final List<Integer> messageLengths = new ArrayList<Integer>();
+        FrameViewListener listener = new FrameViewListener() {
+            @Override
+            public void onFrame(FrameView frame) {
+                messageLengths.add(frame.messageLength());
+            }
+        };
+
+        // Test
+        frameInputStream.read(listener);
+        int bufferSizeAfterLarge = frameInputStream.bufferSize();
+        frameInputStream.read(listener);
+
+        // Assert
+        assertEquals(Arrays.asList(100000, 5), messageLengths);
+        assertEquals(8192, bufferSizeAfterLarge);
+        assertEquals(8192, frameInputStream.bufferSize());
+    }
+
+    @Test
+    public void should_fail_in_place_read_of_frame_larger_than_max_frame_size() {
+        // Init
+        FrameViewListener listener = new FrameViewListener() {
+            @Override
+            public void onFrame(FrameView frame) {
+                fail("The frame is larger than the maximum frame size");
+            }
+        };
+
+        // Test
+        try {
+            new FrameInputStream(new ByteArrayInputStream("MESSAGE\ncontent-length:2147483647\n\n".getBytes(UTF_8)), Integer.MAX_VALUE).read(listener);
+            fail("The frame is larger than the maximum frame size");
+        } catch (StompException e) {
+            // Assert
+            assertEquals("The frame exceeds the maximum frame size of 2147483647 bytes", e.getMessage());
+        }
+        try {
+            new FrameInputStream(new ByteArrayInputStream(("MESSAGE\n\n" + Strings.repeat("0", 20000) + "\0").getBytes(UTF_8)), 10000).read(listener);
+            fail("The frame is larger than the maximum frame size");
+        } catch (StompException e) {
+            assertEquals("The frame exceeds the maximum frame size of 10000 bytes", e.getMessage());
+        }
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        server = FakeServer.sending(toSend);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (connection != null) {
+            connection.closeQuietly();
+        }
+        server.close();
+    }
+}
@@ -0,0 +1,67 @@
+package fr.xebia.stomp.client;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class HashedWheelTimerTest {
+
+    @Test
+    public void should_run_tasks_after_their_delay_even_beyond_a_turn_of_wheel() throws InterruptedException {
+        // Init
+        HashedWheelTimer timer = new HashedWheelTimer(5, TimeUnit.MILLISECONDS, 8, "test-timer");
+        final CountDownLatch done = new CountDownLatch(3);
+        final AtomicLong tooEarly = new AtomicLong();
+        final long start = System.nanoTime();
+
+        // Test
+        for (final long delay : new long[] { 10, 30, 100 }) {
+            timer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if ((System.nanoTime() - start) < TimeUnit.MILLISECONDS.toNanos(delay)) {
+                        tooEarly.incrementAndGet();
+                    }
+                    done.countDown();
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+
+        // Assert
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertTrue(tooEarly.get() == 0);
+    }
+
+    @Test
+    public void should_not_run_cancelled_task() throws InterruptedException {
+        // Init
+        HashedWheelTimer timer = new HashedWheelTimer(5, TimeUnit.MILLISECONDS, 8, "test-timer");
+        final AtomicBoolean ran = new AtomicBoolean();
+        final CountDownLatch after = new CountDownLatch(1);
+
+        // Test
+        HashedWheelTimer.Timeout timeout = timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                ran.set(true);
+            }
+        }, 20, TimeUnit.MILLISECONDS);
+        timeout.cancel();
+        timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                after.countDown();
+            }
+        }, 50, TimeUnit.MILLISECONDS);
+
+        // Assert
+        assertTrue(after.await(5, TimeUnit.SECONDS));
+        assertFalse(ran.get());
+    }
+}
@@ -0,0 +1,101 @@
+package fr.xebia.stomp.client;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class HeaderMapTest {
+
+    @Test
+    public void should_keep_last_value_in_insertion_order() {
+        // Test
+        HeaderMap header = HeaderMap.builder().put(Headers.DESTINATION, "/queue/a").put("custom", "1").put(Headers.DESTINATION, "/queue/b").build();
+
+        // Assert
+        assertEquals(2, header.size());
+        assertEquals(Headers.DESTINATION, header.key(0));
+        assertEquals("/queue/b", header.value(0));
+        assertEquals("custom", header.key(1));
+        assertEquals("1", header.get(new String("custom")));
+        assertNull(header.get("missing"));
+        assertFalse(header.containsKey(null));
+    }
+
+    @Test
+    public void should_equal_other_maps_with_same_headers() {
+        // Init
+        Map<String, String> hashMap = new HashMap<String, String>();
+        hashMap.put("custom", "1");
+        hashMap.put(Headers.DESTINATION, "/queue/a");
+
+        // Test
+        HeaderMap header = HeaderMap.builder().put(Headers.DESTINATION, "/queue/a").put("custom", "1").build();
+
+        // Assert
+        assertEquals(hashMap, header);
+        assertEquals(header, hashMap);
+        assertEquals(hashMap.hashCode(), header.hashCode());
+        assertEquals(header, HeaderMap.copyOf(hashMap));
+        assertFalse(header.equals(header.with("custom", "2")));
+    }
+
+    @Test
+    public void should_copy_on_change() {
+        // Init
+        HeaderMap header = HeaderMap.builder().put(Headers.DESTINATION, "/queue/a").build();
+
+        // Test
+        HeaderMap withReceipt = header.with(Headers.RECEIPT, "receipt-1");
+
+        // Assert
+        assertEquals(1, header.size());
+        assertEquals("receipt-1", withReceipt.get(Headers.RECEIPT));
+        assertSame(withReceipt, withReceipt.with(Headers.RECEIPT, "receipt-1"));
+        assertEquals("receipt-2", withReceipt.with(Headers.RECEIPT, "receipt-2").get(Headers.RECEIPT));
+        assertEquals(2, withReceipt.with(Headers.RECEIPT, "receipt-2").size());
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void should_not_be_modified() {
+        HeaderMap.builder().put(Headers.DESTINATION, "/queue/a").build().put(Headers.DESTINATION, "/queue/b");
+    }
+
+    @Test
+    public void should_reuse_cleared_builder() {
+        // Init
+        HeaderMap.Builder builder = HeaderMap.builder();
+        HeaderMap first = builder.put(Headers.MESSAGE_ID, "message-0").build();
+
+        // Test
+        HeaderMap second = builder.clear().put(Headers.SUBSCRIPTION, "sub-0").build();
+
+        // Assert
+        assertEquals("message-0", first.get(Headers.MESSAGE_ID));
+        assertFalse(second.containsKey(Headers.MESSAGE_ID));
+        assertSame(HeaderMap.EMPTY, builder.clear().build());
+    }
+
+    @Test
+    public void should_not_change_sent_frame() {
+        // Init
+        Frame frame = new FrameBuilder().command(Command.SEND).header(Headers.DESTINATION, "/queue/a").message("message").end();
+
+        // Test
+        Frame withReceipt = frame.withHeader(Headers.RECEIPT, "receipt-1");
+
+        // Assert
+        assertFalse(frame.header.containsKey(Headers.RECEIPT));
+        assertTrue(withReceipt.header.containsKey(Headers.RECEIPT));
+        assertEquals("message", withReceipt.messageAsString());
+        assertFalse(frame.equals(withReceipt));
+        assertEquals(frame, new FrameBuilder().command(Command.SEND).header(Headers.DESTINATION, "/queue/a").message("message").end());
+        assertEquals(frame.hashCode(), new FrameBuilder().command(Command.SEND).header(Headers.DESTINATION, "/queue/a").message("message").end().hashCode());
+    }
+}
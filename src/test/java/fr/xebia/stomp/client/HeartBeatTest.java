@@ -0,0 +1,195 @@
+package fr.xebia.stomp.client;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class HeartBeatTest {
+    private FakeServer server;
+    private volatile String serverHeartBeat;
+    private volatile boolean serverSendsHeartBeats;
+    private volatile String clientHeartBeat;
+    private AtomicInteger heartBeatsReceivedByServer = new AtomicInteger();
+    // The longest time between the ends of two frames or heart-beats received by the server
+    private AtomicLong maxGapNanos = new AtomicLong();
+    private Connection connection;
+
+    @Test
+    public void should_negotiate_intervals() {
+        assertArrayEquals(new long[] { 0, 0 }, HeartBeat.negotiate(null, "1000,1000"));
+        assertArrayEquals(new long[] { 0, 0 }, HeartBeat.negotiate("1000,1000", null));
+        assertArrayEquals(new long[] { 2000, 0 }, HeartBeat.negotiate("1000,500", "0,2000"));
+        assertArrayEquals(new long[] { 1000, 3000 }, HeartBeat.negotiate("1000,500", "3000,100"));
+    }
+
+    @Test
+    public void should_send_heart_beats_when_idle() throws InterruptedException {
+        // Init
+        serverHeartBeat = "0,50";
+        connection = Connection.login("admin").passcode("password").heartBeat(50, 0, TimeUnit.MILLISECONDS).to("localhost", server.port());
+
+        // Test
+        Thread.sleep(500);
+
+        // Assert
+        assertEquals("50,0", clientHeartBeat);
+        assertTrue(heartBeatsReceivedByServer.get() >= 4);
+    }
+
+    @Test
+    public void should_not_send_heart_beats_with_traffic() throws InterruptedException {
+        // Init
+        serverHeartBeat = "0,100";
+        connection = Connection.login("admin").passcode("password").nio().heartBeat(100, 0, TimeUnit.MILLISECONDS)
+                .to("localhost", server.port());
+
+        // Test
+        for (int i = 0; i < 50; i++) {
+            connection.send().message("message " + i).to("/queue/test");
+            Thread.sleep(10);
+        }
+
+        // Assert
+        assertTrue(heartBeatsReceivedByServer.get() <= 1);
+    }
+
+    @Test
+    public void should_send_heart_beat_an_interval_after_last_frame() throws InterruptedException {
+        // Init
+        serverHeartBeat = "0,100";
+        connection = Connection.login("admin").passcode("password").heartBeat(100, 0, TimeUnit.MILLISECONDS).to("localhost", server.port());
+        Thread.sleep(200);
+        maxGapNanos.set(0);
+
+        // Test: frames at any time between the checks of the previous interval
+        for (int i = 0; i < 8; i++) {
+            connection.send().message("message " + i).to("/queue/test");
+            Thread.sleep(130 + (i * 7));
+        }
+
+        // Assert
+        assertTrue("Nothing written for " + TimeUnit.NANOSECONDS.toMillis(maxGapNanos.get()) + "ms",
+                maxGapNanos.get() < TimeUnit.MILLISECONDS.toNanos(150));
+    }
+
+    @Test
+    public void should_fail_when_server_heart_beats_are_missing() throws InterruptedException {
+        // Init
+        serverHeartBeat = "50,0";
+        serverSendsHeartBeats = false;
+        connection = Connection.login("admin").passcode("password").heartBeat(0, 50, TimeUnit.MILLISECONDS).to("localhost", server.port());
+
+        // Test
+        try {
+            connection.receive(5, TimeUnit.SECONDS);
+            fail("The connection should fail");
+        } catch (TimeoutException e) {
+            fail("The connection should fail before the timeout");
+        } catch (StompException e) {
+            // Assert
+            assertTrue(e.getCause().getMessage().startsWith("No heart-beat received"));
+        }
+    }
+
+    @Test
+    public void should_stay_alive_with_server_heart_beats() throws InterruptedException {
+        // Init
+        serverHeartBeat = "50,0";
+        serverSendsHeartBeats = true;
+        connection = Connection.login("admin").passcode("password").heartBeat(0, 50, TimeUnit.MILLISECONDS).to("localhost", server.port());
+
+        // Test
+        try {
+            connection.receive(500, TimeUnit.MILLISECONDS);
+            fail("No frame was sent by the server");
+        } catch (TimeoutException e) {
+            // Assert: still connected
+        }
+        connection.send().message("alive").to("/queue/test");
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        server = FakeServer.start(new FakeServer.Handler() {
+            @Override
+            Frame connected(Frame connect) {
+                clientHeartBeat = connect.header.get(Headers.HEART_BEAT);
+                return new FrameBuilder().command(Command.CONNECTED).header(Headers.HEART_BEAT, serverHeartBeat).end();
+            }
+
+            @Override
+            void serve(FakeServer.Session session) throws IOException {
+                if (serverSendsHeartBeats) {
+                    startHeartBeats(session.socket.getOutputStream());
+                }
+                // Count the end of lines between the frames
+                InputStream in = session.socket.getInputStream();
+                boolean inFrame = false;
+                long lastReceivedNanos = System.nanoTime();
+                int value;
+                while ((value = in.read()) != -1) {
+                    boolean received = false;
+                    if (inFrame) {
+                        inFrame = value != 0;
+                        received = !inFrame;
+                    } else if (value == '\n') {
+                        heartBeatsReceivedByServer.incrementAndGet();
+                        received = true;
+                    } else {
+                        inFrame = true;
+                    }
+                    if (received) {
+                        long now = System.nanoTime();
+                        long gap = now - lastReceivedNanos;
+                        if (gap > maxGapNanos.get()) {
+                            maxGapNanos.set(gap);
+                        }
+                        lastReceivedNanos = now;
+                    }
+                }
+            }
+        });
+    }
+
+    private void startHeartBeats(final OutputStream output) {
+        Thread heartBeats = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        Thread.sleep(25);
+                        output.write('\n');
+                        output.flush();
+                    }
+                } catch (InterruptedException e) {
+                    // End of test
+                } catch (IOException e) {
+                    // Client socket closed
+                }
+            }
+        });
+        heartBeats.setDaemon(true);
+        heartBeats.start();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (connection != null) {
+            connection.closeQuietly();
+        }
+        server.close();
+    }
+}
@@ -0,0 +1,218 @@
+package fr.xebia.stomp.client;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PrefetchTest {
+    private static final int MESSAGES = 5000;
+    private static final int PREFETCH = 10;
+
+    private FakeServer server;
+    private final AtomicInteger sentByServer = new AtomicInteger();
+    private Connection connection;
+    private EventLoopGroup eventLoopGroup;
+    private ExecutorService receiveExecutor;
+
+    @Test
+    public void should_pause_reader_thread_until_messages_are_received() throws Exception {
+        // Init
+        connection = Connection.login("admin").passcode("password").to("localhost", server.port());
+
+        // Test
+        Frame subscribe = connection.subscribe().forClient("subscription").prefetch(PREFETCH).to("/queue/test");
+
+        // Assert
+        assertEquals(Integer.toString(PREFETCH), subscribe.header.get("activemq.prefetchSize"));
+        assertServerBlocked();
+        assertAllReceived();
+    }
+
+    @Test
+    public void should_pause_event_loop_reading_until_messages_are_received() throws Exception {
+        // Init
+        eventLoopGroup = new EventLoopGroup(1);
+        connection = Connection.login("admin").passcode("password").on(eventLoopGroup).to("localhost", server.port());
+
+        // Test
+        connection.subscribe().forClient("subscription").prefetch(PREFETCH).to("/queue/test");
+
+        // Assert
+        assertServerBlocked();
+        assertAllReceived();
+    }
+
+    @Test
+    public void should_deliver_to_listener_from_bounded_queue() throws Exception {
+        // Init
+        connection = Connection.login("admin").passcode("password").to("localhost", server.port());
+        final CountDownLatch firstMessage = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger received = new AtomicInteger();
+
+        // Test
+        connection.subscribe().forClient("subscription").prefetch(PREFETCH).withListener(new MessageListener() {
+            @Override
+            public void onMessage(Frame frame) {
+                firstMessage.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                received.incrementAndGet();
+            }
+        }).to("/queue/test");
+
+        // Assert
+        assertTrue(firstMessage.await(5, TimeUnit.SECONDS));
+        assertServerBlocked();
+        release.countDown();
+        long deadline = System.currentTimeMillis() + 10000;
+        while ((received.get() < MESSAGES) && (System.currentTimeMillis() < deadline)) {
+            Thread.sleep(10);
+        }
+        assertEquals(MESSAGES, received.get());
+        assertFalse(connection.isReadingPaused());
+    }
+
+    @Test
+    public void should_deliver_in_order_on_receive_executor() throws Exception {
+        // Init
+        receiveExecutor = Executors.newFixedThreadPool(2, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                return new Thread(runnable, "test-receive-" + count.incrementAndGet());
+            }
+        });
+        connection = Connection.login("admin").passcode("password").receiveExecutor(receiveExecutor).to("localhost", server.port());
+        final Set<String> threadNames = ConcurrentHashMap.newKeySet();
+        final AtomicInteger outOfOrder = new AtomicInteger();
+        final CountDownLatch allReceived = new CountDownLatch(MESSAGES);
+
+        // Test
+        connection.subscribe().forClient("subscription").prefetch(PREFETCH).withListener(new MessageListener() {
+            private int expected = 0;
+
+            @Override
+            public void onMessage(Frame frame) {
+                threadNames.add(Thread.currentThread().getName());
+                if (!("message-" + expected++).equals(frame.header.get(Headers.MESSAGE_ID))) {
+                    outOfOrder.incrementAndGet();
+                }
+                allReceived.countDown();
+            }
+        }).to("/queue/test");
+
+        // Assert
+        assertTrue(allReceived.await(10, TimeUnit.SECONDS));
+        assertEquals(0, outOfOrder.get());
+        for (String threadName : threadNames) {
+            assertTrue(threadName, threadName.startsWith("test-receive-"));
+        }
+    }
+
+    @Test
+    public void should_fail_receipt_wait_from_delivery_thread() throws Exception {
+        // Init
+        connection = Connection.login("admin").passcode("password").to("localhost", server.port());
+        final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+        final CountDownLatch firstMessage = new CountDownLatch(1);
+
+        // Test
+        connection.subscribe().forClient("subscription").prefetch(PREFETCH).withListener(new MessageListener() {
+            @Override
+            public void onMessage(Frame frame) {
+                if (firstMessage.getCount() == 0) {
+                    return;
+                }
+                try {
+                    connection.begin().send("/queue/other", "message").commit(5, TimeUnit.SECONDS);
+                } catch (Exception e) {
+                    failure.set(e);
+                } finally {
+                    firstMessage.countDown();
+                }
+            }
+        }).to("/queue/test");
+
+        // Assert
+        assertTrue(firstMessage.await(10, TimeUnit.SECONDS));
+        assertTrue(failure.get() instanceof StompException);
+        assertTrue(failure.get().getMessage().startsWith("Can't wait for a receipt"));
+    }
+
+    /**
+     * The messages are bigger than the socket buffers, so the server stops writing when the client stops reading.
+     */
+    private void assertServerBlocked() throws InterruptedException {
+        int sent;
+        do {
+            sent = sentByServer.get();
+            Thread.sleep(200);
+        } while (sent != sentByServer.get());
+        assertTrue(connection.isReadingPaused());
+        assertTrue("The server sent all the messages", sent < MESSAGES);
+    }
+
+    private void assertAllReceived() throws Exception {
+        for (int i = 0; i < MESSAGES; i++) {
+            Frame message = connection.receive("subscription", 5, TimeUnit.SECONDS);
+            assertEquals("message-" + i, message.header.get(Headers.MESSAGE_ID));
+        }
+        assertEquals(MESSAGES, sentByServer.get());
+        assertFalse(connection.isReadingPaused());
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        server = FakeServer.start(new FakeServer.Handler() {
+            @Override
+            void serve(FakeServer.Session session) throws IOException {
+                Frame subscribe = session.read();
+                char[] body = new char[4096];
+                Arrays.fill(body, 'a');
+                for (int i = 0; i < MESSAGES; i++) {
+                    session.write(new FrameBuilder().command(Command.MESSAGE).header(Headers.SUBSCRIPTION, subscribe.header.get(Headers.ID))
+                            .header(Headers.MESSAGE_ID, "message-" + i).message(new String(body)).end());
+                    sentByServer.incrementAndGet();
+                }
+                while (true) {
+                    session.read();
+                }
+            }
+        });
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (connection != null) {
+            connection.closeQuietly();
+        }
+        if (eventLoopGroup != null) {
+            eventLoopGroup.close();
+        }
+        if (receiveExecutor != null) {
+            receiveExecutor.shutdownNow();
+        }
+        server.close();
+    }
+}
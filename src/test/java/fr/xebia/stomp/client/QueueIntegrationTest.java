@@ -25,7 +25,7 @@ public class QueueIntegrationTest {
 		System.out.println("Received " + receivedFrame);
 
 		// Assert
-        Assert.assertEquals(sentFrame.message, receivedFrame.message);
+        Assert.assertEquals(sentFrame.messageAsString(), receivedFrame.messageAsString());
 	}
 
 	@Test
@@ -44,8 +44,8 @@ public class QueueIntegrationTest {
 		System.out.println("Received " + receivedFrame2);
 
 		// Assert
-		Assert.assertEquals(sentFrame.message, receivedFrame1.message);
-		Assert.assertEquals(sentFrame.message, receivedFrame2.message);
+		Assert.assertEquals(sentFrame.messageAsString(), receivedFrame1.messageAsString());
+		Assert.assertEquals(sentFrame.messageAsString(), receivedFrame2.messageAsString());
 	}
 
 	@Test
@@ -62,7 +62,7 @@ public class QueueIntegrationTest {
 		for (int i = 0; i < 1000; i++) {
 			Frame receive = receiverConnection1.receive();
             Assert.assertEquals(Command.MESSAGE, receive.command);
-            Assert.assertEquals("test send2FramesToReceiver", receive.message);
+            Assert.assertEquals("test send2FramesToReceiver", receive.messageAsString());
 		}
 	}
 
@@ -76,7 +76,7 @@ public class QueueIntegrationTest {
 
         // Test
         Frame receivedFrame1 = receiverConnection1.receive();
-        Assert.assertEquals("test send before unsubscription",receivedFrame1.message);
+        Assert.assertEquals("test send before unsubscription",receivedFrame1.messageAsString());
         System.out.println("Received " + receivedFrame1);
         receiverConnection1.unsubscribe("receiver1");
         Thread.sleep(1000);
@@ -114,7 +114,7 @@ public class QueueIntegrationTest {
             String currentMessage = "";
             while (!"poison pill".equals(currentMessage)) {
                 Frame receive = receiverConnection1.receive();
-                currentMessage = receive.message;
+                currentMessage = receive.messageAsString();
                 System.out.println(currentMessage);
             }
         } catch (Exception e) {
@@ -123,7 +123,7 @@ public class QueueIntegrationTest {
             String currentMessage = "";
             while (!"poison pill".equals(currentMessage)) {
                 Frame receive = receiverConnection2.receive();
-                currentMessage = receive.message;
+                currentMessage = receive.messageAsString();
                 System.out.println(currentMessage);
             }
         } catch (Exception e) {
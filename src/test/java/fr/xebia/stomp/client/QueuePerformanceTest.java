@@ -1,6 +1,8 @@
 package fr.xebia.stomp.client;
 
 import fr.xebia.stomp.client.Connection.SocketParam;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
 import org.junit.Test;
 
 import java.io.IOException;
@@ -11,11 +13,22 @@ import static junit.framework.Assert.fail;
 public class QueuePerformanceTest {
     private static final long MAX_NUMBER_OF_MESSAGES = 10000;
     private static final long MAX_SIZE_OF_QUEUE_IN_BYTES = 200000000;
+    private static EmbeddedBroker broker;
     private List<Connection> connections = new ArrayList<Connection>();
 
     private Connection connectionSender;
     private Connection connectionReceiver;
 
+    @BeforeClass
+    public static void startBroker() throws IOException {
+        broker = EmbeddedBroker.start();
+    }
+
+    @AfterClass
+    public static void stopBroker() throws IOException {
+        broker.close();
+    }
+
     @Test
     public void sendAndReceiveMessagesInQueue() throws IOException {
         System.out.println("\nsendAndReceiveMessagesInQueue\n");
@@ -63,7 +76,7 @@ public class QueuePerformanceTest {
                 .to("/queue/test");
         if (headers != null) {
             for (Map.Entry<String, String> header : headers.entrySet()) {
-                frame.header.put(header.getKey(), header.getValue());
+                frame = frame.withHeader(header.getKey(), header.getValue());
             }
         }
         // Send frames
@@ -96,8 +109,8 @@ public class QueuePerformanceTest {
     }
 
     public void setUp() {
-        connectionSender = Connection.login("admin").passcode("password").to("localhost", 61613, SocketParam.TIMEOUT, 50000);
-        connectionReceiver = Connection.login("admin").passcode("password").to("localhost", 61613, SocketParam.TIMEOUT, 50000);
+        connectionSender = Connection.login("admin").passcode("password").to(broker.host(), broker.port(), SocketParam.TIMEOUT, 50000);
+        connectionReceiver = Connection.login("admin").passcode("password").to(broker.host(), broker.port(), SocketParam.TIMEOUT, 50000);
         connections.add(connectionSender);
         connections.add(connectionReceiver);
         FrameBuilder.subscribe(connectionReceiver).forClient("receiver").to("/queue/test");
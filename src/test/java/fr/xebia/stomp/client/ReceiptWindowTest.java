@@ -0,0 +1,171 @@
+package fr.xebia.stomp.client;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ReceiptWindowTest {
+    private FakeServer server;
+    private volatile boolean autoReceipt = true;
+    private BlockingQueue<String> receiptsToSend = new LinkedBlockingQueue<String>();
+    private volatile FakeServer.Session serverSession;
+    private Connection connection;
+
+    @Test
+    public void should_complete_futures_with_their_receipt() throws Exception {
+        // Init
+        connection = Connection.login("admin").passcode("password").nio().receiptWindow(16).to("localhost", server.port());
+        List<CompletableFuture<Frame>> receipts = new ArrayList<CompletableFuture<Frame>>();
+
+        // Test
+        for (int i = 0; i < 100; i++) {
+            receipts.add(connection.send().message("message " + i).toAsync("/queue/test"));
+        }
+
+        // Assert
+        for (int i = 0; i < 100; i++) {
+            Frame receipt = receipts.get(i).get(5, TimeUnit.SECONDS);
+            assertEquals(Command.RECEIPT, receipt.command);
+            assertEquals("receipt-" + (i + 1), receipt.header.get(Headers.RECEIPT_ID));
+        }
+        assertEquals(0, connection.receiptsInFlight());
+    }
+
+    @Test
+    public void should_wait_for_receipt_when_window_is_full() throws Exception {
+        // Init
+        autoReceipt = false;
+        connection = Connection.login("admin").passcode("password").receiptWindow(2).to("localhost", server.port());
+        connection.send().message("first").toAsync("/queue/test");
+        connection.send().message("second").toAsync("/queue/test");
+        final AtomicReference<CompletableFuture<Frame>> third = new AtomicReference<CompletableFuture<Frame>>();
+
+        // Test
+        Thread sender = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                third.set(connection.send().message("third").toAsync("/queue/test"));
+            }
+        });
+        sender.start();
+        sender.join(200);
+
+        // Assert
+        assertTrue(sender.isAlive());
+        assertEquals(2, connection.receiptsInFlight());
+        sendReceipt(receiptsToSend.poll(5, TimeUnit.SECONDS));
+        sender.join(5000);
+        assertFalse(sender.isAlive());
+        sendReceipt(receiptsToSend.poll(5, TimeUnit.SECONDS));
+        sendReceipt(receiptsToSend.poll(5, TimeUnit.SECONDS));
+        assertEquals("receipt-3", third.get().get(5, TimeUnit.SECONDS).header.get(Headers.RECEIPT_ID));
+    }
+
+    @Test
+    public void should_fail_future_on_error_or_close() throws Exception {
+        // Init
+        autoReceipt = false;
+        connection = Connection.login("admin").passcode("password").to("localhost", server.port());
+        CompletableFuture<Frame> failed = connection.send().message("first").toAsync("/queue/test");
+        CompletableFuture<Frame> closed = connection.send().message("second").toAsync("/queue/test");
+
+        // Test
+        String receipt = receiptsToSend.poll(5, TimeUnit.SECONDS);
+        serverSession.write(new FrameBuilder().command(Command.ERROR).header(Headers.RECEIPT_ID, receipt).header(Headers.MESSAGE, "refused").end());
+
+        // Assert
+        assertFailed(failed, "Error received for the receipt receipt-1: refused");
+        connection.close();
+        assertFailed(closed, "Connection closed");
+    }
+
+    @Test
+    public void should_not_wait_for_receipt_in_listener_when_window_is_full() throws Exception {
+        // Init
+        connection = Connection.login("admin").passcode("password").receiptWindow(1).to("localhost", server.port());
+        final AtomicReference<CompletableFuture<Frame>> first = new AtomicReference<CompletableFuture<Frame>>();
+        final AtomicReference<StompException> failure = new AtomicReference<StompException>();
+        final CountDownLatch listened = new CountDownLatch(1);
+        connection.subscribe().forClient("subscription").withListener(new MessageListener() {
+            @Override
+            public void onMessage(Frame frame) {
+                try {
+                    first.set(connection.send().message("first").toAsync("/queue/test"));
+                    connection.send().message("second").toAsync("/queue/test");
+                } catch (StompException e) {
+                    failure.set(e);
+                } finally {
+                    listened.countDown();
+                }
+            }
+        }).to("/queue/test");
+
+        // Test
+        serverSession.write(new FrameBuilder().command(Command.MESSAGE).header(Headers.SUBSCRIPTION, "subscription")
+                .header(Headers.MESSAGE_ID, "message-0").message("message").end());
+
+        // Assert
+        assertTrue(listened.await(5, TimeUnit.SECONDS));
+        assertTrue(failure.get().getMessage().startsWith("The receipt window is full"));
+        assertEquals("receipt-1", first.get().get(5, TimeUnit.SECONDS).header.get(Headers.RECEIPT_ID));
+    }
+
+    private void assertFailed(CompletableFuture<Frame> future, String message) throws InterruptedException, TimeoutException {
+        try {
+            future.get(5, TimeUnit.SECONDS);
+            fail("The future should fail");
+        } catch (ExecutionException e) {
+            assertEquals(message, e.getCause().getMessage());
+        }
+    }
+
+    private void sendReceipt(String receipt) throws IOException {
+        serverSession.write(new FrameBuilder().command(Command.RECEIPT).header(Headers.RECEIPT_ID, receipt).end());
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        server = FakeServer.start(new FakeServer.Handler() {
+            @Override
+            void serve(FakeServer.Session session) throws IOException {
+                serverSession = session;
+                while (true) {
+                    String receipt = session.read().header.get(Headers.RECEIPT);
+                    if (receipt == null) {
+                        continue;
+                    }
+                    if (autoReceipt) {
+                        sendReceipt(receipt);
+                    } else {
+                        receiptsToSend.add(receipt);
+                    }
+                }
+            }
+        });
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (connection != null) {
+            connection.closeQuietly();
+        }
+        server.close();
+    }
+}
@@ -0,0 +1,170 @@
+package fr.xebia.stomp.client;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ReceiveExecutorTest {
+    private FakeServer server;
+    // The frames the server sends, by connection in the connection order
+    private final List<BlockingQueue<Frame>> toSend = new CopyOnWriteArrayList<BlockingQueue<Frame>>();
+    private final List<Connection> connections = new ArrayList<Connection>();
+    // The queue of the connection served by the current server thread
+    private final ThreadLocal<BlockingQueue<Frame>> frames = new ThreadLocal<BlockingQueue<Frame>>();
+
+    @Test
+    public void should_receive_in_order_on_given_executor() throws Exception {
+        // Init
+        final AtomicInteger executed = new AtomicInteger();
+        Executor executor = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                executed.incrementAndGet();
+                ReceiveExecutor.SHARED.execute(command);
+            }
+        };
+        Connection connection = connect(Connection.login("admin").passcode("password").receiveExecutor(executor));
+
+        // Test
+        Future<Frame> first = connection.receiveAsync();
+        Future<Frame> second = connection.receiveAsync();
+        toSend.get(0).add(message("message-0"));
+        toSend.get(0).add(message("message-1"));
+
+        // Assert
+        assertEquals("message-0", first.get(5, TimeUnit.SECONDS).header.get(Headers.MESSAGE_ID));
+        assertEquals("message-1", second.get(5, TimeUnit.SECONDS).header.get(Headers.MESSAGE_ID));
+        assertEquals("message-2", receiveAfter(connection, "message-2").header.get(Headers.MESSAGE_ID));
+        assertTrue(executed.get() >= 1);
+    }
+
+    @Test
+    public void should_receive_after_rejected_receive() throws Exception {
+        // Init
+        final AtomicBoolean rejecting = new AtomicBoolean(true);
+        Executor executor = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                if (rejecting.get()) {
+                    throw new RejectedExecutionException("Saturated");
+                }
+                ReceiveExecutor.SHARED.execute(command);
+            }
+        };
+        Connection connection = connect(Connection.login("admin").passcode("password").receiveExecutor(executor));
+        try {
+            connection.receiveAsync();
+            fail("The executor rejects the receive");
+        } catch (StompException e) {
+            assertTrue(e.getCause() instanceof RejectedExecutionException);
+        }
+
+        // Test
+        rejecting.set(false);
+        Future<Frame> receive = connection.receiveAsync();
+        toSend.get(0).add(message("message-0"));
+
+        // Assert
+        assertEquals("message-0", receive.get(5, TimeUnit.SECONDS).header.get(Headers.MESSAGE_ID));
+    }
+
+    @Test
+    public void should_share_executor_between_connections() throws Exception {
+        // Init
+        List<Future<Frame>> receives = new ArrayList<Future<Frame>>();
+        for (int i = 0; i < 20; i++) {
+            receives.add(connect(Connection.login("admin").passcode("password")).receiveAsync());
+        }
+
+        // Test
+        for (int i = 0; i < 20; i++) {
+            toSend.get(i).add(message("message"));
+        }
+
+        // Assert
+        for (Future<Frame> receive : receives) {
+            assertEquals(Command.MESSAGE, receive.get(5, TimeUnit.SECONDS).command);
+        }
+    }
+
+    @Test
+    public void should_cancel_pending_receives_on_close() throws Exception {
+        // Init
+        Connection connection = connect(Connection.login("admin").passcode("password"));
+        connection.receiveAsync();
+        Future<Frame> pending = connection.receiveAsync();
+
+        // Test
+        connection.close();
+
+        // Assert
+        assertTrue(pending.isCancelled());
+        try {
+            connection.receiveAsync();
+            fail("The connection is closed");
+        } catch (StompException e) {
+            assertEquals("Connection closed", e.getMessage());
+        }
+    }
+
+    private Frame receiveAfter(Connection connection, String messageId) throws Exception {
+        toSend.get(0).add(message(messageId));
+        return connection.receive(5, TimeUnit.SECONDS);
+    }
+
+    private Connection connect(FrameBuilder.ConnectBuilder connectBuilder) {
+        Connection connection = connectBuilder.to("localhost", server.port());
+        connections.add(connection);
+        return connection;
+    }
+
+    private Frame message(String messageId) {
+        return new FrameBuilder().command(Command.MESSAGE).header(Headers.MESSAGE_ID, messageId).message("message").end();
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        server = FakeServer.start(new FakeServer.Handler() {
+            @Override
+            Frame connected(Frame connect) throws InterruptedException {
+                // Registered in the connection order, before the client gets its CONNECTED frame
+                frames.set(new LinkedBlockingQueue<Frame>());
+                toSend.add(frames.get());
+                return super.connected(connect);
+            }
+
+            @Override
+            void serve(FakeServer.Session session) throws IOException, InterruptedException {
+                BlockingQueue<Frame> sessionFrames = frames.get();
+                while (true) {
+                    session.write(sessionFrames.take());
+                }
+            }
+        });
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        for (Connection connection : connections) {
+            connection.closeQuietly();
+        }
+        server.close();
+    }
+}
@@ -0,0 +1,145 @@
+package fr.xebia.stomp.client;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ReconnectTest {
+    private FakeServer server;
+    private BlockingQueue<Frame> receivedByServer = new LinkedBlockingQueue<Frame>();
+    private volatile Socket serverSideSocket;
+    private volatile long pauseAfterCloseMillis = 300;
+    private Connection connection;
+
+    @Test
+    public void should_replay_subscriptions_then_buffered_frames_after_reconnect() throws Exception {
+        // Init
+        connection = Connection.login("admin").passcode("password").reconnect(10, 100, TimeUnit.MILLISECONDS, 100)
+                .to("localhost", server.port());
+        connection.subscribe().forClient("subscription-1").to("/queue/a");
+        connection.subscribe().forClient("subscription-2").to("/queue/b");
+        connection.unsubscribe("subscription-2");
+        connection.send().message("before").to("/queue/test");
+        assertEquals(Command.CONNECT, receivedByServer.poll(5, TimeUnit.SECONDS).command);
+        for (int i = 0; i < 4; i++) {
+            assertNotNull(receivedByServer.poll(5, TimeUnit.SECONDS));
+        }
+
+        // Test
+        serverSideSocket.close();
+        Thread.sleep(100);
+        for (int i = 0; i < 10; i++) {
+            connection.send().message("during " + i).to("/queue/test");
+        }
+        assertEquals(10, connection.reconnectStats().bufferedFrames());
+
+        // Assert
+        assertEquals(Command.CONNECT, receivedByServer.poll(5, TimeUnit.SECONDS).command);
+        Frame subscription = receivedByServer.poll(5, TimeUnit.SECONDS);
+        assertEquals(Command.SUBSCRIBE, subscription.command);
+        assertEquals("subscription-1", subscription.header.get(Headers.ID));
+        for (int i = 0; i < 10; i++) {
+            assertEquals("during " + i, receivedByServer.poll(5, TimeUnit.SECONDS).messageAsString());
+        }
+        connection.send().message("after").to("/queue/test");
+        assertEquals("after", receivedByServer.poll(5, TimeUnit.SECONDS).messageAsString());
+        ReconnectStats stats = connection.reconnectStats();
+        assertEquals(1, stats.reconnects());
+        assertEquals(0, stats.bufferedFrames());
+        assertEquals(10, stats.maxBufferedFrames());
+        assertTrue(stats.lastReconnectMillis() >= 100);
+    }
+
+    @Test
+    public void should_reject_frames_when_buffer_is_full() throws Exception {
+        // Init
+        pauseAfterCloseMillis = 5000;
+        connection = Connection.login("admin").passcode("password").nio().reconnect(10, 100, TimeUnit.MILLISECONDS, 2)
+                .to("localhost", server.port());
+        assertEquals(Command.CONNECT, receivedByServer.poll(5, TimeUnit.SECONDS).command);
+
+        // Test
+        serverSideSocket.close();
+        Thread.sleep(100);
+        connection.send().message("during 1").to("/queue/test");
+        connection.send().message("during 2").to("/queue/test");
+        try {
+            connection.send().message("during 3").to("/queue/test");
+            fail("The buffer should be full");
+        } catch (StompException e) {
+            // Assert
+            assertEquals(1, connection.reconnectStats().rejectedFrames());
+        }
+    }
+
+    @Test
+    public void should_not_queue_part_of_commit_when_buffer_is_full() throws Exception {
+        // Init
+        pauseAfterCloseMillis = 5000;
+        connection = Connection.login("admin").passcode("password").nio().reconnect(10, 100, TimeUnit.MILLISECONDS, 3)
+                .to("localhost", server.port());
+        assertEquals(Command.CONNECT, receivedByServer.poll(5, TimeUnit.SECONDS).command);
+        serverSideSocket.close();
+        Thread.sleep(100);
+        Transaction transaction = connection.begin();
+        transaction.send("/queue/test", "message-0");
+        transaction.send("/queue/test", "message-1");
+
+        // Test
+        try {
+            transaction.commit();
+            fail("BEGIN, 2 SEND and COMMIT don't fit in the buffer");
+        } catch (StompException e) {
+            // Assert
+            assertEquals(0, connection.reconnectStats().bufferedFrames());
+        }
+        transaction.abort();
+        connection.begin().send("/queue/test", "message-2").commit();
+        assertEquals(3, connection.reconnectStats().bufferedFrames());
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        server = FakeServer.start(new FakeServer.Handler() {
+            private final AtomicInteger connects = new AtomicInteger();
+
+            @Override
+            Frame connected(Frame connect) throws InterruptedException {
+                if (connects.incrementAndGet() > 1) {
+                    // The outage lasts until the reconnection is answered
+                    Thread.sleep(pauseAfterCloseMillis);
+                }
+                receivedByServer.add(connect);
+                return super.connected(connect);
+            }
+
+            @Override
+            void serve(FakeServer.Session session) {
+                serverSideSocket = session.socket;
+                while (true) {
+                    receivedByServer.add(session.read());
+                }
+            }
+        });
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (connection != null) {
+            connection.closeQuietly();
+        }
+        server.close();
+    }
+}
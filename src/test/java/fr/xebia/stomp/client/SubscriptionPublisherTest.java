@@ -0,0 +1,176 @@
+package fr.xebia.stomp.client;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Flow;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SubscriptionPublisherTest {
+    private static final int MESSAGES = 5000;
+
+    private FakeServer server;
+    private final AtomicInteger sentByServer = new AtomicInteger();
+    private final BlockingQueue<Frame> subscribedByServer = new LinkedBlockingQueue<Frame>();
+    private final BlockingQueue<Frame> receivedByServer = new LinkedBlockingQueue<Frame>();
+    private Connection connection;
+
+    @Test
+    public void should_read_messages_as_requested() throws Exception {
+        // Init
+        connection = Connection.login("admin").passcode("password").to("localhost", server.port());
+        Flow.Publisher<Frame> publisher = connection.subscribe().forClient("subscription").toPublisher("/queue/test");
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        publisher.subscribe(subscriber);
+
+        // Test
+        subscriber.subscription.request(5);
+
+        // Assert
+        assertEquals("1", subscribedByServer.poll(5, TimeUnit.SECONDS).header.get("activemq.prefetchSize"));
+        for (int i = 0; i < 5; i++) {
+            assertEquals("message-" + i, subscriber.frames.poll(5, TimeUnit.SECONDS).header.get(Headers.MESSAGE_ID));
+        }
+        assertServerBlocked();
+        assertNull(subscriber.frames.poll(100, TimeUnit.MILLISECONDS));
+
+        subscriber.subscription.request(Long.MAX_VALUE);
+        for (int i = 5; i < MESSAGES; i++) {
+            assertEquals("message-" + i, subscriber.frames.poll(5, TimeUnit.SECONDS).header.get(Headers.MESSAGE_ID));
+        }
+        assertFalse(connection.isReadingPaused());
+        connection.close();
+        assertTrue(subscriber.completed.await(5, TimeUnit.SECONDS));
+        assertNull(subscriber.error);
+    }
+
+    @Test
+    public void should_unsubscribe_when_cancelled() throws Exception {
+        // Init
+        connection = Connection.login("admin").passcode("password").to("localhost", server.port());
+        Flow.Publisher<Frame> publisher = connection.subscribe().forClient("subscription").toPublisher("/queue/test");
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        publisher.subscribe(subscriber);
+        subscriber.subscription.request(1);
+        assertEquals("message-0", subscriber.frames.poll(5, TimeUnit.SECONDS).header.get(Headers.MESSAGE_ID));
+
+        // Test
+        subscriber.subscription.cancel();
+
+        // Assert
+        Frame unsubscribe = receivedByServer.poll(5, TimeUnit.SECONDS);
+        assertEquals(Command.UNSUBSCRIBE, unsubscribe.command);
+        assertEquals("subscription", unsubscribe.header.get(Headers.ID));
+        assertFalse(connection.isReadingPaused());
+        assertNull(subscriber.frames.poll(100, TimeUnit.MILLISECONDS));
+        assertEquals(1, subscriber.completed.getCount());
+    }
+
+    @Test
+    public void should_reject_second_subscriber_and_invalid_request() throws Exception {
+        // Init
+        connection = Connection.login("admin").passcode("password").to("localhost", server.port());
+        Flow.Publisher<Frame> publisher = connection.subscribe().forClient("subscription").toPublisher("/queue/test");
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        RecordingSubscriber secondSubscriber = new RecordingSubscriber();
+        publisher.subscribe(subscriber);
+
+        // Test
+        publisher.subscribe(secondSubscriber);
+        subscriber.subscription.request(0);
+
+        // Assert
+        assertTrue(secondSubscriber.error instanceof IllegalStateException);
+        assertTrue(subscriber.error instanceof IllegalArgumentException);
+        assertEquals(Command.UNSUBSCRIBE, receivedByServer.poll(5, TimeUnit.SECONDS).command);
+    }
+
+    private void assertServerBlocked() throws InterruptedException {
+        int sent;
+        do {
+            sent = sentByServer.get();
+            Thread.sleep(200);
+        } while (sent != sentByServer.get());
+        assertTrue(connection.isReadingPaused());
+        assertTrue("The server sent all the messages", sent < MESSAGES);
+    }
+
+    private static class RecordingSubscriber implements Flow.Subscriber<Frame> {
+        private final BlockingQueue<Frame> frames = new LinkedBlockingQueue<Frame>();
+        private final CountDownLatch completed = new CountDownLatch(1);
+        private volatile Flow.Subscription subscription;
+        private volatile Throwable error;
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+        }
+
+        @Override
+        public void onNext(Frame frame) {
+            frames.add(frame);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            error = throwable;
+        }
+
+        @Override
+        public void onComplete() {
+            completed.countDown();
+        }
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        server = FakeServer.start(new FakeServer.Handler() {
+            @Override
+            void serve(final FakeServer.Session session) throws IOException {
+                Frame subscribe = session.read();
+                subscribedByServer.add(subscribe);
+                Thread serverReader = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            while (true) {
+                                receivedByServer.add(session.read());
+                            }
+                        } catch (StompException e) {
+                            // Client socket closed
+                        }
+                    }
+                });
+                serverReader.setDaemon(true);
+                serverReader.start();
+                char[] body = new char[4096];
+                Arrays.fill(body, 'a');
+                for (int i = 0; i < MESSAGES; i++) {
+                    session.write(new FrameBuilder().command(Command.MESSAGE).header(Headers.SUBSCRIPTION, subscribe.header.get(Headers.ID))
+                            .header(Headers.MESSAGE_ID, "message-" + i).message(new String(body)).end());
+                    sentByServer.incrementAndGet();
+                }
+            }
+        });
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (connection != null) {
+            connection.closeQuietly();
+        }
+        server.close();
+    }
+}
@@ -0,0 +1,114 @@
+package fr.xebia.stomp.client;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class TimedReceiveTest {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String FRAME = "MESSAGE\nmessage-id:message-0\ncontent-length:10\n\n0123456789\0";
+
+    private FakeServer server;
+    // The chunks of bytes the server writes once connected
+    private final BlockingQueue<String> toWrite = new LinkedBlockingQueue<String>();
+    private Connection connection;
+
+    @Test
+    public void should_resume_partly_read_frame_after_timeout() throws Exception {
+        connection = Connection.to("localhost", server.port());
+        assertResumed();
+    }
+
+    @Test
+    public void should_resume_partly_decoded_frame_after_timeout_with_channel() throws Exception {
+        connection = Connection.login("admin").passcode("password").nio().to("localhost", server.port());
+        assertResumed();
+    }
+
+    @Test
+    public void should_poll_frames_written_byte_by_byte() throws Exception {
+        // Init
+        connection = Connection.to("localhost", server.port());
+        for (int i = 0; i < 3; i++) {
+            for (char c : FRAME.replace("message-0", "message-" + i).toCharArray()) {
+                toWrite.add(String.valueOf(c));
+            }
+        }
+
+        // Test
+        for (int i = 0; i < 3; i++) {
+            Frame frame = null;
+            while (frame == null) {
+                try {
+                    frame = connection.receive(1, TimeUnit.MILLISECONDS);
+                } catch (TimeoutException e) {
+                    // Poll again
+                }
+            }
+
+            // Assert
+            assertEquals("message-" + i, frame.header.get(Headers.MESSAGE_ID));
+            assertEquals("0123456789", frame.messageAsString());
+        }
+    }
+
+    private void assertResumed() throws Exception {
+        // Init
+        toWrite.add("MESSAGE\nmessage-id:message-0\n");
+        assertTimeout();
+        toWrite.add("content-length:10\n\n01234");
+        assertTimeout();
+
+        // Test
+        toWrite.add("56789\0");
+        Frame frame = connection.receive(5, TimeUnit.SECONDS);
+
+        // Assert
+        assertEquals("message-0", frame.header.get(Headers.MESSAGE_ID));
+        assertEquals("0123456789", frame.messageAsString());
+        toWrite.add(FRAME.replace("message-0", "message-1"));
+        assertEquals("message-1", connection.receive(5, TimeUnit.SECONDS).header.get(Headers.MESSAGE_ID));
+    }
+
+    private void assertTimeout() {
+        try {
+            connection.receive(100, TimeUnit.MILLISECONDS);
+            fail("The frame is not fully written");
+        } catch (TimeoutException e) {
+            // Expected
+        }
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        server = FakeServer.start(new FakeServer.Handler() {
+            @Override
+            void serve(FakeServer.Session session) throws IOException, InterruptedException {
+                OutputStream outputStream = session.socket.getOutputStream();
+                while (true) {
+                    outputStream.write(toWrite.take().getBytes(UTF_8));
+                    outputStream.flush();
+                }
+            }
+        });
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (connection != null) {
+            connection.closeQuietly();
+        }
+        server.close();
+    }
+}
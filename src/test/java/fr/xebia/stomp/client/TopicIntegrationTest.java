@@ -27,8 +27,8 @@ public class TopicIntegrationTest {
         System.out.println("Received " + receivedFrame2);
 
         // Assert
-        Assert.assertEquals(sentFrame.message, receivedFrame1.message);
-        Assert.assertEquals(sentFrame.message, receivedFrame2.message);
+        Assert.assertEquals(sentFrame.messageAsString(), receivedFrame1.messageAsString());
+        Assert.assertEquals(sentFrame.messageAsString(), receivedFrame2.messageAsString());
     }
 
 	@Test
@@ -45,7 +45,7 @@ public class TopicIntegrationTest {
 		System.out.println("Received " + receivedFrame1);
 
 		// Assert
-		Assert.assertEquals(sentFrame.message, receivedFrame1.message);
+		Assert.assertEquals(sentFrame.messageAsString(), receivedFrame1.messageAsString());
 	}
 
 	private Connection senderConnection;
@@ -69,7 +69,7 @@ public class TopicIntegrationTest {
             String currentMessage = "";
             while (!"poison pill".equals(currentMessage)) {
                 Frame receive = receiverConnection1.receive();
-                currentMessage = receive.message;
+                currentMessage = receive.messageAsString();
                 System.out.println(currentMessage);
             }
         } catch (Exception e) {
@@ -78,7 +78,7 @@ public class TopicIntegrationTest {
             String currentMessage = "";
             while (!"poison pill".equals(currentMessage)) {
                 Frame receive = receiverConnection2.receive();
-                currentMessage = receive.message;
+                currentMessage = receive.messageAsString();
                 System.out.println(currentMessage);
             }
         } catch (Exception e) {
@@ -9,6 +9,8 @@ import java.util.List;
 import java.util.Map;
 
 import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
 import org.junit.Test;
 
 import com.google.common.collect.Sets;
@@ -17,16 +19,27 @@ import fr.xebia.stomp.client.Connection.SocketParam;
 
 public class TopicPerformanceTest {
 	private static final int NB_OF_MESSAGES = 100;
+	private static EmbeddedBroker broker;
 	private List<Connection> connections = new ArrayList<Connection>();
 	private static final String CONTENT = "testtesttesttesttesttesttesttesttesttesttesttesttesttesttesttesttesttesttesttesttesttesttesttesttesttesttesttesttesttesttesttesttesttesttesttesttesttesttesttesttesttesttesttesttesttesttesttesttesttesttesttesttesttesttesttesttesttesttesttesttesttesttesttesttesttesttesttesttesttesttesttesttesttesttesttesttesttesttesttest";
 
 	private Connection connectionSender;
 	private Connection connectionReceiver;
 
+	@BeforeClass
+	public static void startBroker() throws IOException {
+		broker = EmbeddedBroker.start();
+	}
+
+	@AfterClass
+	public static void stopBroker() throws IOException {
+		broker.close();
+	}
+
 	@Test
 	public void should_receive_10000_messages_in_topic() throws IOException, InterruptedException {
-		Connection connection1 = Connection.login("admin").passcode("password").to("localhost", 61613, SocketParam.TIMEOUT, 5000);
-		final Connection connection2 = Connection.login("admin").passcode("password").to("localhost", 61613, SocketParam.TIMEOUT, 5000);
+		Connection connection1 = Connection.login("admin").passcode("password").to(broker.host(), broker.port(), SocketParam.TIMEOUT, 5000);
+		final Connection connection2 = Connection.login("admin").passcode("password").to(broker.host(), broker.port(), SocketParam.TIMEOUT, 5000);
 		connections.add(connection1);
 		connections.add(connection2);
 		FrameBuilder.subscribe(connection2).forClient("receiver").to("/topic/test");
@@ -50,8 +63,8 @@ public class TopicPerformanceTest {
 	}
 
 	public void setUp() {
-		connectionSender = Connection.login("admin").passcode("password").to("localhost", 61613, SocketParam.TIMEOUT, 10000);
-		connectionReceiver = Connection.login("admin").passcode("password").to("localhost", 61613, SocketParam.TIMEOUT, 10000);
+		connectionSender = Connection.login("admin").passcode("password").to(broker.host(), broker.port(), SocketParam.TIMEOUT, 10000);
+		connectionReceiver = Connection.login("admin").passcode("password").to(broker.host(), broker.port(), SocketParam.TIMEOUT, 10000);
 		connections.add(connectionSender);
 		connections.add(connectionReceiver);
 		FrameBuilder.subscribe(connectionReceiver).forClient("receiver").to("/queue/test");
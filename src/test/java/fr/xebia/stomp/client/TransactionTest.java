@@ -0,0 +1,124 @@
+package fr.xebia.stomp.client;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class TransactionTest {
+    private FakeServer server;
+    private BlockingQueue<Frame> receivedByServer = new LinkedBlockingQueue<Frame>();
+    private Connection connection;
+
+    @Test
+    public void should_write_begin_sends_and_commit_in_one_batch() throws InterruptedException {
+        // Init
+        connection = Connection.to("localhost", server.port());
+        long batches = connection.batchStats().batches();
+        Transaction transaction = connection.begin("tx");
+
+        // Test
+        for (int i = 0; i < 10; i++) {
+            transaction.send("/queue/test", "message-" + i);
+        }
+        transaction.ack(new FrameBuilder().command(Command.MESSAGE).header(Headers.SUBSCRIPTION, "subscription")
+                .header(Headers.MESSAGE_ID, "received").message("received").end());
+        assertNull(receivedByServer.poll(100, TimeUnit.MILLISECONDS));
+        transaction.commit();
+
+        // Assert
+        assertFrame(Command.BEGIN, "tx");
+        for (int i = 0; i < 10; i++) {
+            assertEquals("message-" + i, assertFrame(Command.SEND, "tx").messageAsString());
+        }
+        assertEquals("received", assertFrame(Command.ACK, "tx").header.get(Headers.MESSAGE_ID));
+        assertFrame(Command.COMMIT, "tx");
+        assertEquals(batches + 1, connection.batchStats().batches());
+        assertEquals(13, connection.batchStats().maxFramesPerBatch());
+    }
+
+    @Test
+    public void should_wait_for_commit_receipt() throws Exception {
+        // Init
+        connection = Connection.to("localhost", server.port());
+        Transaction transaction = connection.begin();
+        transaction.send("/queue/test", "message");
+
+        // Test
+        Frame receipt = transaction.commit(5, TimeUnit.SECONDS);
+
+        // Assert
+        assertFrame(Command.BEGIN, transaction.id());
+        assertFrame(Command.SEND, transaction.id());
+        Frame commit = assertFrame(Command.COMMIT, transaction.id());
+        assertEquals(commit.header.get(Headers.RECEIPT), receipt.header.get(Headers.RECEIPT_ID));
+        assertEquals(0, connection.receiptsInFlight());
+    }
+
+    @Test
+    public void should_write_nothing_when_aborted() throws InterruptedException {
+        // Init
+        connection = Connection.to("localhost", server.port());
+        Transaction transaction = connection.begin();
+        transaction.send("/queue/test", "message");
+
+        // Test
+        transaction.abort();
+
+        // Assert
+        connection.flush();
+        assertNull(receivedByServer.poll(100, TimeUnit.MILLISECONDS));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void should_not_send_after_commit() {
+        connection = Connection.to("localhost", server.port());
+        Transaction transaction = connection.begin();
+        transaction.commit();
+        transaction.send("/queue/test", "message");
+    }
+
+    @Test
+    public void should_build_abort_frame() {
+        assertEquals(Command.ABORT, FrameBuilder.abort().to("tx").command);
+    }
+
+    private Frame assertFrame(Command command, String transaction) throws InterruptedException {
+        Frame frame = receivedByServer.poll(5, TimeUnit.SECONDS);
+        assertEquals(command, frame.command);
+        assertEquals(transaction, frame.header.get(Headers.TRANSACTION));
+        return frame;
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        server = FakeServer.start(new FakeServer.Handler() {
+            @Override
+            void serve(FakeServer.Session session) throws IOException {
+                while (true) {
+                    Frame frame = session.read();
+                    receivedByServer.add(frame);
+                    String receipt = frame.header.get(Headers.RECEIPT);
+                    if (receipt != null) {
+                        session.write(new FrameBuilder().command(Command.RECEIPT).header(Headers.RECEIPT_ID, receipt).end());
+                    }
+                }
+            }
+        });
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (connection != null) {
+            connection.closeQuietly();
+        }
+        server.close();
+    }
+}